@@ -1,10 +1,14 @@
 package org.cloudname.copkg;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import com.google.common.base.Objects;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonIgnore;
@@ -21,6 +25,49 @@ public class Configuration {
     // Name of download directory relative to packageDir
     public static final String DOWNLOAD_DIR = ".download";
 
+    // Suffix of the file which holds the state of a partial download
+    public static final String DOWNLOAD_STATE_SUFFIX = ".state";
+
+    // Suffix of the file locked while a package is installed or uninstalled
+    public static final String LOCK_SUFFIX = ".lock";
+
+    // Name of download cache directory relative to the download directory
+    public static final String DOWNLOAD_CACHE_DIR = ".cache";
+
+    // Name of content store directory relative to packageDir
+    public static final String CONTENT_STORE_DIR = ".store";
+
+    // Name of the index of installed packages relative to packageDir
+    public static final String INDEX_FILE = ".index";
+
+    // Name of the package usage directory relative to packageDir
+    public static final String USAGE_DIR = ".usage";
+
+    // Name of the directory of verify stat caches relative to packageDir
+    public static final String STAT_CACHE_DIR = ".stat";
+
+    // Suffix of the stat cache file of a package
+    public static final String STAT_CACHE_SUFFIX = ".stat";
+
+    // Name of the directory of lazy install archives relative to packageDir
+    public static final String LAZY_DIR = ".lazy";
+
+    // Suffix of the kept package ZIP file of a lazy install
+    public static final String LAZY_ARCHIVE_SUFFIX = ".zip";
+
+    // Suffix of the list of files a lazy install has not extracted yet
+    public static final String LAZY_INDEX_SUFFIX = ".pending";
+
+    // Defaults for the tuning parameters
+    public static final int DEFAULT_MAX_CONCURRENT_DOWNLOADS = 3;
+    public static final int DEFAULT_MAX_CONCURRENT_UNPACKS = 2;
+    public static final int DEFAULT_DOWNLOAD_SEGMENTS = 1;
+    public static final long DEFAULT_MIN_SEGMENT_SIZE = 16 * 1024 * 1024;
+    public static final int DEFAULT_UNPACK_THREADS = Math.min(8, Runtime.getRuntime().availableProcessors());
+    public static final int DEFAULT_JOB_IO_THREADS = 16;
+    public static final int DEFAULT_JOB_LOG_FILES = 5;
+    public static final long DEFAULT_DOWNLOAD_CACHE_SIZE = 1024L * 1024 * 1024;
+
     private String packageDir;
     private String downloadDir;
     private String packageBaseUrl;
@@ -28,6 +75,24 @@ public class Configuration {
     private String password;
     private String runtimeBaseDir;
 
+    // Tuning parameters.  These are optional in the JSON config.
+    private int maxConcurrentDownloads = DEFAULT_MAX_CONCURRENT_DOWNLOADS;
+    private int maxConcurrentUnpacks = DEFAULT_MAX_CONCURRENT_UNPACKS;
+    private int downloadSegments = DEFAULT_DOWNLOAD_SEGMENTS;
+    private long minSegmentSize = DEFAULT_MIN_SEGMENT_SIZE;
+    private int unpackThreads = DEFAULT_UNPACK_THREADS;
+    private boolean streamingInstall = false;
+    private boolean keepDownloads = true;
+    private long downloadCacheSize = DEFAULT_DOWNLOAD_CACHE_SIZE;
+    private boolean dedupInstall = false;
+    private boolean deltaInstall = false;
+    private long diskBudget = 0;
+    private boolean durableInstall = false;
+    private List<String> eagerPatterns = Collections.emptyList();
+    private int jobIoThreads = DEFAULT_JOB_IO_THREADS;
+    private long jobLogSize = 0;
+    private int jobLogFiles = DEFAULT_JOB_LOG_FILES;
+
     /**
      * Constructor for package manager configuration.
      *
@@ -92,11 +157,305 @@ public class Configuration {
         return downloadDir;
     }
 
+    /**
+     * @return the directory where downloaded packages are cached.
+     */
+    @JsonIgnore // derived property
+    public String getDownloadCacheDir() {
+        return downloadDir + File.separatorChar + DOWNLOAD_CACHE_DIR;
+    }
+
+    /**
+     * @return the directory of the content store which installed
+     *   files are linked from in dedup install mode.
+     */
+    @JsonIgnore // derived property
+    public String getContentStoreDir() {
+        return packageDir + (packageDir.endsWith("/") ? "" : "/") + CONTENT_STORE_DIR;
+    }
+
+    /**
+     * @return the lock file of the content store, which installs
+     *   using the store hold shared and garbage collection holds
+     *   exclusively.
+     */
+    @JsonIgnore // derived property
+    public String getContentStoreLockFilename() {
+        return getContentStoreDir() + "/" + LOCK_SUFFIX;
+    }
+
+    /**
+     * @return the directory where package start and stop times are
+     *   recorded.
+     */
+    @JsonIgnore // derived property
+    public String getUsageDir() {
+        return packageDir + (packageDir.endsWith("/") ? "" : "/") + USAGE_DIR;
+    }
+
+    /**
+     * @return the file holding the index of installed packages.
+     */
+    @JsonIgnore // derived property
+    public String getIndexFilename() {
+        return packageDir + (packageDir.endsWith("/") ? "" : "/") + INDEX_FILE;
+    }
+
     /**
      * @return the runtime directory to run packages in
      */
     public String getRuntimeBaseDir() { return runtimeBaseDir; }
 
+    /**
+     * @return the maximum number of packages downloaded concurrently
+     *   during a batch install.
+     */
+    public int getMaxConcurrentDownloads() {
+        return maxConcurrentDownloads;
+    }
+
+    public void setMaxConcurrentDownloads(int maxConcurrentDownloads) {
+        checkArgument(maxConcurrentDownloads > 0, "maxConcurrentDownloads must be positive");
+        this.maxConcurrentDownloads = maxConcurrentDownloads;
+    }
+
+    /**
+     * @return the maximum number of packages unpacked concurrently
+     *   during a batch install.
+     */
+    public int getMaxConcurrentUnpacks() {
+        return maxConcurrentUnpacks;
+    }
+
+    public void setMaxConcurrentUnpacks(int maxConcurrentUnpacks) {
+        checkArgument(maxConcurrentUnpacks > 0, "maxConcurrentUnpacks must be positive");
+        this.maxConcurrentUnpacks = maxConcurrentUnpacks;
+    }
+
+    /**
+     * @return the maximum number of segments, each fetched over its
+     *   own connection, a single download is split into.  1 means
+     *   segmented downloads are disabled.
+     */
+    public int getDownloadSegments() {
+        return downloadSegments;
+    }
+
+    public void setDownloadSegments(int downloadSegments) {
+        checkArgument(downloadSegments > 0, "downloadSegments must be positive");
+        this.downloadSegments = downloadSegments;
+    }
+
+    /**
+     * @return the minimum size in bytes of a download segment.  Files
+     *   smaller than two segments are downloaded over one connection.
+     */
+    public long getMinSegmentSize() {
+        return minSegmentSize;
+    }
+
+    public void setMinSegmentSize(long minSegmentSize) {
+        checkArgument(minSegmentSize > 0, "minSegmentSize must be positive");
+        this.minSegmentSize = minSegmentSize;
+    }
+
+    /**
+     * @return the number of threads used to extract the entries of a
+     *   single package.  Small packages are always extracted on one
+     *   thread.
+     */
+    public int getUnpackThreads() {
+        return unpackThreads;
+    }
+
+    public void setUnpackThreads(int unpackThreads) {
+        checkArgument(unpackThreads > 0, "unpackThreads must be positive");
+        this.unpackThreads = unpackThreads;
+    }
+
+    /**
+     * @return {@code true} if packages should be extracted while they
+     *   are being downloaded rather than after the download completes.
+     */
+    public boolean isStreamingInstall() {
+        return streamingInstall;
+    }
+
+    public void setStreamingInstall(boolean streamingInstall) {
+        this.streamingInstall = streamingInstall;
+    }
+
+    /**
+     * @return {@code true} if downloaded package files should be kept
+     *   in the download directory after the package is installed.
+     */
+    public boolean isKeepDownloads() {
+        return keepDownloads;
+    }
+
+    public void setKeepDownloads(boolean keepDownloads) {
+        this.keepDownloads = keepDownloads;
+    }
+
+    /**
+     * @return the maximum number of bytes kept in the download cache.
+     *   The least recently used packages are evicted when the cache
+     *   grows beyond this.  0 disables the cache.
+     */
+    public long getDownloadCacheSize() {
+        return downloadCacheSize;
+    }
+
+    public void setDownloadCacheSize(long downloadCacheSize) {
+        checkArgument(downloadCacheSize >= 0, "downloadCacheSize must not be negative");
+        this.downloadCacheSize = downloadCacheSize;
+    }
+
+    /**
+     * @return {@code true} if files of installed packages should be
+     *   hard links into the content store so identical files are only
+     *   stored once.
+     */
+    public boolean isDedupInstall() {
+        return dedupInstall;
+    }
+
+    public void setDedupInstall(boolean dedupInstall) {
+        this.dedupInstall = dedupInstall;
+    }
+
+    /**
+     * @return {@code true} if a new version of a package should be
+     *   installed by downloading only the files which differ from an
+     *   installed version of the same package.
+     */
+    public boolean isDeltaInstall() {
+        return deltaInstall;
+    }
+
+    public void setDeltaInstall(boolean deltaInstall) {
+        this.deltaInstall = deltaInstall;
+    }
+
+    /**
+     * @return the maximum number of bytes installed packages may take
+     *   up.  The least recently used versions which are not running
+     *   are uninstalled to make room for new ones.  0 means no limit.
+     */
+    public long getDiskBudget() {
+        return diskBudget;
+    }
+
+    public void setDiskBudget(long diskBudget) {
+        checkArgument(diskBudget >= 0, "diskBudget must not be negative");
+        this.diskBudget = diskBudget;
+    }
+
+    /**
+     * @return {@code true} if installed packages should be flushed to
+     *   disk before they are moved into place, so that a package which
+     *   is installed stays installed, with all its files, after a crash
+     *   or power loss.
+     */
+    public boolean isDurableInstall() {
+        return durableInstall;
+    }
+
+    public void setDurableInstall(boolean durableInstall) {
+        this.durableInstall = durableInstall;
+    }
+
+    /**
+     * @return the glob patterns of the files a lazy install extracts
+     *   up front.  The rest are left in the package ZIP file until they
+     *   are materialized.  Empty means lazy install is off and every
+     *   file is extracted.
+     */
+    public List<String> getEagerPatterns() {
+        return eagerPatterns;
+    }
+
+    public void setEagerPatterns(List<String> eagerPatterns) {
+        this.eagerPatterns = Collections.unmodifiableList(new ArrayList<>(checkNotNull(eagerPatterns)));
+    }
+
+    /**
+     * @return {@code true} if packages are installed lazily, see
+     *   {@link #getEagerPatterns}.
+     */
+    @JsonIgnore // derived property
+    public boolean isLazyInstall() {
+        return ! eagerPatterns.isEmpty();
+    }
+
+    /**
+     * @return the number of threads a job runner uses to read the
+     *   output of the scripts it runs.  Each running script needs two
+     *   while its output is open.  The output of scripts beyond that
+     *   waits in the pipe until a thread is free.
+     */
+    public int getJobIoThreads() {
+        return jobIoThreads;
+    }
+
+    public void setJobIoThreads(int jobIoThreads) {
+        checkArgument(jobIoThreads > 0, "jobIoThreads must be positive");
+        this.jobIoThreads = jobIoThreads;
+    }
+
+    /**
+     * @return the size in bytes at which the log files the output of
+     *   jobs is written to are rotated.  If 0 the output is kept in
+     *   memory instead of written to log files.
+     */
+    public long getJobLogSize() {
+        return jobLogSize;
+    }
+
+    public void setJobLogSize(long jobLogSize) {
+        checkArgument(jobLogSize >= 0, "jobLogSize must not be negative");
+        this.jobLogSize = jobLogSize;
+    }
+
+    /**
+     * @return the number of log files kept for each output stream of
+     *   a script, including the one being written.
+     */
+    public int getJobLogFiles() {
+        return jobLogFiles;
+    }
+
+    public void setJobLogFiles(int jobLogFiles) {
+        checkArgument(jobLogFiles > 0, "jobLogFiles must be positive");
+        this.jobLogFiles = jobLogFiles;
+    }
+
+    /**
+     * Copy the tuning parameters from another configuration.  Used
+     * when overriding the core parameters from the command line so
+     * that the tuning from the configuration file is not lost.
+     *
+     * @param other the configuration we copy the tuning parameters from.
+     */
+    public void copyTuning(Configuration other) {
+        maxConcurrentDownloads = other.maxConcurrentDownloads;
+        maxConcurrentUnpacks = other.maxConcurrentUnpacks;
+        downloadSegments = other.downloadSegments;
+        minSegmentSize = other.minSegmentSize;
+        unpackThreads = other.unpackThreads;
+        streamingInstall = other.streamingInstall;
+        keepDownloads = other.keepDownloads;
+        downloadCacheSize = other.downloadCacheSize;
+        dedupInstall = other.dedupInstall;
+        deltaInstall = other.deltaInstall;
+        diskBudget = other.diskBudget;
+        durableInstall = other.durableInstall;
+        eagerPatterns = other.eagerPatterns;
+        jobIoThreads = other.jobIoThreads;
+        jobLogSize = other.jobLogSize;
+        jobLogFiles = other.jobLogFiles;
+    }
+
     /**
      * Destination file path inside the download directory for the coordinate.
      *
@@ -111,6 +470,71 @@ public class Configuration {
             + coordinate.getFilename();
     }
 
+    /**
+     * Path of the file holding the state of a partial download of
+     * the coordinate.  Lives next to the download file.
+     *
+     * @param coordinate the package coordinate.
+     * @return the download state file name for the package.
+     */
+    public String downloadStateFilenameForCoordinate(PackageCoordinate coordinate) {
+        return downloadFilenameForCoordinate(coordinate) + DOWNLOAD_STATE_SUFFIX;
+    }
+
+    /**
+     * Path of the lock file which serializes installs and uninstalls
+     * of the coordinate across processes.  Lives next to the download
+     * file.
+     *
+     * @param coordinate the package coordinate.
+     * @return the lock file name for the package.
+     */
+    public String lockFilenameForCoordinate(PackageCoordinate coordinate) {
+        return downloadFilenameForCoordinate(coordinate) + LOCK_SUFFIX;
+    }
+
+    /**
+     * Path of the stat cache used to verify the installed package of
+     * the coordinate incrementally.
+     *
+     * @param coordinate the package coordinate.
+     * @return the stat cache file name for the package.
+     */
+    public String statCacheFilenameForCoordinate(PackageCoordinate coordinate) {
+        return packageDir + (packageDir.endsWith("/") ? "" : "/") + STAT_CACHE_DIR
+            + File.separatorChar
+            + coordinate.getPathFragment()
+            + STAT_CACHE_SUFFIX;
+    }
+
+    /**
+     * Path of the package ZIP file kept by a lazy install of the
+     * coordinate.
+     *
+     * @param coordinate the package coordinate.
+     * @return the archive file name for the package.
+     */
+    public String lazyArchiveFilenameForCoordinate(PackageCoordinate coordinate) {
+        return packageDir + (packageDir.endsWith("/") ? "" : "/") + LAZY_DIR
+            + File.separatorChar
+            + coordinate.getPathFragment()
+            + LAZY_ARCHIVE_SUFFIX;
+    }
+
+    /**
+     * Path of the list of files a lazy install of the coordinate has
+     * not extracted yet.  Lives next to the archive.
+     *
+     * @param coordinate the package coordinate.
+     * @return the index file name for the package.
+     */
+    public String lazyIndexFilenameForCoordinate(PackageCoordinate coordinate) {
+        return packageDir + (packageDir.endsWith("/") ? "" : "/") + LAZY_DIR
+            + File.separatorChar
+            + coordinate.getPathFragment()
+            + LAZY_INDEX_SUFFIX;
+    }
+
     /**
      * Given a coordinate: calculate the directory
      */
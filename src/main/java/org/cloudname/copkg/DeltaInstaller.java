@@ -0,0 +1,546 @@
+package org.cloudname.copkg;
+
+import org.cloudname.copkg.util.ContentStore;
+import org.cloudname.copkg.util.Manifest;
+import org.cloudname.copkg.util.ZipDirectory;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+
+import com.ning.http.client.AsyncHttpClient;
+import com.ning.http.client.Response;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Installs a new version of a package by downloading only the
+ * entries which differ from a version that is already installed.
+ *
+ * <p>The central directory at the end of the ZIP file records the
+ * CRC32 and size of every entry.  We fetch it with ranged requests
+ * and compare it to the files of the installed version.  Files with
+ * the same name, size and CRC32 are copied from the installed
+ * version (or linked in dedup install mode).  For the rest we fetch
+ * just the byte ranges holding their local headers and compressed
+ * data, and inflate them ourselves.
+ *
+ * <p>The ranges are written at their own offsets into a sparse
+ * scratch file of the same length as the ZIP file, so the offsets
+ * from the central directory can be used as they are.
+ *
+ * <p>Every ranged request is conditional on the ZIP file not having
+ * changed (If-Range).  If anything is not to our liking, such as a
+ * server without range support or a ZIP64 file, {@link #install}
+ * says so and the caller falls back to a regular install.
+ */
+class DeltaInstaller {
+    private static final Logger log = Logger.getLogger(DeltaInstaller.class.getName());
+
+    private static final int BUFFER_SIZE = (16 * 1024);
+
+    // Changed entries closer than this are fetched in one request
+    private static final long MAX_RANGE_GAP = (64 * 1024);
+
+    // If more than this fraction of the file has changed we might as
+    // well download all of it.
+    private static final double MAX_CHANGED_FRACTION = 0.5;
+
+    private final AsyncHttpClient client;
+    private final String url;
+    private final File baseDir;
+    private final File scratchFile;
+    private final File targetDirectory;
+    private ContentStore contentStore;
+
+    private String validator;
+    private long length;
+    private List<ZipDirectory.Entry> entries;
+
+    /**
+     * @param client the HTTP client
+     * @param url the URL of the ZIP file of the new version
+     * @param baseDir the directory of the installed version
+     * @param scratchFile the file ranges of the ZIP file are
+     *   downloaded into.  Deleted when we are done.
+     * @param targetDirectory the directory the new version is
+     *   installed into.
+     */
+    public DeltaInstaller(AsyncHttpClient client,
+                          String url,
+                          File baseDir,
+                          File scratchFile,
+                          File targetDirectory) {
+        this.client = client;
+        this.url = url;
+        this.baseDir = baseDir;
+        this.scratchFile = scratchFile;
+        this.targetDirectory = targetDirectory;
+    }
+
+    /**
+     * Link unchanged files from the installed version and put the
+     * changed files in a content store, as in dedup install mode.
+     *
+     * @param contentStore the content store or {@code null} to copy
+     *   unchanged files and write changed files directly.
+     */
+    public DeltaInstaller setContentStore(ContentStore contentStore) {
+        this.contentStore = contentStore;
+        return this;
+    }
+
+    /**
+     * @return the entries of the ZIP file of the new version once it
+     *   has been installed.
+     */
+    public List<ZipDirectory.Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Install the new version into the target directory.
+     *
+     * @return {@code true} if the new version was installed, {@code
+     *   false} if a delta install is not possible or not worth it.  In
+     *   that case the target directory may hold a partial install.
+     */
+    public boolean install() throws Exception {
+        try {
+            return doInstall();
+        } finally {
+            scratchFile.delete();
+        }
+    }
+
+    private boolean doInstall() throws Exception {
+        final Response head;
+        try {
+            head = client.prepareHead(url).execute().get();
+        } catch (ExecutionException e) {
+            log.fine("HEAD " + url + " failed: " + e.getCause());
+            return false;
+        }
+
+        if (head.getStatusCode() != 200 || ! "bytes".equals(head.getHeader("Accept-Ranges"))) {
+            return false;
+        }
+
+        try {
+            length = Long.parseLong(head.getHeader("Content-Length"));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+
+        // Without a validator the ranges might come from different
+        // versions of the file.
+        validator = new DownloadState(url,
+                                      head.getHeader("ETag"),
+                                      head.getHeader("Last-Modified"),
+                                      length).getValidator();
+        if (validator == null) {
+            return false;
+        }
+
+        scratchFile.getParentFile().mkdirs();
+        scratchFile.delete();
+        final RandomAccessFile file = new RandomAccessFile(scratchFile, "rw");
+        try {
+            file.setLength(length);
+            return installFrom(file.getChannel(), length);
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Install from a scratch file which has been sized to the length
+     * of the ZIP file.
+     */
+    boolean installFrom(FileChannel channel, long length) throws Exception {
+        // Fetch the central directory
+        final long tailOffset = Math.max(0, length - ZipDirectory.MAX_TAIL_SIZE);
+        fetch(tailOffset, length - 1);
+
+        final ByteBuffer tail = ByteBuffer.allocate((int) (length - tailOffset));
+        while (tail.hasRemaining()) {
+            if (channel.read(tail, tailOffset + tail.position()) < 0) {
+                throw new IOException("Unexpected end of " + scratchFile.getAbsolutePath());
+            }
+        }
+        tail.flip();
+
+        final ZipDirectory.Location location;
+        try {
+            location = ZipDirectory.locate(tail);
+        } catch (IOException e) {
+            log.fine("No delta install of " + url + ": " + e.getMessage());
+            return false;
+        }
+
+        if (location.getOffset() < tailOffset) {
+            fetch(location.getOffset(), tailOffset - 1);
+        }
+
+        entries = ZipDirectory.read(channel);
+
+        // Find the entries we do not have.  The data of an entry ends
+        // where the next entry, or the central directory, begins.
+        final List<ZipDirectory.Entry> byOffset = new ArrayList<>(entries);
+        Collections.sort(byOffset, new Comparator<ZipDirectory.Entry>() {
+            @Override
+            public int compare(ZipDirectory.Entry a, ZipDirectory.Entry b) {
+                return Long.compare(a.getLocalHeaderOffset(), b.getLocalHeaderOffset());
+            }
+        });
+
+        // The SHA-256 digests of the unchanged files are computed in
+        // the same pass as their CRC32, so they can be checked
+        // against the manifest of the new version like the rest.
+        final Set<String> changed = new HashSet<>();
+        final Map<String, String> digests = new HashMap<>();
+        final List<long[]> ranges = new ArrayList<>();
+        long changedBytes = 0;
+        for (int i = 0; i < byOffset.size(); i++) {
+            final ZipDirectory.Entry entry = byOffset.get(i);
+            if (entry.isDirectory()) {
+                continue;
+            }
+            final String unchangedDigest = unchangedDigest(entry);
+            if (unchangedDigest != null) {
+                digests.put(entry.getName(), unchangedDigest);
+                continue;
+            }
+
+            if (entry.getMethod() != ZipDirectory.STORED && entry.getMethod() != ZipDirectory.DEFLATED) {
+                log.fine("No delta install of " + url + ": unsupported compression method in " + entry.getName());
+                return false;
+            }
+
+            final long first = entry.getLocalHeaderOffset();
+            final long end = (i + 1 < byOffset.size())
+                ? byOffset.get(i + 1).getLocalHeaderOffset()
+                : location.getOffset();
+
+            changed.add(entry.getName());
+            changedBytes += end - first;
+
+            final long[] last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+            if (last != null && first - last[1] <= MAX_RANGE_GAP) {
+                last[1] = end;
+            } else {
+                ranges.add(new long[] {first, end});
+            }
+        }
+
+        if (changedBytes > length * MAX_CHANGED_FRACTION) {
+            log.info("No delta install of " + url + ": " + changedBytes + " of " + length + " bytes changed");
+            return false;
+        }
+
+        log.info("Delta install of " + url + ": fetching " + changed.size() + " of " + entries.size()
+                 + " entries (" + changedBytes + " of " + length + " bytes) in " + ranges.size() + " requests");
+
+        for (final long[] range : ranges) {
+            fetch(range[0], range[1] - 1);
+        }
+
+        // Create the directories, then the files.  Directory times go
+        // last, deepest first, since creating files changes them.
+        final List<ZipDirectory.Entry> directories = new ArrayList<>();
+        for (final ZipDirectory.Entry entry : entries) {
+            final File destinationFile = new File(targetDirectory, entry.getName());
+            makeDirectory(entry.isDirectory() ? destinationFile : destinationFile.getParentFile());
+            if (entry.isDirectory()) {
+                directories.add(entry);
+            }
+        }
+
+        final List<String> names = new ArrayList<>();
+        for (final ZipDirectory.Entry entry : entries) {
+            if (entry.isDirectory()) {
+                continue;
+            }
+            names.add(entry.getName());
+            if (changed.contains(entry.getName())) {
+                digests.put(entry.getName(), extract(channel, entry));
+            } else {
+                copyUnchanged(entry, digests.get(entry.getName()));
+            }
+        }
+
+        // Every file, fetched or copied from the installed version,
+        // is checked against the manifest of the new version.  The
+        // CRC32 which picked the unchanged files is easily forged.
+        final File manifestFile = new File(targetDirectory, Manifest.NAME);
+        if (manifestFile.isFile()) {
+            final Manifest manifest = Manifest.read(manifestFile);
+            manifest.checkNames(names);
+            for (final Map.Entry<String, String> digest : digests.entrySet()) {
+                if (! Manifest.NAME.equals(digest.getKey())) {
+                    manifest.check(digest.getKey(), digest.getValue());
+                }
+            }
+        }
+
+        Collections.sort(directories, new Comparator<ZipDirectory.Entry>() {
+            @Override
+            public int compare(ZipDirectory.Entry a, ZipDirectory.Entry b) {
+                return b.getName().length() - a.getName().length();
+            }
+        });
+        for (final ZipDirectory.Entry entry : directories) {
+            new File(targetDirectory, entry.getName()).setLastModified(entry.getTime());
+        }
+        return true;
+    }
+
+    /**
+     * Fetch a byte range of the ZIP file into the scratch file.
+     * Overridden in tests.
+     */
+    void fetch(long first, long last) throws Exception {
+        final DownloadHandler handler = DownloadHandler.forSegment(url, scratchFile, first, last, length);
+        client.prepareGet(url)
+            .addHeader("Range", "bytes=" + first + "-" + last)
+            .addHeader("If-Range", validator)
+            .execute(handler)
+            .get();
+
+        if (handler.getStatusCode() != 206 || ! handler.isComplete()) {
+            throw new IOException("Ranged request for bytes " + first + "-" + last + " of " + url
+                                  + " failed. Status = " + handler.getStatusCode());
+        }
+    }
+
+    /**
+     * @return the hex SHA-256 digest of the file of the installed
+     *   version if it has the same name, size and CRC32 as the entry,
+     *   otherwise {@code null}.
+     */
+    private String unchangedDigest(ZipDirectory.Entry entry) throws IOException {
+        final File baseFile = new File(baseDir, entry.getName());
+        if (! baseFile.isFile() || baseFile.length() != entry.getSize()) {
+            return null;
+        }
+
+        final CRC32 crc = new CRC32();
+        final Hasher hasher = Hashing.sha256().newHasher();
+        final byte buffer[] = new byte[BUFFER_SIZE];
+        final InputStream in = new FileInputStream(baseFile);
+        try {
+            int numBytes;
+            while ((numBytes = in.read(buffer, 0, BUFFER_SIZE)) != -1) {
+                crc.update(buffer, 0, numBytes);
+                hasher.putBytes(buffer, 0, numBytes);
+            }
+        } finally {
+            in.close();
+        }
+        return (crc.getValue() == entry.getCrc()) ? hasher.hash().toString() : null;
+    }
+
+    /**
+     * Copy a file from the installed version, or in dedup install
+     * mode link it from the content store.
+     *
+     * <p>The blob in the store is linked rather than the installed
+     * file, which is only a link into the store if the installed
+     * version was itself installed in dedup mode.  Linking an
+     * ordinary file would make the two versions share it.  If the
+     * store does not have the content the file is copied into it.
+     *
+     * @param sha256 the hex SHA-256 digest of the installed file.
+     *   The copy must have the same digest.
+     */
+    private void copyUnchanged(ZipDirectory.Entry entry, String sha256) throws IOException {
+        final File baseFile = new File(baseDir, entry.getName());
+        final File destinationFile = new File(targetDirectory, entry.getName());
+        final boolean executable = isExecutable(entry);
+
+        if (contentStore != null && contentStore.link(sha256, executable, destinationFile)) {
+            log.fine(" - Linked " + destinationFile.getAbsolutePath());
+            return;
+        }
+
+        final File outputFile = (contentStore == null) ? destinationFile : contentStore.newTempFile();
+        try {
+            if (! copy(baseFile, outputFile).equals(sha256)) {
+                throw new IOException(baseFile.getAbsolutePath() + " changed while installing");
+            }
+
+            if (contentStore != null) {
+                contentStore.add(outputFile, sha256, executable, entry.getTime());
+                if (! contentStore.link(sha256, executable, destinationFile)) {
+                    throw new IOException("Unable to link " + destinationFile.getAbsolutePath() + " from content store");
+                }
+            }
+        } finally {
+            if (contentStore != null) {
+                outputFile.delete();
+            }
+        }
+
+        if (contentStore == null) {
+            destinationFile.setExecutable(executable);
+            destinationFile.setLastModified(entry.getTime());
+        }
+        log.fine(" - Copied " + destinationFile.getAbsolutePath());
+    }
+
+    /**
+     * Copy a file.
+     *
+     * @return the hex SHA-256 digest of what was copied.
+     */
+    private static String copy(File from, File to) throws IOException {
+        final Hasher hasher = Hashing.sha256().newHasher();
+        final byte buffer[] = new byte[BUFFER_SIZE];
+        final InputStream in = new FileInputStream(from);
+        try {
+            final OutputStream out = new FileOutputStream(to);
+            try {
+                int numBytes;
+                while ((numBytes = in.read(buffer, 0, BUFFER_SIZE)) != -1) {
+                    out.write(buffer, 0, numBytes);
+                    hasher.putBytes(buffer, 0, numBytes);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        return hasher.hash().toString();
+    }
+
+    /**
+     * Inflate a changed entry from the scratch file and verify its
+     * size and CRC32.
+     *
+     * @return the hex SHA-256 digest of the entry.
+     */
+    private String extract(FileChannel channel, ZipDirectory.Entry entry) throws IOException {
+        final File destinationFile = new File(targetDirectory, entry.getName());
+        final boolean executable = isExecutable(entry);
+
+        final File outputFile = (contentStore == null) ? destinationFile : contentStore.newTempFile();
+        final Hasher hasher = Hashing.sha256().newHasher();
+        long totalBytes = 0;
+        final String sha256;
+        // The streams are not closed since that would close the
+        // channel, so the inflater is ended explicitly to free its
+        // native memory.
+        Inflater inflater = null;
+        try {
+            channel.position(ZipDirectory.dataOffset(channel, entry));
+            InputStream in = ByteStreams.limit(Channels.newInputStream(channel), entry.getCompressedSize());
+            if (entry.getMethod() == ZipDirectory.DEFLATED) {
+                // The inflater may need a dummy byte after the data when
+                // there is no zlib header.
+                inflater = new Inflater(true);
+                in = new InflaterInputStream(new SequenceInputStream(in, new ByteArrayInputStream(new byte[1])),
+                                             inflater,
+                                             BUFFER_SIZE);
+            }
+            final CheckedInputStream checked = new CheckedInputStream(in, new CRC32());
+
+            final OutputStream out = new FileOutputStream(outputFile);
+            try {
+                final byte buffer[] = new byte[BUFFER_SIZE];
+                int numBytes;
+                while ((numBytes = checked.read(buffer, 0, BUFFER_SIZE)) != -1) {
+                    out.write(buffer, 0, numBytes);
+                    hasher.putBytes(buffer, 0, numBytes);
+                    totalBytes += numBytes;
+                }
+            } finally {
+                out.close();
+            }
+
+            if (totalBytes != entry.getSize() || checked.getChecksum().getValue() != entry.getCrc()) {
+                throw new IOException("Size or CRC32 mismatch for " + entry.getName() + " from " + url);
+            }
+
+            sha256 = hasher.hash().toString();
+            if (contentStore != null) {
+                contentStore.add(outputFile, sha256, executable, entry.getTime());
+                if (! contentStore.link(sha256, executable, destinationFile)) {
+                    throw new IOException("Unable to link " + destinationFile.getAbsolutePath() + " from content store");
+                }
+            }
+        } finally {
+            if (inflater != null) {
+                inflater.end();
+            }
+            if (contentStore != null) {
+                outputFile.delete();
+            }
+        }
+
+        if (contentStore == null) {
+            destinationFile.setExecutable(executable);
+            destinationFile.setLastModified(entry.getTime());
+        }
+        log.fine(" - Fetched " + destinationFile.getAbsolutePath() + " [" + totalBytes + "]");
+        return sha256;
+    }
+
+    private static boolean isExecutable(ZipDirectory.Entry entry) {
+        return (entry.getUnixMode() & 0100) != 0;
+    }
+
+    private static void makeDirectory(File directory) throws IOException {
+        if (! (directory.mkdirs() || directory.isDirectory())) {
+            throw new IOException("Unable to create directory: " + directory.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Compare two version strings.  Numeric parts are compared as
+     * numbers and everything else as strings, so 1.10 comes after
+     * 1.9.
+     */
+    static int compareVersions(String a, String b) {
+        final String[] as = a.split("[.-]");
+        final String[] bs = b.split("[.-]");
+        for (int i = 0; i < Math.min(as.length, bs.length); i++) {
+            int c;
+            if (as[i].matches("\\d+") && bs[i].matches("\\d+")) {
+                c = new BigInteger(as[i]).compareTo(new BigInteger(bs[i]));
+            } else {
+                c = as[i].compareTo(bs[i]);
+            }
+            if (c != 0) {
+                return c;
+            }
+        }
+        return as.length - bs.length;
+    }
+}
@@ -0,0 +1,339 @@
+package org.cloudname.copkg;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import com.google.common.base.Objects;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.logging.Logger;
+
+/**
+ * Cache of downloaded package files.  Files are stored by content
+ * hash in a blob directory, so a file served under several
+ * coordinates is only stored once.  For every coordinate an index
+ * entry records which blob holds it together with the validators
+ * (ETag and Last-Modified) it was served with, so the cached copy
+ * can be revalidated with a conditional GET.
+ *
+ * <pre>
+ *   cacheDir/index/com/example/artifact/1.2.3.json
+ *   cacheDir/blobs/&lt;sha256&gt;
+ * </pre>
+ *
+ * <p>Blobs are handed out as hard links where the filesystem allows
+ * it, so callers must replace rather than modify the files they get.
+ * The modification time of a blob is its last use; when the blobs
+ * take up more than the configured size the least recently used
+ * ones are deleted.
+ */
+public class DownloadCache {
+    private static final Logger log = Logger.getLogger(DownloadCache.class.getName());
+
+    private static final String INDEX_DIR = "index";
+    private static final String BLOB_DIR = "blobs";
+    private static final String INDEX_SUFFIX = ".json";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private final File indexDir;
+    private final File blobDir;
+    private final long maxSize;
+
+    /**
+     * An index entry of the cache.
+     */
+    public static final class Entry {
+        private final String url;
+        private final String etag;
+        private final String lastModified;
+        private final String sha256;
+        private final long size;
+
+        /**
+         * @param url the URL the file was downloaded from
+         * @param etag the ETag header of the response or {@code null}
+         * @param lastModified the Last-Modified header of the response or {@code null}
+         * @param sha256 the hex SHA-256 hash of the file
+         * @param size the size of the file
+         */
+        @JsonCreator
+        public Entry(@JsonProperty("url") String url,
+                     @JsonProperty("etag") String etag,
+                     @JsonProperty("lastModified") String lastModified,
+                     @JsonProperty("sha256") String sha256,
+                     @JsonProperty("size") long size) {
+            this.url = checkNotNull(url);
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.sha256 = checkNotNull(sha256);
+            this.size = size;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public String getEtag() {
+            return etag;
+        }
+
+        public String getLastModified() {
+            return lastModified;
+        }
+
+        public String getSha256() {
+            return sha256;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        @Override
+        public String toString() {
+            return Objects.toStringHelper(this)
+                .add("url", url)
+                .add("etag", etag)
+                .add("lastModified", lastModified)
+                .add("sha256", sha256)
+                .add("size", size)
+                .toString();
+        }
+    }
+
+    /**
+     * @param cacheDir the directory the cache lives in.
+     * @param maxSize the maximum number of bytes of blobs we keep.
+     *   0 disables the cache.
+     */
+    public DownloadCache(File cacheDir, long maxSize) {
+        this.indexDir = new File(cacheDir, INDEX_DIR);
+        this.blobDir = new File(cacheDir, BLOB_DIR);
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @return {@code true} unless the cache has been disabled.
+     */
+    public boolean isEnabled() {
+        return maxSize > 0;
+    }
+
+    /**
+     * Look up the cached copy of a package.
+     *
+     * @param coordinate the coordinate of the package
+     * @param url the URL the package is downloaded from.  Entries
+     *   made for some other URL are ignored.
+     * @return the cache entry or {@code null} if we have no usable
+     *   copy of the package.
+     */
+    public Entry lookup(PackageCoordinate coordinate, String url) {
+        if (! isEnabled()) {
+            return null;
+        }
+
+        final File indexFile = indexFile(coordinate);
+        if (! indexFile.exists()) {
+            return null;
+        }
+
+        final Entry entry;
+        try {
+            entry = new ObjectMapper().readValue(indexFile, Entry.class);
+        } catch (IOException e) {
+            log.warning("Ignoring unreadable cache entry " + indexFile.getAbsolutePath() + ": " + e.getMessage());
+            return null;
+        }
+
+        if (! entry.getUrl().equals(url)) {
+            return null;
+        }
+
+        // The blob may have been evicted
+        final File blob = blobFile(entry.getSha256());
+        if (! blob.isFile() || blob.length() != entry.getSize()) {
+            log.fine("Cached copy of " + coordinate + " is gone");
+            indexFile.delete();
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Make the cached copy of a package available as a file.  Any
+     * existing file is replaced.
+     *
+     * @param entry the entry we got from {@link #lookup}
+     * @param destinationFile the file we want the package in
+     * @return {@code true} if the file is in place, {@code false} if
+     *   the blob was evicted in the meantime.
+     */
+    public boolean copyTo(Entry entry, File destinationFile) {
+        final File blob = blobFile(entry.getSha256());
+        try {
+            destinationFile.delete();
+            linkOrCopy(blob, destinationFile);
+        } catch (IOException e) {
+            log.fine("Unable to use cached copy " + blob.getAbsolutePath() + ": " + e.getMessage());
+            destinationFile.delete();
+            return false;
+        }
+
+        if (destinationFile.length() != entry.getSize()) {
+            destinationFile.delete();
+            return false;
+        }
+
+        blob.setLastModified(System.currentTimeMillis());
+        return true;
+    }
+
+    /**
+     * Add a downloaded package to the cache and evict old blobs if
+     * the cache has grown too big.  Files without validators are not
+     * cached since there would be no way to tell if they are stale.
+     *
+     * @param coordinate the coordinate of the package
+     * @param state the URL and validators the file was downloaded with
+     * @param file the complete download file
+     * @return the new cache entry or {@code null} if the file was not
+     *   cached.
+     */
+    public Entry put(PackageCoordinate coordinate, DownloadState state, File file) throws IOException {
+        if (! isEnabled() || (state.getEtag() == null && state.getLastModified() == null)) {
+            return null;
+        }
+
+        final long size = file.length();
+        if (size > maxSize) {
+            log.fine("Not caching " + file.getAbsolutePath() + " since it is larger than the cache");
+            return null;
+        }
+
+        final String sha256 = Files.hash(file, Hashing.sha256()).toString();
+        final File blob = blobFile(sha256);
+        if (! blob.isFile() || blob.length() != size) {
+            // Link or copy to a temporary name first so other
+            // threads and processes never see a partial blob.
+            blobDir.mkdirs();
+            final File tmpFile = File.createTempFile(sha256, TMP_SUFFIX, blobDir);
+            tmpFile.delete();
+            linkOrCopy(file, tmpFile);
+            if (! tmpFile.renameTo(blob)) {
+                tmpFile.delete();
+                throw new IOException("Unable to rename " + tmpFile.getAbsolutePath()
+                                      + " to " + blob.getAbsolutePath());
+            }
+        }
+        blob.setLastModified(System.currentTimeMillis());
+
+        final Entry entry = new Entry(state.getUrl(), state.getEtag(), state.getLastModified(), sha256, size);
+        final File indexFile = indexFile(coordinate);
+        final File tmpFile = new File(indexFile.getAbsolutePath() + TMP_SUFFIX);
+        indexFile.getParentFile().mkdirs();
+        new ObjectMapper().writeValue(tmpFile, entry);
+        if (! tmpFile.renameTo(indexFile)) {
+            throw new IOException("Unable to rename " + tmpFile.getAbsolutePath()
+                                  + " to " + indexFile.getAbsolutePath());
+        }
+        log.fine("Cached " + coordinate + " as " + blob.getAbsolutePath());
+
+        evict();
+        return entry;
+    }
+
+    /**
+     * @return the number of bytes the blobs of the cache take up.
+     */
+    public long size() {
+        long total = 0;
+        for (File blob : listBlobs()) {
+            total += blob.length();
+        }
+        return total;
+    }
+
+    /**
+     * Delete least recently used blobs until the cache is within its
+     * size limit.  Index entries of deleted blobs are cleaned up the
+     * next time they are looked up.
+     *
+     * @return the number of bytes freed.
+     */
+    public synchronized long evict() {
+        final File[] blobs = listBlobs();
+        long total = 0;
+        for (File blob : blobs) {
+            total += blob.length();
+        }
+        if (total <= maxSize) {
+            return 0;
+        }
+
+        Arrays.sort(blobs, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+
+        long freed = 0;
+        for (File blob : blobs) {
+            if (total <= maxSize) {
+                break;
+            }
+
+            final long length = blob.length();
+            if (! blob.delete()) {
+                log.warning("Failed to evict " + blob.getAbsolutePath());
+                continue;
+            }
+            log.fine("Evicted " + blob.getAbsolutePath() + " [" + length + "]");
+            total -= length;
+            freed += length;
+        }
+        return freed;
+    }
+
+    private File[] listBlobs() {
+        final File[] blobs = blobDir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File f) {
+                return f.isFile() && ! f.getName().endsWith(TMP_SUFFIX);
+            }
+        });
+        return (blobs == null) ? new File[0] : blobs;
+    }
+
+    private File indexFile(PackageCoordinate coordinate) {
+        return new File(indexDir, coordinate.getPathFragment() + INDEX_SUFFIX);
+    }
+
+    private File blobFile(String sha256) {
+        return new File(blobDir, sha256);
+    }
+
+    /**
+     * Hard link a file to a new name, falling back to copying if the
+     * filesystem does not support hard links.
+     */
+    private static void linkOrCopy(File from, File to) throws IOException {
+        try {
+            java.nio.file.Files.createLink(to.toPath(), from.toPath());
+        } catch (UnsupportedOperationException | java.nio.file.FileSystemException e) {
+            if (! from.exists()) {
+                throw e;
+            }
+            Files.copy(from, to);
+        }
+    }
+}
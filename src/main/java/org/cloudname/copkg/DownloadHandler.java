@@ -0,0 +1,305 @@
+package org.cloudname.copkg;
+
+import com.ning.http.client.AsyncHandler;
+import com.ning.http.client.FluentCaseInsensitiveStringsMap;
+import com.ning.http.client.HttpResponseBodyPart;
+import com.ning.http.client.HttpResponseHeaders;
+import com.ning.http.client.HttpResponseStatus;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Response handler which writes the body of a (possibly ranged) GET
+ * request into the download file.
+ *
+ * <ul>
+ *   <li> 206 - the body is written from the requested offset,
+ *        appending to the partial file.
+ *   <li> 200 - the server ignored the range (or none was asked for)
+ *        so the file is truncated and written from the start.
+ *   <li> 416 - the range was not satisfiable; the full length from
+ *        the Content-Range header is recorded so the caller can
+ *        decide whether the partial file is in fact complete.
+ * </ul>
+ *
+ * Any other status leaves the download file untouched and the body
+ * is discarded.  The validators and length of a 200/206 response are
+ * saved to the state file before the first byte of the body is
+ * written so an interrupted download can be resumed.
+ *
+ * <p>A handler made with {@link #forSegment} fetches one byte range
+ * of a segmented download.  It writes into a file which has already
+ * been sized, never truncates it, keeps no state file and fails if
+ * the server does not honor the range or reports a different length
+ * for the file than the one the download was sized for.
+ */
+class DownloadHandler implements AsyncHandler<Integer> {
+    private static final Logger log = Logger.getLogger(DownloadHandler.class.getName());
+
+    private static final long PROGRESS_INTERVAL_MS = 1000;
+
+    private final String url;
+    private final File destinationFile;
+    private final File stateFile;
+    private final long offset;
+    private final long last;
+    private final long totalLength;
+
+    private FileChannel channel;
+    private int statusCode = -1;
+    private long position = 0;
+    private long expectedLength = -1;
+    private long endPosition = -1;
+    private long lastProgress = System.currentTimeMillis();
+
+    /**
+     * @param url the URL we are downloading
+     * @param destinationFile the file we download into
+     * @param stateFile the file where we keep the download state
+     * @param offset the offset we asked the server to start from,
+     *   0 if this is not a ranged request.
+     */
+    public DownloadHandler(String url, File destinationFile, File stateFile, long offset) {
+        this(url, destinationFile, stateFile, offset, -1, -1);
+    }
+
+    private DownloadHandler(String url, File destinationFile, File stateFile, long offset, long last, long totalLength) {
+        this.url = url;
+        this.destinationFile = destinationFile;
+        this.stateFile = stateFile;
+        this.offset = offset;
+        this.last = last;
+        this.totalLength = totalLength;
+    }
+
+    /**
+     * Make a handler for one segment of a segmented download.
+     *
+     * @param url the URL we are downloading
+     * @param destinationFile the file we download into.  Must already
+     *   have its final length.
+     * @param first the offset of the first byte of the segment
+     * @param last the offset of the last byte of the segment
+     * @param totalLength the length of the whole file, which the
+     *   Content-Range of the response must agree with.
+     */
+    public static DownloadHandler forSegment(String url, File destinationFile, long first, long last, long totalLength) {
+        return new DownloadHandler(url, destinationFile, null, first, last, totalLength);
+    }
+
+    /**
+     * @return {@code true} if this handler fetches one segment of a
+     *   segmented download.
+     */
+    private boolean isSegment() {
+        return last >= 0;
+    }
+
+    @Override
+    public STATE onStatusReceived(HttpResponseStatus status) throws Exception {
+        statusCode = status.getStatusCode();
+        return STATE.CONTINUE;
+    }
+
+    @Override
+    public STATE onHeadersReceived(HttpResponseHeaders headers) throws Exception {
+        final FluentCaseInsensitiveStringsMap h = headers.getHeaders();
+
+        if (statusCode == 206) {
+            final long[] range = parseContentRange(h.getFirstValue("Content-Range"));
+            if (range == null || range[0] != offset || (isSegment() && range[1] != last)) {
+                throw new IOException("Unexpected Content-Range " + h.getFirstValue("Content-Range")
+                                      + " when requesting bytes from offset " + offset);
+            }
+            // A different total means the file changed since it was
+            // sized, so this segment belongs to another version.
+            if (isSegment() && range[2] != totalLength) {
+                throw new IOException("Content-Range " + h.getFirstValue("Content-Range")
+                                      + " does not match the length " + totalLength + " of " + url);
+            }
+            expectedLength = range[2];
+            endPosition = range[1] + 1;
+            openChannel(false);
+            position = offset;
+        } else if (statusCode == 200) {
+            // The segments share the file so we cannot have one of
+            // them writing the whole thing.
+            if (isSegment()) {
+                throw new IOException("Server ignored range request for " + url);
+            }
+            expectedLength = parseLong(h.getFirstValue("Content-Length"));
+            endPosition = expectedLength;
+            openChannel(true);
+            position = 0;
+        } else {
+            if (statusCode == 416) {
+                final long[] range = parseContentRange(h.getFirstValue("Content-Range"));
+                if (range != null) {
+                    expectedLength = range[2];
+                }
+            }
+            return STATE.CONTINUE;
+        }
+
+        if (stateFile == null) {
+            return STATE.CONTINUE;
+        }
+
+        new DownloadState(url,
+                          h.getFirstValue("ETag"),
+                          h.getFirstValue("Last-Modified"),
+                          expectedLength).save(stateFile);
+        return STATE.CONTINUE;
+    }
+
+    @Override
+    public STATE onBodyPartReceived(HttpResponseBodyPart bodyPart) throws Exception {
+        // Discard the body of responses we do not store
+        if (channel == null) {
+            return STATE.CONTINUE;
+        }
+
+        final ByteBuffer buffer = bodyPart.getBodyByteBuffer();
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+
+        // Only output progress once every PROGRESS_INTERVAL_MS milliseconds
+        final long now = System.currentTimeMillis();
+        if ((now - lastProgress) > PROGRESS_INTERVAL_MS && expectedLength > 0 && ! isSegment()) {
+            lastProgress = now;
+            long percent = (position * 100) / expectedLength;
+            log.info(" - Received " + position + " of " + expectedLength + " bytes (" + percent + "%)");
+        }
+        return STATE.CONTINUE;
+    }
+
+    @Override
+    public Integer onCompleted() throws Exception {
+        closeChannel();
+        return statusCode;
+    }
+
+    @Override
+    public void onThrowable(Throwable t) {
+        log.log(Level.FINE, "Download of " + url + " interrupted at " + position + " bytes", t);
+        try {
+            closeChannel();
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Got exception while closing " + destinationFile.getAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * @return the full length of the file according to the server
+     *   or -1 if unknown.
+     */
+    public long getExpectedLength() {
+        return expectedLength;
+    }
+
+    /**
+     * @return the HTTP status code of the response or -1 if we have
+     *   not received one.
+     */
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * @return the offset in the download file after the last byte
+     *   written.
+     */
+    protected long getPosition() {
+        return position;
+    }
+
+    /**
+     * @return {@code true} if we have the number of bytes the server
+     *   said we would get and, unless this is a segment, they reach
+     *   the end of the file.  A server may answer a range request
+     *   with a shorter range than we asked for, in which case the
+     *   rest has to be fetched with another request.  If the server
+     *   did not tell us we have to assume that the completed response
+     *   is the complete file.
+     */
+    public boolean isComplete() {
+        if (endPosition >= 0 && position != endPosition) {
+            return false;
+        }
+        return isSegment() || expectedLength < 0 || position == expectedLength;
+    }
+
+    private void openChannel(boolean truncate) throws IOException {
+        // The old file may be a hard link into the download cache so
+        // we replace it rather than truncate it.
+        if (truncate) {
+            destinationFile.delete();
+        }
+        channel = new RandomAccessFile(destinationFile, "rw").getChannel();
+    }
+
+    private void closeChannel() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    /**
+     * Parse a Content-Range header of the form "bytes first-last/total"
+     * or "bytes *&#47;total".
+     *
+     * @return array of first byte, last byte and total length, with
+     *   -1 for the parts that were "*", or {@code null} if the header
+     *   is missing or malformed.
+     */
+    static long[] parseContentRange(String header) {
+        if (header == null || ! header.startsWith("bytes ")) {
+            return null;
+        }
+
+        final String spec = header.substring("bytes ".length()).trim();
+        final int slash = spec.indexOf('/');
+        if (slash < 0) {
+            return null;
+        }
+
+        final String range = spec.substring(0, slash);
+        final String total = spec.substring(slash + 1);
+        try {
+            final long[] result = new long[] {-1, -1, -1};
+            if (! "*".equals(range)) {
+                final int dash = range.indexOf('-');
+                if (dash < 0) {
+                    return null;
+                }
+                result[0] = Long.parseLong(range.substring(0, dash));
+                result[1] = Long.parseLong(range.substring(dash + 1));
+            }
+            if (! "*".equals(total)) {
+                result[2] = Long.parseLong(total);
+            }
+            return result;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static long parseLong(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
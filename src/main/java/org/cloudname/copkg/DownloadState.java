@@ -0,0 +1,136 @@
+package org.cloudname.copkg;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import com.google.common.base.Objects;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.Logger;
+
+/**
+ * State kept next to a partially downloaded file so that an
+ * interrupted download can be resumed with a ranged request.  The
+ * validator (ETag or Last-Modified) is what makes it safe to resume:
+ * the server only honors the range if the file has not changed.
+ */
+public final class DownloadState {
+    private static final Logger log = Logger.getLogger(DownloadState.class.getName());
+
+    private final String url;
+    private final String etag;
+    private final String lastModified;
+    private final long contentLength;
+
+    /**
+     * @param url the URL the partial file was downloaded from
+     * @param etag the ETag header of the response or {@code null}
+     * @param lastModified the Last-Modified header of the response or {@code null}
+     * @param contentLength the full length of the file or -1 if unknown
+     */
+    @JsonCreator
+    public DownloadState(@JsonProperty("url") String url,
+                         @JsonProperty("etag") String etag,
+                         @JsonProperty("lastModified") String lastModified,
+                         @JsonProperty("contentLength") long contentLength) {
+        this.url = checkNotNull(url);
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.contentLength = contentLength;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public String getEtag() {
+        return etag;
+    }
+
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    /**
+     * @return the value to send in an If-Range header or {@code null}
+     *   if we have nothing to validate against, in which case the
+     *   download cannot safely be resumed.  Strong ETags are
+     *   preferred over Last-Modified.
+     */
+    @JsonIgnore // derived property
+    public String getValidator() {
+        if (etag != null && ! etag.startsWith("W/")) {
+            return etag;
+        }
+        return lastModified;
+    }
+
+    /**
+     * Write the state to a file.  Writes to a temporary file and
+     * renames it into place so a crash never leaves a half written
+     * state file behind.
+     */
+    public void save(File stateFile) throws IOException {
+        final File tmpFile = new File(stateFile.getAbsolutePath() + ".tmp");
+        new ObjectMapper().writeValue(tmpFile, this);
+        if (! tmpFile.renameTo(stateFile)) {
+            throw new IOException("Unable to rename " + tmpFile.getAbsolutePath()
+                                  + " to " + stateFile.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Read state from a file.
+     *
+     * @return the state or {@code null} if the file does not exist or
+     *   could not be parsed.
+     */
+    public static DownloadState load(File stateFile) {
+        if (! stateFile.exists()) {
+            return null;
+        }
+
+        try {
+            return new ObjectMapper().readValue(stateFile, DownloadState.class);
+        } catch (IOException e) {
+            log.warning("Ignoring unreadable download state " + stateFile.getAbsolutePath() + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(url, etag, lastModified, contentLength);
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (! (obj instanceof DownloadState)) {
+            return false;
+        }
+
+        final DownloadState other = (DownloadState) obj;
+        return Objects.equal(url, other.url)
+            && Objects.equal(etag, other.etag)
+            && Objects.equal(lastModified, other.lastModified)
+            && contentLength == other.contentLength;
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+            .add("url", url)
+            .add("etag", etag)
+            .add("lastModified", lastModified)
+            .add("contentLength", contentLength)
+            .toString();
+    }
+}
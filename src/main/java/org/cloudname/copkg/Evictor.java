@@ -0,0 +1,139 @@
+package org.cloudname.copkg;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the installed packages within the disk budget by
+ * uninstalling the least recently used package versions which are
+ * not running.  A package is used when it is installed or started.
+ */
+class Evictor {
+    private static final Logger log = Logger.getLogger(Evictor.class.getName());
+
+    private final Configuration config;
+    private final InstalledPackages installed;
+    private final PackageUsage usage;
+    private final Manager manager;
+
+    // Held while evicting so that concurrent installs do not evict
+    // the same packages
+    private final Object evictLock = new Object();
+
+    /**
+     * @param config the configuration of the package manager.
+     * @param installed the installed packages.
+     * @param usage the usage records of the packages.
+     * @param manager the manager which uninstalls evicted packages.
+     */
+    Evictor(Configuration config, InstalledPackages installed, PackageUsage usage, Manager manager) {
+        this.config = config;
+        this.installed = installed;
+        this.usage = usage;
+        this.manager = manager;
+    }
+
+    /**
+     * Uninstall packages until the installed packages fit within the
+     * disk budget.  Packages which are being installed or uninstalled
+     * by someone else are skipped.
+     *
+     * @param keep a package not to evict or {@code null}
+     * @param dryRun if {@code true}, only work out what would be
+     *   evicted.
+     * @return the packages evicted, or which would be evicted, least
+     *   recently used first.
+     */
+    List<InstalledPackage> evict(PackageCoordinate keep, boolean dryRun) throws IOException {
+        final long budget = config.getDiskBudget();
+        final List<InstalledPackage> evicted = new ArrayList<>();
+        if (budget == 0) {
+            return evicted;
+        }
+
+        synchronized (evictLock) {
+            final List<InstalledPackage> packages = installed.list();
+            long total = 0;
+            for (final InstalledPackage p : packages) {
+                total += p.getSize();
+            }
+            if (total <= budget) {
+                return evicted;
+            }
+
+            final Map<String, Long> lastUsed = new HashMap<>();
+            final List<InstalledPackage> candidates = new ArrayList<>();
+            for (final InstalledPackage p : packages) {
+                final String key = p.getCoordinate().asString();
+                if (keep != null && key.equals(keep.asString())) {
+                    continue;
+                }
+                final PackageUsage.Entry entry = usage.get(p.getCoordinate());
+                if (entry != null && entry.isRunning()) {
+                    continue;
+                }
+                lastUsed.put(key, Math.max(p.getInstallTime(), (entry == null) ? 0 : entry.getLastStart()));
+                candidates.add(p);
+            }
+            Collections.sort(candidates, new Comparator<InstalledPackage>() {
+                @Override
+                public int compare(InstalledPackage a, InstalledPackage b) {
+                    return Long.compare(lastUsed.get(a.getCoordinate().asString()),
+                                        lastUsed.get(b.getCoordinate().asString()));
+                }
+            });
+
+            for (final InstalledPackage p : candidates) {
+                if (total <= budget) {
+                    break;
+                }
+                if (! dryRun && ! evictPackage(p.getCoordinate())) {
+                    continue;
+                }
+                log.info((dryRun ? "Would evict " : "Evicted ") + p.getCoordinate() + " [" + p.getSize() + "]");
+                evicted.add(p);
+                total -= p.getSize();
+            }
+
+            if (total > budget) {
+                log.warning("Packages take up " + total + " bytes, more than the disk budget of "
+                            + budget + " bytes, and nothing more can be evicted");
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * Uninstall a package unless it is locked or has started
+     * running since we looked.  We do not wait for the lock since the
+     * caller may hold the lock of another package.
+     *
+     * @return {@code true} if the package was uninstalled.
+     */
+    private boolean evictPackage(PackageCoordinate coordinate) throws IOException {
+        final PackageLock lock = PackageLock.tryAcquire(new File(config.lockFilenameForCoordinate(coordinate)));
+        if (lock == null) {
+            log.fine("Not evicting " + coordinate + ", it is locked");
+            return false;
+        }
+
+        try {
+            final PackageUsage.Entry entry = usage.get(coordinate);
+            if ((entry != null && entry.isRunning())
+                || ! new File(config.packageDirectoryForCoordinate(coordinate)).exists()) {
+                return false;
+            }
+            manager.uninstallLocked(coordinate);
+            return true;
+        } finally {
+            lock.close();
+        }
+    }
+}
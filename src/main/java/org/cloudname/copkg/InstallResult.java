@@ -0,0 +1,64 @@
+package org.cloudname.copkg;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import com.google.common.base.Objects;
+
+/**
+ * The outcome of installing a single package.  Batch installs report
+ * one of these per package rather than failing on the first error.
+ */
+public final class InstallResult {
+    private final PackageCoordinate coordinate;
+    private final Status status;
+    private final String message;
+
+    public enum Status {
+        INSTALLED,
+        ALREADY_INSTALLED,
+        DOWNLOAD_FAILED,
+        UNPACK_FAILED,
+    }
+
+    /**
+     * @param coordinate the coordinate of the package
+     * @param status enum that indicates status
+     * @param message human readable message to indicate what happened (UI usable)
+     */
+    public InstallResult(final PackageCoordinate coordinate,
+                         final Status status,
+                         final String message) {
+        this.coordinate = checkNotNull(coordinate);
+        this.status = checkNotNull(status);
+        this.message = checkNotNull(message);
+    }
+
+    public PackageCoordinate getCoordinate() {
+        return coordinate;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * @return {@code true} if the package is installed after the
+     *   operation, regardless of whether we installed it or it was
+     *   already there.
+     */
+    public boolean isOk() {
+        return status == Status.INSTALLED || status == Status.ALREADY_INSTALLED;
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+            .add("coordinate", coordinate)
+            .add("status", status)
+            .add("message", message)
+            .toString();
+    }
+}
@@ -0,0 +1,57 @@
+package org.cloudname.copkg;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * An entry in the index of installed packages.
+ */
+public final class InstalledPackage {
+    private final PackageCoordinate coordinate;
+    private final long installTime;
+    private final long size;
+    private final int fileCount;
+    private final String contentHash;
+
+    /**
+     * @param coordinate the coordinate of the package
+     * @param installTime when the package was installed, in
+     *   milliseconds since the epoch
+     * @param size the total size of the files in the package.  For
+     *   a lazy install, the size of the files extracted so far plus
+     *   that of the archive the others are kept in.
+     * @param fileCount the number of files in the package
+     * @param contentHash hex SHA-256 hash of the names, sizes and
+     *   CRC32s of the files in the package.  See {@link PackageIndex}.
+     */
+    public InstalledPackage(final PackageCoordinate coordinate,
+                            final long installTime,
+                            final long size,
+                            final int fileCount,
+                            final String contentHash) {
+        this.coordinate = checkNotNull(coordinate);
+        this.installTime = installTime;
+        this.size = size;
+        this.fileCount = fileCount;
+        this.contentHash = checkNotNull(contentHash);
+    }
+
+    public PackageCoordinate getCoordinate() {
+        return coordinate;
+    }
+
+    public long getInstallTime() {
+        return installTime;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public int getFileCount() {
+        return fileCount;
+    }
+
+    public String getContentHash() {
+        return contentHash;
+    }
+}
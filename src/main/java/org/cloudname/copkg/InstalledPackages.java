@@ -0,0 +1,260 @@
+package org.cloudname.copkg;
+
+import org.cloudname.copkg.util.ZipDirectory;
+
+import com.google.common.base.Joiner;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The installed packages of a package directory, as kept in the
+ * {@link PackageIndex}.  The index is rebuilt from the package
+ * directory whenever it is found to be missing or corrupt, so
+ * callers never have to deal with a broken index.
+ */
+class InstalledPackages {
+    private static final Logger log = Logger.getLogger(InstalledPackages.class.getName());
+
+    // How deep below the package directory we look for stale
+    // directories.  Group ids are rarely more than a handful deep.
+    private static final int MAX_PACKAGE_PATH_DEPTH = 16;
+
+    // Every package has this directory
+    private static final String SCRIPT_DIR = "script.d";
+
+    private final Configuration config;
+    private final PackageIndex index;
+
+    /**
+     * @param config the configuration of the package manager.
+     */
+    InstalledPackages(Configuration config) {
+        this.config = config;
+        this.index = new PackageIndex(new File(config.getIndexFilename()));
+    }
+
+    /**
+     * List the installed packages.  This reads the package index,
+     * which is rebuilt if it is missing or corrupt.
+     *
+     * @return the installed packages in coordinate order.
+     */
+    List<InstalledPackage> list() throws IOException {
+        final List<InstalledPackage> packages = readIndex();
+        return (packages != null) ? packages : rebuild();
+    }
+
+    /**
+     * @return the index entry of an installed package or {@code null}
+     *   if the package is not installed.
+     */
+    InstalledPackage get(PackageCoordinate coordinate) throws IOException {
+        for (final InstalledPackage p : list()) {
+            if (p.getCoordinate().asString().equals(coordinate.asString())) {
+                return p;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Rebuild the package index from the package directory.  This
+     * reads every installed file to work out the content hashes.
+     *
+     * @return the installed packages in coordinate order.
+     */
+    List<InstalledPackage> rebuild() throws IOException {
+        try (PackageLock lock = index.lock()) {
+            index.write(scan());
+            return index.read();
+        }
+    }
+
+    /**
+     * Add a package to or remove a package from the index.  If the
+     * index is missing or corrupt it is rebuilt instead, which picks
+     * up the change from the package directory.
+     *
+     * @param added the package to add or {@code null}
+     * @param removed the coordinate of the package to remove or
+     *   {@code null}
+     */
+    void update(InstalledPackage added, PackageCoordinate removed) {
+        try (PackageLock lock = index.lock()) {
+            final List<InstalledPackage> packages = readIndex();
+            if (packages == null) {
+                index.write(scan());
+                return;
+            }
+
+            final Map<String, InstalledPackage> byCoordinate = new LinkedHashMap<>();
+            for (final InstalledPackage p : packages) {
+                byCoordinate.put(p.getCoordinate().asString(), p);
+            }
+            if (removed != null) {
+                byCoordinate.remove(removed.asString());
+            }
+            if (added != null) {
+                byCoordinate.put(added.getCoordinate().asString(), added);
+            }
+            index.write(byCoordinate.values());
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Unable to update package index", e);
+        }
+    }
+
+    /**
+     * Change the size of the index entry of a package.  If the index
+     * is missing or corrupt it is rebuilt instead, which picks up the
+     * change from the package directory.
+     */
+    void resize(PackageCoordinate coordinate, long delta) {
+        final List<InstalledPackage> packages = readIndex();
+        if (packages == null) {
+            update(null, null);
+            return;
+        }
+        for (final InstalledPackage p : packages) {
+            if (p.getCoordinate().asString().equals(coordinate.asString())) {
+                update(resized(p, p.getSize() + delta), null);
+                return;
+            }
+        }
+    }
+
+    /**
+     * The files a lazy install has not extracted take up no space in
+     * the package directory, but the archive they are kept in does.
+     *
+     * @param entries the entries the index entry was summarized from,
+     *   or {@code null} if it was summarized from the installed files,
+     *   which leaves out the files not extracted.
+     * @param deferred the files which were not extracted.
+     * @return the index entry with the space the package takes up as
+     *   its size.
+     */
+    static InstalledPackage lazySize(InstalledPackage installed,
+                                     List<ZipDirectory.Entry> entries,
+                                     Collection<String> deferred,
+                                     File archive) {
+        long size = installed.getSize() + archive.length();
+        if (entries != null) {
+            final Set<String> names = new HashSet<>(deferred);
+            for (final ZipDirectory.Entry entry : entries) {
+                if (! entry.isDirectory() && names.contains(entry.getName())) {
+                    size -= entry.getSize();
+                }
+            }
+        }
+        return resized(installed, size);
+    }
+
+    private static InstalledPackage resized(InstalledPackage installed, long size) {
+        return new InstalledPackage(installed.getCoordinate(),
+                                    installed.getInstallTime(),
+                                    size,
+                                    installed.getFileCount(),
+                                    installed.getContentHash());
+    }
+
+    private List<InstalledPackage> scan() throws IOException {
+        log.info("Rebuilding package index from " + config.getPackageDir());
+        final Map<File, PackageCoordinate> installed = new LinkedHashMap<>();
+        scanPackageDirectory(new File(config.getPackageDir()),
+                             new ArrayList<String>(),
+                             installed,
+                             new LinkedHashMap<File, PackageCoordinate>());
+
+        final List<InstalledPackage> packages = new ArrayList<>();
+        for (final Map.Entry<File, PackageCoordinate> p : installed.entrySet()) {
+            final InstalledPackage scanned = PackageIndex.scan(p.getValue(), p.getKey());
+            final File archive = new File(config.lazyArchiveFilenameForCoordinate(p.getValue()));
+            packages.add(archive.exists() ? resized(scanned, scanned.getSize() + archive.length()) : scanned);
+        }
+        return packages;
+    }
+
+    /**
+     * @return the packages in the index or {@code null} if the index
+     *   is missing or corrupt.
+     */
+    private List<InstalledPackage> readIndex() {
+        try {
+            return index.read();
+        } catch (IOException e) {
+            log.warning("Unable to read package index: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Find the installed packages, and the directories left behind by
+     * installs and uninstalls, by walking the package directory.
+     * Installed packages are recognized by their script directory,
+     * and we do not descend into them.
+     *
+     * @param dir the directory to search
+     * @param path the names of the directories from the package
+     *   directory down to {@code dir}: the group id followed by the
+     *   artifact id.
+     * @param installed the directories of the installed packages are
+     *   put here, with their coordinates.
+     * @param leftovers the leftover directories are put here, with
+     *   the coordinate of their package or {@code null} if they are
+     *   not where a package would be.
+     */
+    static void scanPackageDirectory(File dir,
+                                     List<String> path,
+                                     Map<File, PackageCoordinate> installed,
+                                     Map<File, PackageCoordinate> leftovers) {
+        final File[] files = dir.listFiles();
+        if (files == null || path.size() >= MAX_PACKAGE_PATH_DEPTH) {
+            return;
+        }
+
+        for (final File f : files) {
+            final String name = f.getName();
+            // Skip our own directories, like the download directory
+            if (! f.isDirectory() || name.startsWith(".")) {
+                continue;
+            }
+
+            final int i = name.indexOf("---");
+            if (i > 0) {
+                leftovers.put(f, coordinateFor(path, name.substring(0, i)));
+                continue;
+            }
+
+            if (new File(f, SCRIPT_DIR).isDirectory()) {
+                final PackageCoordinate coordinate = coordinateFor(path, name);
+                if (coordinate != null) {
+                    installed.put(f, coordinate);
+                }
+                continue;
+            }
+
+            path.add(name);
+            scanPackageDirectory(f, path, installed, leftovers);
+            path.remove(path.size() - 1);
+        }
+    }
+
+    private static PackageCoordinate coordinateFor(List<String> path, String version) {
+        if (path.size() < 2) {
+            return null;
+        }
+        return new PackageCoordinate(Joiner.on('.').join(path.subList(0, path.size() - 1)),
+                                     path.get(path.size() - 1),
+                                     version);
+    }
+}
@@ -0,0 +1,178 @@
+package org.cloudname.copkg;
+
+import org.cloudname.copkg.util.Manifest;
+
+import com.google.common.base.Predicate;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * The files of a lazily installed package which have not been
+ * extracted yet.  A lazy install only extracts the files matching the
+ * eager patterns of the configuration.  The package ZIP file is kept
+ * as the archive, and the names of the files left in it are kept in
+ * an index next to it, one per line.  {@link Manager#materialize}
+ * extracts files from the archive on demand.  Once every file has
+ * been extracted the archive and the index are removed.
+ *
+ * <p>Patterns are globs matched against the names of the files in the
+ * package, see {@link FileSystems#getPathMatcher}.  {@code *} does not
+ * cross directories and {@code **} does, so {@code lib/*.jar} matches
+ * the jars directly in {@code lib} and {@code script.d/**} everything
+ * below {@code script.d}.
+ */
+public class LazyPackage {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // Always extracted: the scripts make a directory a package, and
+    // the manifest is needed to verify the files
+    private static final List<String> ALWAYS_EAGER = Collections.unmodifiableList(
+        Arrays.asList("script.d/**", Manifest.NAME));
+
+    private final File archive;
+    private final File indexFile;
+
+    /**
+     * @param archive the kept package ZIP file
+     * @param indexFile the file listing the files not yet extracted
+     */
+    public LazyPackage(File archive, File indexFile) {
+        this.archive = archive;
+        this.indexFile = indexFile;
+    }
+
+    /**
+     * @return the kept package ZIP file.
+     */
+    public File getArchive() {
+        return archive;
+    }
+
+    /**
+     * @return a predicate accepting the file names which match any of
+     *   the patterns.
+     */
+    public static Predicate<String> matcher(Collection<String> patterns) {
+        final List<PathMatcher> matchers = new ArrayList<>(patterns.size());
+        for (final String pattern : patterns) {
+            matchers.add(FileSystems.getDefault().getPathMatcher("glob:" + pattern));
+        }
+
+        return new Predicate<String>() {
+            @Override
+            public boolean apply(String name) {
+                final Path path = Paths.get(name);
+                for (final PathMatcher matcher : matchers) {
+                    if (matcher.matches(path)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @return a predicate accepting the files a lazy install with the
+     *   given eager patterns extracts up front.  The scripts and the
+     *   manifest are always extracted.
+     */
+    public static Predicate<String> eagerMatcher(Collection<String> eagerPatterns) {
+        final List<String> patterns = new ArrayList<>(ALWAYS_EAGER);
+        patterns.addAll(eagerPatterns);
+        return matcher(patterns);
+    }
+
+    /**
+     * @return the names of the files not yet extracted, in name
+     *   order.  Empty if the package was fully extracted.
+     */
+    public SortedSet<String> readPending() throws IOException {
+        final SortedSet<String> pending = new TreeSet<>();
+        if (! indexFile.exists()) {
+            return pending;
+        }
+        for (final String line : Files.readLines(indexFile, UTF8)) {
+            if (! line.isEmpty()) {
+                pending.add(line);
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * Replace the list of files not yet extracted.  If there are none
+     * left the archive and the index are removed.
+     *
+     * @param pending the names of the files not yet extracted.
+     */
+    public void writePending(Collection<String> pending) throws IOException {
+        if (pending.isEmpty()) {
+            delete();
+            return;
+        }
+
+        final StringBuilder sb = new StringBuilder();
+        for (final String name : new TreeSet<>(pending)) {
+            sb.append(name).append('\n');
+        }
+
+        final File tmpFile = new File(indexFile.getPath() + ".tmp");
+        Files.write(sb.toString(), tmpFile, UTF8);
+        if (! tmpFile.renameTo(indexFile)) {
+            tmpFile.delete();
+            throw new IOException("Unable to rename " + tmpFile.getAbsolutePath() + " to " + indexFile.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Keep a package ZIP file as the archive of a lazy install and
+     * record the files left in it.  The ZIP file is hard linked if
+     * possible, otherwise copied, so the caller may delete it.
+     *
+     * @param zip the package ZIP file
+     * @param pending the names of the files which were not extracted.
+     */
+    public void keep(File zip, Collection<String> pending) throws IOException {
+        final File dir = archive.getParentFile();
+        if (! (dir.mkdirs() || dir.isDirectory())) {
+            throw new IOException("Unable to create directory: " + dir.getAbsolutePath());
+        }
+
+        archive.delete();
+        try {
+            java.nio.file.Files.createLink(archive.toPath(), zip.toPath());
+        } catch (IOException | UnsupportedOperationException e) {
+            Files.copy(zip, archive);
+        }
+
+        try {
+            writePending(pending);
+        } catch (IOException e) {
+            archive.delete();
+            throw e;
+        }
+    }
+
+    /**
+     * Remove the archive and the index.
+     */
+    public void delete() {
+        indexFile.delete();
+        archive.delete();
+    }
+}
@@ -2,16 +2,22 @@ package org.cloudname.copkg;
 
 import org.cloudname.fire.Job;
 import org.cloudname.fire.JobRunner;
+import org.cloudname.fire.Plan;
+import org.cloudname.fire.PlanRunner;
 import org.cloudname.fire.Result;
 
 import org.cloudname.copkg.util.LogSetup;
+import org.cloudname.copkg.util.Manifest;
 
 import joptsimple.OptionParser;
 import joptsimple.OptionSet;
 import joptsimple.OptionSpec;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Logger;
@@ -54,6 +60,10 @@ public class Main {
     private static OptionSpec<String> runtimeBaseDir =
         optionParser.accepts("runtime-base-dir").withRequiredArg().ofType(String.class);
 
+    private static OptionSpec<Void> dryRun = optionParser.accepts("dry-run");
+
+    private static OptionSpec<Void> incremental = optionParser.accepts("incremental");
+
     private static OptionSpec<Void> help = optionParser.accepts("help").forHelp();
 
     private static OptionSet optionSet;
@@ -127,12 +137,13 @@ public class Main {
             return;
         }
 
-        // Pop off the command, package name and runtimeId from the arguments.
-        // The order will always be the same.
+        // Pop off the command, the rest are the arguments to the command.
         final String command = parameters.get(0);
-        final String packageName = parameters.size() > 1 ? parameters.get(1) : null;
-        final String runtimeId = parameters.size() > 2 ? parameters.get(2) : null;
-        m.dispatch(command, packageName, runtimeId);
+        try {
+            m.dispatch(command, parameters.subList(1, parameters.size()));
+        } finally {
+            m.manager.close();
+        }
     }
 
     /**
@@ -186,9 +197,21 @@ public class Main {
             + "\n"
             + "Package commands:\n"
             + "----------------------------------------------------------------------------------------------------\n"
-            + "  copkg [flags] install <package coordinate>    : install the package\n"
+            + "  copkg [flags] install <package coordinate>... : install the packages\n"
+            + "  copkg [flags] install -                       : install the packages listed on stdin\n"
             + "  copkg [flags] uninstall <package coordinate>  : uninstall the package\n"
             + "  copkg [flags] resolve <package coordinate>    : print paths and URLs for a given package coordinate\n"
+            + "  copkg [flags] list                            : list the installed packages\n"
+            + "  copkg [flags] status [<package coordinate>]   : show an installed package, or a summary of all\n"
+            + "  copkg [flags] reindex                         : rebuild the index of installed packages\n"
+            + "  copkg [flags] verify [--incremental] <package coordinate>\n"
+            + "      : check an installed package against its manifest.  With --incremental only files\n"
+            + "        whose size, modification time or inode has changed are hashed\n"
+            + "  copkg [flags] manifest <zip file>             : add a manifest of file checksums to a package\n"
+            + "  copkg [flags] materialize <package coordinate> <glob>\n"
+            + "      : extract the files matching the glob which a lazy install left in the package file\n"
+            + "  copkg [flags] gc                              : remove unused files from the content store\n"
+            + "  copkg [flags] evict [--dry-run]               : uninstall old versions until within the disk budget\n"
             + "\n"
             + "Service lifecycle management:\n"
             + "----------------------------------------------------------------------------------------------------\n"
@@ -199,20 +222,31 @@ public class Main {
             + "  copkg [flags] stop <package coordinate> <id>\n"
             + "      : Stop service with a given runtime id.\n"
             + "\n"
+            + "  copkg [flags] start-all <plan file>\n"
+            + "      : Start the jobs of a JSON plan, wave by wave, with the jobs of each wave\n"
+            + "        running concurrently.\n"
+            + "\n"
+            + "  copkg [flags] stop-all <plan file>\n"
+            + "      : Stop the jobs of a JSON plan, last wave first.\n"
+            + "\n"
         );
     }
 
     /**
      * Dispatch commands.
      */
-    private void dispatch(final String command, final String packageName, final String runtimeId) throws Exception {
+    private void dispatch(final String command, final List<String> arguments) throws Exception {
+        // Most commands take a package name and a runtimeId.  The
+        // order will always be the same.
+        final String packageName = arguments.size() > 0 ? arguments.get(0) : null;
+        final String runtimeId = arguments.size() > 1 ? arguments.get(1) : null;
 
         if ("install".equals(command)) {
             if (packageName == null) {
                 System.err.println("\ninstall error: expected package coordinate as argument");
                 return;
             }
-            install(packageName);
+            install(arguments);
             return;
         }
 
@@ -235,6 +269,58 @@ public class Main {
             return;
         }
 
+        if ("list".equals(command)) {
+            list();
+            return;
+        }
+
+        if ("reindex".equals(command)) {
+            System.out.println("Indexed " + manager.rebuildIndex().size() + " packages");
+            return;
+        }
+
+        if ("verify".equals(command)) {
+            if (packageName == null) {
+                System.err.println("\nverify error: expected package coordinate as argument");
+                return;
+            }
+            verify(packageName, optionSet.has(incremental));
+            return;
+        }
+
+        if ("manifest".equals(command)) {
+            if (packageName == null) {
+                System.err.println("\nmanifest error: expected zip file as argument");
+                return;
+            }
+            final Manifest manifest = Manifest.addTo(new File(packageName));
+            System.out.println("Added manifest of " + manifest.getDigests().size() + " files to " + packageName);
+            return;
+        }
+
+        if ("materialize".equals(command)) {
+            if (packageName == null || arguments.size() < 2) {
+                System.err.println("\nmaterialize error: expected package coordinate and glob as arguments");
+                return;
+            }
+            final List<String> names = manager.materialize(PackageCoordinate.parse(packageName), arguments.get(1));
+            for (final String name : names) {
+                System.out.println(name);
+            }
+            System.out.println("Materialized " + names.size() + " files of " + packageName);
+            return;
+        }
+
+        if ("evict".equals(command)) {
+            evict(optionSet.has(dryRun));
+            return;
+        }
+
+        if ("gc".equals(command)) {
+            System.out.println("Freed " + manager.gc() + " bytes");
+            return;
+        }
+
         if ("start".equals(command)) {
             if (packageName == null || runtimeId == null) {
                 System.err.println("\nstart: expected package coordinate and runtime id");
@@ -255,9 +341,18 @@ public class Main {
             return;
         }
 
+        if ("start-all".equals(command) || "stop-all".equals(command)) {
+            if (packageName == null) {
+                System.err.println("\n" + command + ": expected plan file");
+                return;
+            }
+
+            runPlan(command, Plan.fromFile(new File(packageName)), "stop-all".equals(command));
+            return;
+        }
+
         if ("status".equals(command)) {
-            System.out.println("\nNot implemented yet: " + command);
-            printHelp();
+            status(packageName);
             return;
         }
 
@@ -290,8 +385,9 @@ public class Main {
                 scriptParameters);
 
         // Run the job!
-        final Result result = new JobRunner(config).runJob(job, JobRunner.STOP_SCRIPT);
-        System.out.println(result.toString());
+        try (JobRunner runner = new JobRunner(config)) {
+            System.out.println(runner.runJob(job, JobRunner.STOP_SCRIPT).toString());
+        }
     }
     /**
      * Start the service.
@@ -312,19 +408,97 @@ public class Main {
                 scriptParameters);
 
         // Run the job!
-        final Result result = new JobRunner(config).runJob(job, JobRunner.START_SCRIPT);
-        System.out.println(result.toString());
+        try (JobRunner runner = new JobRunner(config)) {
+            System.out.println(runner.runJob(job, JobRunner.START_SCRIPT).toString());
+        }
     }
 
     /**
-     * Install package.
+     * Start or stop the jobs of a plan and print a report with a line
+     * per job.
      *
-     * @param coordinateString the coordinate string of the package we
-     *   wish to install.
+     * @param command the name of the command, for the report
+     * @param stop if {@code true} run the stop scripts, last wave
+     *   first.
      */
-    private void install(String coordinateString) throws Exception {
-        PackageCoordinate coordinate = PackageCoordinate.parse(coordinateString);
-        manager.install(coordinate);
+    private void runPlan(final String command, final Plan plan, final boolean stop) throws InterruptedException {
+        final long start = System.currentTimeMillis();
+        final List<List<Result>> results;
+        try (JobRunner runner = new JobRunner(config)) {
+            results = new PlanRunner(runner).run(plan, stop ? JobRunner.STOP_SCRIPT : JobRunner.START_SCRIPT, stop);
+        }
+
+        int jobs = 0;
+        int succeeded = 0;
+        for (int i = 0; i < results.size(); i++) {
+            for (int j = 0; j < results.get(i).size(); j++) {
+                final Job job = plan.getWaves().get(i).get(j);
+                final Result result = results.get(i).get(j);
+                System.out.println("wave " + (i + 1) + " : " + job.getPackageCoordinate()
+                                   + " " + job.getRuntimeDirectory()
+                                   + " : " + result.getStatus()
+                                   + " (" + result.getExitValue() + ") " + result.getMessage());
+                jobs++;
+                if (result.getStatus() == Result.Status.SUCCESS) {
+                    succeeded++;
+                }
+            }
+        }
+        System.out.println(command + " : " + succeeded + " of " + jobs + " jobs succeeded in "
+                           + (System.currentTimeMillis() - start) + " ms");
+        if (succeeded < jobs) {
+            System.err.println("\n" + command + " error: " + (jobs - succeeded) + " jobs did not succeed");
+        }
+    }
+
+    /**
+     * Install packages.  If one of the coordinate strings is "-" we
+     * read coordinates from stdin, one per line.
+     *
+     * @param coordinateStrings the coordinate strings of the packages
+     *   we wish to install.
+     */
+    private void install(List<String> coordinateStrings) throws Exception {
+        final List<PackageCoordinate> coordinates = new ArrayList<>();
+        for (final String coordinateString : coordinateStrings) {
+            if ("-".equals(coordinateString)) {
+                coordinates.addAll(readCoordinates(System.in));
+                continue;
+            }
+            coordinates.add(PackageCoordinate.parse(coordinateString));
+        }
+
+        manager.reapStaleDirectories();
+
+        int numFailed = 0;
+        for (final InstallResult result : manager.install(coordinates)) {
+            if (! result.isOk()) {
+                numFailed++;
+            }
+            System.out.println(result.getCoordinate() + " : " + result.getStatus() + " (" + result.getMessage() + ")");
+        }
+
+        if (numFailed > 0) {
+            System.err.println("\ninstall error: " + numFailed + " of " + coordinates.size() + " packages failed");
+        }
+    }
+
+    /**
+     * Read package coordinates, one per line.  Blank lines and lines
+     * starting with "#" are ignored.
+     */
+    private static List<PackageCoordinate> readCoordinates(InputStream in) throws IOException {
+        final List<PackageCoordinate> coordinates = new ArrayList<>();
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            coordinates.add(PackageCoordinate.parse(line));
+        }
+        return coordinates;
     }
 
     /**
@@ -335,6 +509,7 @@ public class Main {
      */
     private void uninstall(String coordinateString) throws Exception {
         PackageCoordinate coordinate = PackageCoordinate.parse(coordinateString);
+        manager.reapStaleDirectories();
         manager.uninstall(coordinate);
     }
 
@@ -342,16 +517,103 @@ public class Main {
      * Given a coordinate, output the install path, the download path
      * etc given the current configuration.
      */
-    private void resolve(String coordinateString) {
+    private void resolve(String coordinateString) throws IOException {
         PackageCoordinate coordinate = PackageCoordinate.parse(coordinateString);
+        InstalledPackage installed = manager.getInstalled(coordinate);
         System.out.println("");
         System.out.println("installDir       = "
                 + config.getPackageDir() + File.separatorChar + coordinate.getPathFragment());
         System.out.println("downloadUrl      = " + coordinate.toUrl(config.getPackageBaseUrl()));
         System.out.println("downloadFilename = " + config.downloadFilenameForCoordinate(coordinate));
+        System.out.println("installed        = " + (installed == null ? "no" : formatInstalled(installed)));
         System.out.println("");
     }
 
+    /**
+     * Check an installed package against its manifest and print what
+     * does not match.
+     *
+     * @param coordinateString the coordinate of the package
+     * @param incremental if {@code true} only hash files whose stat
+     *   has changed.
+     */
+    private void verify(String coordinateString, boolean incremental) throws IOException {
+        final long start = System.currentTimeMillis();
+        final PackageVerifier.Result result = manager.verify(PackageCoordinate.parse(coordinateString), incremental);
+        for (final String name : result.getMismatched()) {
+            System.out.println("MISMATCH " + name);
+        }
+        for (final String name : result.getMissing()) {
+            System.out.println("MISSING  " + name);
+        }
+        for (final String name : result.getUnlisted()) {
+            System.out.println("UNLISTED " + name);
+        }
+        System.out.println(coordinateString + " : " + (result.isOk() ? "OK" : "FAILED")
+                           + " (" + result.getFileCount() + " files, " + result.getSize() + " bytes, "
+                           + result.getHashedCount() + " files hashed in "
+                           + (System.currentTimeMillis() - start) + " ms)");
+        if (! result.isOk()) {
+            System.err.println("\nverify error: " + coordinateString + " does not match its manifest");
+        }
+    }
+
+    /**
+     * Evict the least recently used packages until the installed
+     * packages fit within the disk budget.
+     *
+     * @param dryRun if {@code true} only print what would be evicted.
+     */
+    private void evict(boolean dryRun) throws IOException {
+        long freed = 0;
+        for (final InstalledPackage p : manager.evict(dryRun)) {
+            System.out.println((dryRun ? "Would evict " : "Evicted ") + p.getCoordinate() + " (" + p.getSize() + " bytes)");
+            freed += p.getSize();
+        }
+        System.out.println((dryRun ? "Would free " : "Freed ") + freed + " bytes");
+    }
+
+    /**
+     * List the installed packages.
+     */
+    private void list() throws IOException {
+        for (final InstalledPackage p : manager.list()) {
+            System.out.println(p.getCoordinate() + " : " + formatInstalled(p));
+        }
+    }
+
+    /**
+     * Print the index entry of a package, or a summary of all
+     * installed packages.
+     *
+     * @param coordinateString the coordinate of the package or {@code
+     *   null} for all packages.
+     */
+    private void status(String coordinateString) throws IOException {
+        if (coordinateString != null) {
+            final InstalledPackage installed = manager.getInstalled(PackageCoordinate.parse(coordinateString));
+            System.out.println(coordinateString + " : " + (installed == null ? "not installed" : formatInstalled(installed)));
+            return;
+        }
+
+        final List<InstalledPackage> packages = manager.list();
+        long size = 0;
+        long fileCount = 0;
+        for (final InstalledPackage p : packages) {
+            size += p.getSize();
+            fileCount += p.getFileCount();
+        }
+        System.out.println(packages.size() + " packages installed, " + fileCount + " files, " + size + " bytes");
+    }
+
+    private static String formatInstalled(InstalledPackage p) {
+        return String.format("installed %tF %<tT, %d files, %d bytes, content %s",
+                             p.getInstallTime(),
+                             p.getFileCount(),
+                             p.getSize(),
+                             p.getContentHash());
+    }
+
     /**
      * Find configuration or make an appropriate default
      * configuration.  Will look in /etc and the user's home directory
@@ -395,6 +657,9 @@ public class Main {
         // quick to write.  The Configuration class should have a
         // cascade/merge method instead.
 
+        // Keep the tuning parameters when overriding from the command line
+        final Configuration tuning = c;
+
         if (optionSet.has(packageDir)) {
             c = new Configuration(optionSet.valueOf(packageDir),
                                   c.getPackageBaseUrl(),
@@ -434,6 +699,8 @@ public class Main {
                     c.getPassword(),
                     optionSet.valueOf(runtimeBaseDir));
         }
+
+        c.copyTuning(tuning);
         return c;
     }
 }
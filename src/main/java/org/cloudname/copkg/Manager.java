@@ -1,17 +1,38 @@
 package org.cloudname.copkg;
 
+import org.cloudname.copkg.util.ContentStore;
+import org.cloudname.copkg.util.FileSync;
 import org.cloudname.copkg.util.Unzip;
-import org.cloudname.copkg.util.Traverse;
+import org.cloudname.copkg.util.ZipDirectory;
 
+
+import com.ning.http.client.AsyncHttpClient;
+import com.ning.http.client.AsyncHttpClientConfig;
+import com.ning.http.client.Realm;
 import com.ning.http.client.Realm.AuthScheme;
 import com.ning.http.client.Response;
-import com.ning.http.client.SimpleAsyncHttpClient;
-import com.ning.http.client.consumers.FileBodyConsumer;
-import com.ning.http.client.simple.HeaderMap;
-import com.ning.http.client.simple.SimpleAHCTransferListener;
 
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -24,35 +45,150 @@ import java.util.logging.Logger;
  *
  * @author borud
  */
-public class Manager {
+public class Manager implements Closeable {
     private static final Logger log = Logger.getLogger(Manager.class.getName());
 
     private static final int REQUEST_TIMEOUT_MS = (5 * 60 * 1000);
     private static final int MAX_RETRY_ON_IOEXCEPTION = 5;
     private static final int MAX_CONNECTIONS_PER_HOST = 3;
     private static final int MAX_NUM_REDIRECTS = 3;
+    private static final int IDLE_CONNECTION_TIMEOUT_MS = (60 * 1000);
+    private static final int MAX_DOWNLOAD_ATTEMPTS = 3;
 
     private static final String UNPACK_DIR_SUFFIX = "unpack";
     private static final String REMOVE_DIR_SUFFIX = "remove";
+    private static final String DELTA_FILE_SUFFIX = ".delta";
+
+    private static final Random random = new Random();
 
     private Configuration config;
+    private final DownloadCache cache;
+    private final ContentStore contentStore;
+    private final PackageUsage usage;
+    private final InstalledPackages packages;
+    private final Evictor evictor;
+    private final Materializer materializer;
+
+    // Created on first use and shared by all downloads so that
+    // connections to the package repository are pooled.
+    private AsyncHttpClient client;
+
+    // Created on first use.  Deletes uninstalled packages and failed
+    // unpacks in the background.
+    private Reaper reaper;
 
     /**
      * Create a package manager for a given base package directory.
+     * The manager holds on to an HTTP client with a connection pool
+     * so it should be closed when no longer needed.
      *
      * @param config the configuration for the package manager.
      */
     public Manager (final Configuration config) {
         this.config = config;
+        this.cache = new DownloadCache(new File(config.getDownloadCacheDir()), config.getDownloadCacheSize());
+        this.contentStore = new ContentStore(new File(config.getContentStoreDir()));
+        this.usage = new PackageUsage(new File(config.getUsageDir()));
+        this.packages = new InstalledPackages(config);
+        this.evictor = new Evictor(config, packages, usage, this);
+        this.materializer = new Materializer(config, packages, this);
+    }
+
+    /**
+     * Get the HTTP client, creating it if this is the first download.
+     * There must be room in the connection pool for every segment of
+     * every concurrent download of a batch install since the client
+     * fails requests rather than queue them when it runs out.
+     */
+    private synchronized AsyncHttpClient getClient() {
+        if (client != null) {
+            return client;
+        }
+
+        // Compression is disabled since byte ranges have to refer to
+        // the bytes we store on disk.
+        final int maxConnections = Math.max(MAX_CONNECTIONS_PER_HOST,
+                                            config.getMaxConcurrentDownloads() * config.getDownloadSegments());
+        AsyncHttpClientConfig.Builder builder = new AsyncHttpClientConfig.Builder()
+            .setRequestTimeoutInMs(REQUEST_TIMEOUT_MS)
+            .setFollowRedirects(true)
+            .setCompressionEnabled(false)
+            .setMaximumNumberOfRedirects(MAX_NUM_REDIRECTS)
+            .setMaxRequestRetry(MAX_RETRY_ON_IOEXCEPTION)
+            .setAllowPoolingConnection(true)
+            .setIdleConnectionInPoolTimeoutInMs(IDLE_CONNECTION_TIMEOUT_MS)
+            .setMaximumConnectionsPerHost(maxConnections)
+            .setMaximumConnectionsTotal(maxConnections);
+
+        // Set credentials
+        if (! config.getUsername().isEmpty()) {
+            builder.setRealm(new Realm.RealmBuilder()
+                             .setPrincipal(config.getUsername())
+                             .setPassword(config.getPassword())
+                             .setScheme(AuthScheme.BASIC)
+                             .setUsePreemptiveAuth(true)
+                             .build());
+        }
+
+        client = new AsyncHttpClient(builder.build());
+        return client;
+    }
+
+    /**
+     * Get the reaper, creating it if this is the first time we have
+     * something to delete.
+     */
+    synchronized Reaper getReaper() {
+        if (reaper == null) {
+            reaper = new Reaper(config.getUnpackThreads());
+        }
+        return reaper;
+    }
+
+    /**
+     * Release the HTTP client and its pooled connections, and wait
+     * for the reaper to finish deleting.  The manager can still be
+     * used afterwards; a new client is created on the next download.
+     */
+    @Override
+    public void close() {
+        final Reaper oldReaper;
+        synchronized (this) {
+            if (client != null) {
+                client.close();
+                client = null;
+            }
+            oldReaper = reaper;
+            reaper = null;
+        }
+
+        // Not while holding the lock, since the reaper may be
+        // waiting for it
+        if (oldReaper != null) {
+            oldReaper.close();
+        }
     }
 
     /**
      * Download package into the download directory.
      *
+     * <p>Downloads are resumable: the partial file is kept together
+     * with a small state file holding the validators of the response.
+     * If a download is interrupted, or a previous run left a partial
+     * file behind, we ask for the missing bytes with a Range request
+     * conditional on the file not having changed (If-Range).
+     *
+     * <p>Complete downloads are added to the download cache.  If we
+     * have a cached copy of the package we ask the server whether it
+     * is still current (If-None-Match/If-Modified-Since) and use the
+     * cached copy if it is.
+     *
      * <p>For library use this method needs a better API for
      * communicating back a bit more than just the return code.
      *
      * @param coordinate Package Coordinate of the package we wish to download.
+     * @return the HTTP status code.  A resumed download which
+     *   completes successfully is reported as 200.
      * @throws Exception fails on any and all exceptions.
      */
     public int download(PackageCoordinate coordinate) throws Exception {
@@ -60,6 +196,7 @@ public class Manager {
 
         final File destinationFile = new File(downloadFilename);
         final File destinationDir = destinationFile.getParentFile();
+        final File stateFile = new File(config.downloadStateFilenameForCoordinate(coordinate));
 
         // Ensure directories exist
         destinationDir.mkdirs();
@@ -69,151 +206,1027 @@ public class Manager {
         log.fine("destination dir  = " + destinationDir.getAbsolutePath());
         log.fine("destination file = " + destinationFile.getAbsolutePath());
 
-        SimpleAHCTransferListener listener = new SimpleAHCTransferListener() {
-                private long last = System.currentTimeMillis();
+        final AsyncHttpClient client = getClient();
 
-                @Override public void onBytesReceived(String url, long amount, long current, long total) {
-                    // Only output progress once every 1000 milliseconds
-                    long now = System.currentTimeMillis();
-                    if ((now - last) > 1000) {
-                        last = now;
-                        long percent = (amount * 100) / total;
-                        log.info(" - Received " + amount + " of " + total + " bytes (" + percent + "%)");
-                    }
-                }
+        // A partial download takes precedence over the cache since
+        // it is what we most recently got from the server.
+        if (DownloadState.load(stateFile) == null) {
+            final DownloadCache.Entry cached = cache.lookup(coordinate, url);
+            if (cached != null && downloadCached(client, coordinate, url, cached, destinationFile, stateFile)) {
+                return 200;
+            }
+        }
 
-                @Override public void onBytesSent(String url, long amount, long current, long total) {}
-                @Override public void onCompleted(String url, int statusCode, String statusText) {}
-                @Override public void onHeaders(String url, HeaderMap headers) {}
-                @Override public void onStatus(String url, int statusCode, String statusText) {}
-            };
+        // Segmented downloads only make sense when starting from
+        // scratch.  If they are not possible we fall back to the
+        // single connection download below.
+        if (config.getDownloadSegments() > 1 && DownloadState.load(stateFile) == null) {
+            final DownloadState state = downloadSegmented(client, url, destinationFile);
+            if (state != null) {
+                addToCache(coordinate, state, destinationFile);
+                return 200;
+            }
+        }
 
-        // Make client
-        SimpleAsyncHttpClient.Builder builder = new SimpleAsyncHttpClient.Builder()
-            .setRequestTimeoutInMs(REQUEST_TIMEOUT_MS)
-            .setFollowRedirects(true)
-            .setCompressionEnabled(true)
-            .setMaximumNumberOfRedirects(MAX_NUM_REDIRECTS)
-            .setMaxRequestRetry(MAX_RETRY_ON_IOEXCEPTION)
-            .setMaximumConnectionsPerHost(MAX_CONNECTIONS_PER_HOST)
-            .setUrl(url)
-            .setListener(listener);
+        for (int attempt = 1; attempt <= MAX_DOWNLOAD_ATTEMPTS; attempt++) {
+            // Figure out if we can resume from a partial download
+            final DownloadState state = DownloadState.load(stateFile);
+            long offset = 0;
+            if (state != null
+                && state.getValidator() != null
+                && state.getUrl().equals(url)
+                && destinationFile.exists()) {
+                offset = destinationFile.length();
+            }
 
-        // Set credentials
-        if (config.getUsername() != "") {
-            builder.setRealmPrincipal(config.getUsername())
-                .setRealmPassword(config.getPassword())
-                .setRealmScheme(AuthScheme.BASIC);
+            AsyncHttpClient.BoundRequestBuilder request = client.prepareGet(url);
+            if (offset > 0) {
+                log.info("Resuming download of " + url + " from byte " + offset);
+                request.addHeader("Range", "bytes=" + offset + "-")
+                    .addHeader("If-Range", state.getValidator());
+            }
+
+            final DownloadHandler handler = new DownloadHandler(url, destinationFile, stateFile, offset);
+            final int statusCode;
+            try {
+                statusCode = request.execute(handler).get();
+            } catch (ExecutionException e) {
+                // Keep the partial file and state so we can resume
+                log.warning("Download attempt " + attempt + " of " + url + " failed: " + e.getCause());
+                continue;
+            }
+
+            if (statusCode == 200 || statusCode == 206) {
+                if (handler.isComplete()) {
+                    downloadComplete(coordinate, destinationFile, stateFile);
+                    return 200;
+                }
+                log.warning("Download attempt " + attempt + " of " + url + " ended early");
+                continue;
+            }
+
+            if (statusCode == 416) {
+                // The range started at or beyond the end of the
+                // file.  If we have exactly the right number of
+                // bytes the partial file was in fact complete,
+                // otherwise it is junk and we start over.
+                if (offset > 0 && handler.getExpectedLength() == offset) {
+                    downloadComplete(coordinate, destinationFile, stateFile);
+                    return 200;
+                }
+                log.warning("Discarding unusable partial download " + destinationFile.getAbsolutePath());
+                destinationFile.delete();
+                stateFile.delete();
+                continue;
+            }
+
+            // Server errors may be transient so we keep the
+            // partial file for the next attempt.  Anything else
+            // means the partial file is junk.
+            if (statusCode < 500) {
+                destinationFile.delete();
+                stateFile.delete();
+            }
+            log.warning("Download failed. Status = " + statusCode + " for " + url);
+            return statusCode;
         }
 
-        SimpleAsyncHttpClient client = builder.build();
+        throw new IOException("Download of " + url + " failed after " + MAX_DOWNLOAD_ATTEMPTS + " attempts");
+    }
+
+    /**
+     * Revalidate the cached copy of a package with a conditional GET.
+     * If the server says it has not been modified the cached copy is
+     * used, otherwise we get the new file in the response.
+     *
+     * @return {@code true} if the download file is in place, {@code
+     *   false} if the caller should download it the regular way.  In
+     *   that case a new file which was only partially received is left
+     *   behind with its state so it can be resumed.
+     */
+    private boolean downloadCached(AsyncHttpClient client,
+                                   PackageCoordinate coordinate,
+                                   String url,
+                                   DownloadCache.Entry cached,
+                                   File destinationFile,
+                                   File stateFile) throws Exception {
+        AsyncHttpClient.BoundRequestBuilder request = client.prepareGet(url);
+        if (cached.getEtag() != null) {
+            request.addHeader("If-None-Match", cached.getEtag());
+        }
+        if (cached.getLastModified() != null) {
+            request.addHeader("If-Modified-Since", cached.getLastModified());
+        }
 
+        final DownloadHandler handler = new DownloadHandler(url, destinationFile, stateFile, 0);
+        final int statusCode;
         try {
-            Response response = client.get(new FileBodyConsumer(new RandomAccessFile(destinationFile, "rw"))).get();
+            statusCode = request.execute(handler).get();
+        } catch (ExecutionException e) {
+            log.warning("Revalidation of " + url + " failed: " + e.getCause());
+            return false;
+        }
 
-            // If the response code indicates anything other than 200 we
-            // will end up with a file that contains junk.  We have to
-            // make sure we delete it.
-            if (response.getStatusCode() != 200) {
-                destinationFile.delete();
-                log.warning("Download failed. Status = " + response.getStatusCode() + ", msg = " + response.getStatusText());
+        if (statusCode == 304) {
+            if (cache.copyTo(cached, destinationFile)) {
+                log.info("Using cached copy of " + url);
+                return true;
             }
-            return response.getStatusCode();
+            return false;
+        }
+
+        if (statusCode == 200 && handler.isComplete()) {
+            log.info("Cached copy of " + url + " was stale");
+            downloadComplete(coordinate, destinationFile, stateFile);
+            return true;
+        }
+        return false;
+    }
 
+    /**
+     * Clean up after a complete download and add the file to the
+     * download cache.
+     */
+    private void downloadComplete(PackageCoordinate coordinate, File destinationFile, File stateFile) {
+        final DownloadState state = DownloadState.load(stateFile);
+        stateFile.delete();
+        if (state != null) {
+            addToCache(coordinate, state, destinationFile);
+        }
+    }
+
+    /**
+     * Add a downloaded file to the download cache.  The cache is only
+     * an optimization so failures are logged and otherwise ignored.
+     */
+    private void addToCache(PackageCoordinate coordinate, DownloadState state, File destinationFile) {
+        try {
+            cache.put(coordinate, state, destinationFile);
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Unable to cache " + destinationFile.getAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * Download a file as a number of byte ranges fetched in parallel
+     * over separate connections.  The file is sized up front and each
+     * segment is written at its own offset.
+     *
+     * <p>Only files with a validator are segmented, and every
+     * segment is requested with If-Range and must report the length
+     * from the HEAD response, so all segments come from the same
+     * version of the file.
+     *
+     * <p>No state file is kept for a segmented download since the
+     * partial file has holes in it.  If anything goes wrong the
+     * partial file is deleted and the caller is expected to fall back
+     * to a plain download.
+     *
+     * @return the URL and validators of the file if it was
+     *   downloaded, {@code null} if segmented download was not
+     *   possible or failed.
+     */
+    private DownloadState downloadSegmented(AsyncHttpClient client, String url, File destinationFile) throws Exception {
+        final Response head;
+        try {
+            head = client.prepareHead(url).execute().get();
+        } catch (ExecutionException e) {
+            log.fine("HEAD " + url + " failed: " + e.getCause());
+            return null;
+        }
+
+        if (head.getStatusCode() != 200 || ! "bytes".equals(head.getHeader("Accept-Ranges"))) {
+            return null;
+        }
+
+        final long length;
+        try {
+            length = Long.parseLong(head.getHeader("Content-Length"));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+
+        final long numSegments = Math.min(config.getDownloadSegments(), length / config.getMinSegmentSize());
+        if (numSegments < 2) {
+            return null;
+        }
+
+        // Make sure the ranges are only served if the file is the
+        // one we sized the download for.  Without a validator the
+        // segments might come from different versions of the file.
+        final DownloadState state = new DownloadState(url,
+                                                      head.getHeader("ETag"),
+                                                      head.getHeader("Last-Modified"),
+                                                      length);
+        final String validator = state.getValidator();
+        if (validator == null) {
+            log.fine("No ETag or Last-Modified for " + url + ", not segmenting");
+            return null;
+        }
+
+        // The old file may be a hard link into the download cache so
+        // we must not resize it in place.
+        destinationFile.delete();
+        final RandomAccessFile file = new RandomAccessFile(destinationFile, "rw");
+        try {
+            file.setLength(length);
         } finally {
-            client.close();
+            file.close();
+        }
+
+        log.info("Downloading " + url + " in " + numSegments + " segments");
+
+        final long segmentSize = length / numSegments;
+        final List<DownloadHandler> handlers = new ArrayList<>();
+        final List<Future<Integer>> futures = new ArrayList<>();
+        for (long i = 0; i < numSegments; i++) {
+            final long first = i * segmentSize;
+            final long last = (i == numSegments - 1) ? length - 1 : first + segmentSize - 1;
+
+            final DownloadHandler handler = DownloadHandler.forSegment(url, destinationFile, first, last, length);
+            handlers.add(handler);
+            futures.add(client.prepareGet(url)
+                        .addHeader("Range", "bytes=" + first + "-" + last)
+                        .addHeader("If-Range", validator)
+                        .execute(handler));
+        }
+
+        boolean ok = true;
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                futures.get(i).get();
+            } catch (ExecutionException e) {
+                log.warning("Segment " + i + " of " + url + " failed: " + e.getCause());
+                ok = false;
+                continue;
+            }
+
+            final DownloadHandler handler = handlers.get(i);
+            if (handler.getStatusCode() != 206 || ! handler.isComplete()) {
+                log.warning("Segment " + i + " of " + url + " incomplete. Status = " + handler.getStatusCode());
+                ok = false;
+            }
         }
+
+        if (! ok) {
+            destinationFile.delete();
+            return null;
+        }
+        return state;
     }
 
     /**
      * Install a package given by coordinate.
      *
-     * TODO(borud): change strategy somewhat with regard to
-     *   unpack-dir.  Give it a randomized name and check for
-     *   collision.  The current method is better than simply
-     *   unpacking but it isn't entirely bullet-proof.
+     * <p>The package is locked while it is installed, see {@link
+     * PackageLock}.  Other processes can install other packages at
+     * the same time.  If another process is installing the same
+     * package we wait for it and use its result.
      *
      * @param coordinate the coordinate of the package we wish to
      *   install.
+     * @return the result of the install.
      * @throws Exception fails on any and all exceptions.
      */
-    public void install(PackageCoordinate coordinate) throws Exception {
-        File targetDir = new File(config.packageDirectoryForCoordinate(coordinate));
+    public InstallResult install(PackageCoordinate coordinate) throws Exception {
+        final InstallResult installed = checkInstalled(coordinate);
+        if (installed != null) {
+            return installed;
+        }
 
-        // If the target directory exists, we assume the package is
-        // installed and bail early
-        if (targetDir.exists()) {
-            log.warning("Target dir " + targetDir.getAbsolutePath() + " exists.  Already installed?");
-            return;
+        final PackageLock lock = lockPackage(coordinate);
+        try {
+            final InstallResult concurrent = checkInstalledConcurrently(coordinate, lock);
+            if (concurrent != null) {
+                return concurrent;
+            }
+
+            if (config.isDeltaInstall()) {
+                final InstallResult result = deltaPackage(coordinate);
+                if (result != null) {
+                    return result;
+                }
+            }
+
+            if (isStreaming()) {
+                return streamPackage(coordinate);
+            }
+
+            final InstallResult result = fetchPackage(coordinate);
+            if (result != null) {
+                return result;
+            }
+            return unpackPackage(coordinate);
+        } finally {
+            lock.close();
+        }
+    }
+
+    /**
+     * Install a list of packages.  Downloading and unpacking are run
+     * as two separate stages, each with its own concurrency limit
+     * from the configuration, so that packages which have already
+     * been downloaded are unpacked while the rest are still
+     * downloading.
+     *
+     * <p>In streaming install mode the download stage extracts the
+     * package as it arrives, so the unpack stage is not used.
+     *
+     * <p>Failures are reported per package in the returned list
+     * rather than aborting the whole batch.  Duplicate coordinates
+     * are only installed once.  Each package is locked from the
+     * start of its download until it has been unpacked.
+     *
+     * @param coordinates the coordinates of the packages we wish to
+     *   install.
+     * @return one result per distinct coordinate, in the order the
+     *   coordinates were given.
+     * @throws InterruptedException if interrupted while waiting for
+     *   the installs to complete.
+     */
+    public List<InstallResult> install(final List<PackageCoordinate> coordinates) throws InterruptedException {
+        final Map<String, PackageCoordinate> distinct = new LinkedHashMap<>();
+        for (PackageCoordinate coordinate : coordinates) {
+            distinct.put(coordinate.asString(), coordinate);
+        }
+
+        final List<PackageCoordinate> work = new ArrayList<>(distinct.values());
+        final InstallResult[] results = new InstallResult[work.size()];
+        final CountDownLatch doneLatch = new CountDownLatch(work.size());
+
+        final ExecutorService downloadExecutor = Executors.newFixedThreadPool(config.getMaxConcurrentDownloads());
+        final ExecutorService unpackExecutor = Executors.newFixedThreadPool(config.getMaxConcurrentUnpacks());
+        try {
+            for (int i = 0; i < work.size(); i++) {
+                final int index = i;
+                final PackageCoordinate coordinate = work.get(i);
+
+                downloadExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        InstallResult result = checkInstalled(coordinate);
+                        if (result != null) {
+                            results[index] = result;
+                            doneLatch.countDown();
+                            return;
+                        }
+
+                        final PackageLock lock;
+                        try {
+                            lock = lockPackage(coordinate);
+                        } catch (IOException e) {
+                            log.log(Level.WARNING, "Unable to lock " + coordinate, e);
+                            results[index] = new InstallResult(coordinate,
+                                                               InstallResult.Status.DOWNLOAD_FAILED,
+                                                               "Unable to lock package: " + e.getMessage());
+                            doneLatch.countDown();
+                            return;
+                        }
+
+                        try {
+                            result = checkInstalledConcurrently(coordinate, lock);
+                            if (result == null && config.isDeltaInstall()) {
+                                result = deltaPackage(coordinate);
+                            }
+                            if (result == null) {
+                                if (isStreaming()) {
+                                    result = streamPackage(coordinate);
+                                } else {
+                                    result = fetchPackage(coordinate);
+                                }
+                            }
+                        } catch (Exception e) {
+                            log.log(Level.WARNING, "Download of " + coordinate + " failed", e);
+                            result = new InstallResult(coordinate,
+                                                       InstallResult.Status.DOWNLOAD_FAILED,
+                                                       "Download failed: " + e.getMessage());
+                        }
+
+                        if (result != null) {
+                            results[index] = result;
+                            unlockPackage(coordinate, lock);
+                            doneLatch.countDown();
+                            return;
+                        }
+
+                        // Hand the package over to the unpack stage so
+                        // this thread can move on to the next download.
+                        // The unpack stage releases the lock.
+                        unpackExecutor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    results[index] = unpackPackage(coordinate);
+                                } catch (Exception e) {
+                                    log.log(Level.WARNING, "Unpacking " + coordinate + " failed", e);
+                                    results[index] = new InstallResult(coordinate,
+                                                                       InstallResult.Status.UNPACK_FAILED,
+                                                                       "Unpacking failed: " + e.getMessage());
+                                } finally {
+                                    unlockPackage(coordinate, lock);
+                                    doneLatch.countDown();
+                                }
+                            }
+                        });
+                    }
+                });
+            }
+
+            doneLatch.await();
+        } finally {
+            downloadExecutor.shutdown();
+            unpackExecutor.shutdown();
+        }
+
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Lock a package for installing or uninstalling.
+     */
+    PackageLock lockPackage(PackageCoordinate coordinate) throws IOException {
+        return PackageLock.acquire(new File(config.lockFilenameForCoordinate(coordinate)));
+    }
+
+    /**
+     * Lock the content store.  Installs hold the lock shared from the
+     * time they add a blob until they have linked to it, since a blob
+     * nothing links to yet looks like garbage to {@link #gc}, which
+     * holds the lock exclusively.
+     */
+    private PackageLock lockContentStore(boolean shared) throws IOException {
+        final File lockFile = new File(config.getContentStoreLockFilename());
+        return shared ? PackageLock.acquireShared(lockFile) : PackageLock.acquire(lockFile);
+    }
+
+    /**
+     * Release a package lock, logging rather than throwing failures
+     * since the lock is released with the process anyway.
+     */
+    private static void unlockPackage(PackageCoordinate coordinate, PackageLock lock) {
+        try {
+            lock.close();
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Unable to release lock for " + coordinate, e);
+        }
+    }
+
+    /**
+     * Check whether the package was installed while we were waiting
+     * for the lock.
+     *
+     * @return {@code null} if the package is not installed, otherwise
+     *   the final result for the package.
+     */
+    private InstallResult checkInstalledConcurrently(PackageCoordinate coordinate, PackageLock lock) {
+        final File targetDir = new File(config.packageDirectoryForCoordinate(coordinate));
+        if (! targetDir.exists()) {
+            return null;
+        }
+
+        log.info("Package " + coordinate + " was installed by another installer");
+        return new InstallResult(coordinate,
+                                 InstallResult.Status.ALREADY_INSTALLED,
+                                 (lock.isContended() ? "Installed by another installer into " : "Installed into ")
+                                 + targetDir.getAbsolutePath());
+    }
+
+    /**
+     * Make a new, empty directory to unpack a package into.  The name
+     * is randomized so that a leftover from an earlier install which
+     * died never gets in the way.
+     *
+     * @param targetDir the directory the package will be moved to
+     *   once it is unpacked.
+     */
+    static File newUnpackDir(File targetDir) throws IOException {
+        final File parent = targetDir.getParentFile();
+        if (! (parent.mkdirs() || parent.isDirectory())) {
+            throw new IOException("Unable to create directory: " + parent.getAbsolutePath());
+        }
+
+        for (int i = 0; i < 10; i++) {
+            final File unpackDir = new File(targetDir.getAbsolutePath()
+                                            + "---"
+                                            + UNPACK_DIR_SUFFIX
+                                            + "-"
+                                            + Long.toHexString(random.nextLong() & Long.MAX_VALUE));
+            // mkdir fails if the directory exists
+            if (unpackDir.mkdir()) {
+                return unpackDir;
+            }
+        }
+        throw new IOException("Unable to create unpack directory for " + targetDir.getAbsolutePath());
+    }
+
+    /**
+     * Streaming install is not used in dedup install mode since we
+     * need to read each entry twice, once to hash it and once to
+     * store it, and a stream can only be read once.  Nor in lazy
+     * install mode, which only extracts some of the entries and has
+     * to keep the package ZIP file.
+     */
+    private boolean isStreaming() {
+        return config.isStreamingInstall() && ! config.isDedupInstall() && ! config.isLazyInstall();
+    }
+
+    /**
+     * @return the archive and list of files not yet extracted of a
+     *   lazily installed package.
+     */
+    LazyPackage lazyPackage(PackageCoordinate coordinate) {
+        return new LazyPackage(new File(config.lazyArchiveFilenameForCoordinate(coordinate)),
+                               new File(config.lazyIndexFilenameForCoordinate(coordinate)));
+    }
+
+    /**
+     * First stage of installing a package: make sure the package is
+     * not already installed and download it.
+     *
+     * @param coordinate the coordinate of the package we wish to
+     *   install.
+     * @return {@code null} if the package is downloaded and ready to
+     *   be unpacked, otherwise the final result for the package.
+     */
+    private InstallResult fetchPackage(PackageCoordinate coordinate) throws Exception {
+        final InstallResult installed = checkInstalled(coordinate);
+        if (installed != null) {
+            return installed;
         }
 
         // Fetch the file from the package repository
         int response = download(coordinate);
         if (response != 200) {
             log.warning("Download failed with code HTTP response " + response + " for " + coordinate);
-            return;
+            return new InstallResult(coordinate,
+                                     InstallResult.Status.DOWNLOAD_FAILED,
+                                     "Download failed with HTTP response " + response);
         }
 
         // Make sure we have the download file
         File downloadFile = new File(config.downloadFilenameForCoordinate(coordinate));
         if (! downloadFile.exists()) {
             log.warning("Couldn't find downloaded file " + downloadFile.getAbsolutePath());
-            return;
+            return new InstallResult(coordinate,
+                                     InstallResult.Status.DOWNLOAD_FAILED,
+                                     "Couldn't find downloaded file " + downloadFile.getAbsolutePath());
         }
+        return null;
+    }
+
+    /**
+     * Second stage of installing a package: unpack the downloaded
+     * file and move it into place.
+     *
+     * @param coordinate the coordinate of the package we wish to
+     *   install.
+     * @return the final result for the package.
+     */
+    private InstallResult unpackPackage(PackageCoordinate coordinate) throws Exception {
+        File targetDir = new File(config.packageDirectoryForCoordinate(coordinate));
+        File downloadFile = new File(config.downloadFilenameForCoordinate(coordinate));
 
-        // Create a directory for unpacking.
-        //
-        // TODO(borud): this is where we *might* want to add some form
-        // of dotlocking later to make it possible to run concurrent
-        // installs from different processes as long as they operate
-        // on different packages.  This is preferable to having a
-        // master lock.
-        File unpackDir = new File(targetDir.getAbsolutePath()
-                                  + "---"
-                                  + UNPACK_DIR_SUFFIX);
+        // Create a directory for unpacking.  The caller holds the
+        // package lock.
+        File unpackDir = newUnpackDir(targetDir);
 
         log.fine("Unpacking " + downloadFile + " into " + unpackDir);
-        unpackDir.mkdirs();
 
-        // Now unzip the file into the unpack dir
-        Unzip.unzip(downloadFile, unpackDir);
+        // Now unzip the file into the unpack dir.  A lazy install
+        // leaves the files which do not match the eager patterns in
+        // the ZIP file.
+        final Unzip unzip = new Unzip(downloadFile, unpackDir)
+            .setNumThreads(config.getUnpackThreads())
+            .setContentStore(config.isDedupInstall() ? contentStore : null)
+            .setFilter(config.isLazyInstall() ? LazyPackage.eagerMatcher(config.getEagerPatterns()) : null);
+        boolean unpacked = false;
+        PackageLock storeLock = null;
+        try {
+            if (config.isDedupInstall()) {
+                storeLock = lockContentStore(true);
+            }
+            unzip.unzip();
+            unpacked = true;
+        } finally {
+            if (storeLock != null) {
+                storeLock.close();
+            }
+            if (! unpacked) {
+                getReaper().reap(unpackDir);
+            }
+        }
+
+        return moveIntoPlace(coordinate, downloadFile, unpackDir, targetDir, null, unzip.getSkipped());
+    }
+
+    /**
+     * Install a package by extracting it while it is being
+     * downloaded.  The body of the response is written to the
+     * download file as usual and at the same time fed to a streaming
+     * unzip, so the install takes roughly as long as the slower of
+     * the two rather than their sum.
+     *
+     * <p>Once the download is complete the unix modes are applied
+     * from the central directory of the downloaded file, since the
+     * local headers the streaming unzip works from do not have them.
+     *
+     * <p>If streaming fails for any reason (some ZIP files cannot be
+     * read from a stream) we fall back to the regular download and
+     * unpack, which resumes from whatever we managed to download.
+     *
+     * @param coordinate the coordinate of the package we wish to
+     *   install.
+     * @return the final result for the package.
+     */
+    private InstallResult streamPackage(PackageCoordinate coordinate) throws Exception {
+        final InstallResult installed = checkInstalled(coordinate);
+        if (installed != null) {
+            return installed;
+        }
+
+        final File targetDir = new File(config.packageDirectoryForCoordinate(coordinate));
+        final File downloadFile = new File(config.downloadFilenameForCoordinate(coordinate));
+        final File stateFile = new File(config.downloadStateFilenameForCoordinate(coordinate));
+        final String url = coordinate.toUrl(config.getPackageBaseUrl());
+
+        // No point in streaming if the package is in the cache
+        if (cache.lookup(coordinate, url) != null) {
+            final InstallResult result = fetchPackage(coordinate);
+            if (result != null) {
+                return result;
+            }
+            return unpackPackage(coordinate);
+        }
+
+        final File unpackDir = newUnpackDir(targetDir);
+
+        // Unless moveIntoPlace takes over the unpack dir it is reaped
+        // on the way out, whatever the reason.
+        boolean handedOver = false;
+        try {
+            downloadFile.getParentFile().mkdirs();
+
+            log.fine("Streaming " + url + " into " + unpackDir);
+            final StreamingDownloadHandler handler = new StreamingDownloadHandler(url, downloadFile, stateFile);
+            final Future<Integer> future = getClient().prepareGet(url).execute(handler);
+
+            // If the unzip bails out early the download still runs to
+            // completion, since the body goes to the download file.
+            // Anything other than an IOException is not a problem with
+            // the stream, so the download is stopped and it is passed on.
+            IOException unzipFailure = null;
+            final InputStream in = handler.getInputStream();
+            try {
+                Unzip.unzip(in, unpackDir);
+            } catch (IOException e) {
+                unzipFailure = e;
+            } catch (RuntimeException | Error e) {
+                future.cancel(true);
+                throw e;
+            } finally {
+                in.close();
+            }
+
+            int statusCode = -1;
+            try {
+                statusCode = future.get();
+            } catch (ExecutionException e) {
+                log.warning("Streaming download of " + url + " failed: " + e.getCause());
+            }
+
+            if (statusCode == 200 && handler.isComplete() && unzipFailure == null) {
+                downloadComplete(coordinate, downloadFile, stateFile);
+                Unzip.applyUnixModes(downloadFile, unpackDir);
+                handedOver = true;
+                return moveIntoPlace(coordinate, downloadFile, unpackDir, targetDir, null, null);
+            }
+
+            if (unzipFailure != null) {
+                log.warning("Streaming unzip of " + url + " failed: " + unzipFailure.getMessage());
+            }
+        } finally {
+            if (! handedOver) {
+                getReaper().reap(unpackDir);
+            }
+        }
+
+        log.info("Falling back to regular install of " + coordinate);
+
+        final InstallResult result = fetchPackage(coordinate);
+        if (result != null) {
+            return result;
+        }
+        return unpackPackage(coordinate);
+    }
+
+    /**
+     * Install a package by fetching only the files which differ from
+     * an installed version of the same package, see {@link
+     * DeltaInstaller}.
+     *
+     * @param coordinate the coordinate of the package we wish to
+     *   install.
+     * @return the final result for the package, or {@code null} if
+     *   there is no installed version to work from or a delta install
+     *   failed, in which case the caller should do a regular install.
+     */
+    private InstallResult deltaPackage(PackageCoordinate coordinate) throws Exception {
+        final InstallResult installed = checkInstalled(coordinate);
+        if (installed != null) {
+            return installed;
+        }
+
+        // A lazy install needs the whole package ZIP file, which a
+        // delta install does not download
+        if (config.isLazyInstall()) {
+            return null;
+        }
+
+        final File targetDir = new File(config.packageDirectoryForCoordinate(coordinate));
+        final File baseDir = findBaseVersion(targetDir);
+        if (baseDir == null) {
+            return null;
+        }
+
+        // The files a lazy install has not extracted are not there to
+        // copy from
+        final PackageCoordinate base = new PackageCoordinate(coordinate.getGroupId(),
+                                                             coordinate.getArtifactId(),
+                                                             baseDir.getName());
+        if (! lazyPackage(base).readPending().isEmpty()) {
+            log.fine("Not delta installing " + coordinate + ", " + base + " is not fully materialized");
+            return null;
+        }
+
+        final File downloadFile = new File(config.downloadFilenameForCoordinate(coordinate));
+        final File unpackDir = newUnpackDir(targetDir);
+        final String url = coordinate.toUrl(config.getPackageBaseUrl());
+
+        log.fine("Delta installing " + url + " into " + unpackDir + " based on " + baseDir);
+        final DeltaInstaller installer = new DeltaInstaller(getClient(),
+                                                            url,
+                                                            baseDir,
+                                                            new File(downloadFile.getAbsolutePath() + DELTA_FILE_SUFFIX),
+                                                            unpackDir)
+            .setContentStore(config.isDedupInstall() ? contentStore : null);
+        boolean ok = false;
+        PackageLock storeLock = null;
+        try {
+            if (config.isDedupInstall()) {
+                storeLock = lockContentStore(true);
+            }
+            ok = installer.install();
+        } catch (Exception e) {
+            log.log(Level.WARNING, "Delta install of " + coordinate + " failed", e);
+        } finally {
+            if (storeLock != null) {
+                storeLock.close();
+            }
+        }
+
+        if (! ok) {
+            log.info("Falling back to regular install of " + coordinate);
+            getReaper().reap(unpackDir);
+            return null;
+        }
+        return moveIntoPlace(coordinate, downloadFile, unpackDir, targetDir, installer.getEntries(), null);
+    }
+
+    /**
+     * Find the installed version of a package a new version should be
+     * based on: the highest version below the new one, or failing
+     * that the lowest version above it.
+     *
+     * @param targetDir the directory the new version will be installed in
+     * @return the directory of the installed version or {@code null}
+     *   if no other version is installed.
+     */
+    private static File findBaseVersion(File targetDir) {
+        final String version = targetDir.getName();
+        final File[] dirs = targetDir.getParentFile().listFiles();
+        if (dirs == null) {
+            return null;
+        }
+
+        File below = null;
+        File above = null;
+        for (final File dir : dirs) {
+            // Skip half done installs and uninstalls
+            if (! dir.isDirectory() || dir.getName().contains("---") || dir.getName().equals(version)) {
+                continue;
+            }
+
+            if (DeltaInstaller.compareVersions(dir.getName(), version) < 0) {
+                if (below == null || DeltaInstaller.compareVersions(dir.getName(), below.getName()) > 0) {
+                    below = dir;
+                }
+            } else if (above == null || DeltaInstaller.compareVersions(dir.getName(), above.getName()) < 0) {
+                above = dir;
+            }
+        }
+        return (below != null) ? below : above;
+    }
+
+    /**
+     * @return {@code null} if the package is not installed, otherwise
+     *   the final result for the package.
+     */
+    private InstallResult checkInstalled(PackageCoordinate coordinate) {
+        File targetDir = new File(config.packageDirectoryForCoordinate(coordinate));
+
+        // If the target directory exists, we assume the package is
+        // installed and bail early
+        if (targetDir.exists()) {
+            log.warning("Target dir " + targetDir.getAbsolutePath() + " exists.  Already installed?");
+            return new InstallResult(coordinate,
+                                     InstallResult.Status.ALREADY_INSTALLED,
+                                     "Target dir " + targetDir.getAbsolutePath() + " exists");
+        }
+        return null;
+    }
+
+    /**
+     * Move a fully unpacked package into place.  On unixen this is
+     * atomic.  Adds the package to the index, evicts other packages
+     * if it does not fit in the disk budget, and removes the download
+     * file unless we keep downloads.
+     *
+     * <p>In durable install mode the unpacked files and directories
+     * are flushed to disk before the rename, and the directories the
+     * package is renamed into after it.  See {@link FileSync}.
+     *
+     * <p>If a lazy install left files in the download file, it is
+     * kept as the archive of the package before the rename, see
+     * {@link LazyPackage}.
+     *
+     * @param entries the entries of the package ZIP file, or {@code
+     *   null} to read them from the download file.
+     * @param deferred the files which were not extracted, or {@code
+     *   null} if every file was.
+     *
+     * @return the final result for the package.
+     */
+    private InstallResult moveIntoPlace(PackageCoordinate coordinate,
+                                        File downloadFile,
+                                        File unpackDir,
+                                        File targetDir,
+                                        List<ZipDirectory.Entry> entries,
+                                        List<String> deferred) {
+        InstalledPackage installed = null;
+        try {
+            if (entries == null) {
+                try (FileChannel channel = FileChannel.open(downloadFile.toPath(), StandardOpenOption.READ)) {
+                    entries = ZipDirectory.read(channel);
+                }
+            }
+            installed = PackageIndex.summarize(coordinate, System.currentTimeMillis(), entries);
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Unable to read the entries of " + downloadFile.getAbsolutePath(), e);
+        }
+
+        final LazyPackage lazy = lazyPackage(coordinate);
+        lazy.delete();
+        if (deferred != null && ! deferred.isEmpty()) {
+            try {
+                lazy.keep(downloadFile, deferred);
+                log.info("Deferred " + deferred.size() + " files of " + coordinate + " until they are materialized");
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Unable to keep " + downloadFile.getAbsolutePath() + " for a lazy install", e);
+                getReaper().reap(unpackDir);
+                return new InstallResult(coordinate,
+                                         InstallResult.Status.UNPACK_FAILED,
+                                         "Unable to keep " + downloadFile.getAbsolutePath() + ": " + e.getMessage());
+            }
+        }
+
+        if (config.isDurableInstall()) {
+            final ForkJoinPool pool = new ForkJoinPool(config.getUnpackThreads());
+            try {
+                FileSync.syncTree(unpackDir.toPath(), pool);
+                if (lazy.getArchive().exists()) {
+                    FileSync.sync(lazy.getArchive().toPath());
+                }
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Unable to flush " + unpackDir.getAbsolutePath() + " to disk", e);
+                getReaper().reap(unpackDir);
+                lazy.delete();
+                return new InstallResult(coordinate,
+                                         InstallResult.Status.UNPACK_FAILED,
+                                         "Unable to flush " + unpackDir.getAbsolutePath() + " to disk: " + e.getMessage());
+            } finally {
+                pool.shutdown();
+            }
+        }
 
-        // Move into place.  On unixen this is atomic.
         if (! unpackDir.renameTo(targetDir)) {
+            lazy.delete();
             log.warning("Unable to rename from " + unpackDir.getAbsolutePath()
                         + " to " + targetDir.getAbsolutePath());
-            return;
+            return new InstallResult(coordinate,
+                                     InstallResult.Status.UNPACK_FAILED,
+                                     "Unable to rename from " + unpackDir.getAbsolutePath()
+                                     + " to " + targetDir.getAbsolutePath());
+        }
+
+        if (config.isDurableInstall()) {
+            try {
+                syncParents(targetDir);
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Unable to flush the directory entry of " + targetDir.getAbsolutePath(), e);
+            }
+        }
+
+        // Without a central directory we can read, like that of a
+        // ZIP64 file, the installed files are summarized instead.
+        if (installed == null) {
+            try {
+                installed = PackageIndex.scan(coordinate, targetDir);
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Unable to summarize " + targetDir.getAbsolutePath() + " for the index", e);
+            }
+        }
+        if (installed != null) {
+            if (lazy.getArchive().exists()) {
+                installed = InstalledPackages.lazySize(installed, entries, deferred, lazy.getArchive());
+            }
+            packages.update(installed, null);
+        }
+
+        // Make room for the package within the disk budget.  This is
+        // only done once the package is in place and in the index, so
+        // a failed install evicts nothing and the package is counted
+        // at its size.
+        try {
+            evictor.evict(coordinate, false);
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Unable to evict packages to make room for " + coordinate, e);
+        }
+
+        // The files have just been checked against the manifest, so
+        // their stats are all incremental verification needs.
+        try {
+            PackageVerifier.record(targetDir, new File(config.statCacheFilenameForCoordinate(coordinate)));
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Unable to record the stat cache of " + coordinate, e);
+        }
+
+        if (! config.isKeepDownloads()) {
+            downloadFile.delete();
         }
 
         log.info("Installed " + coordinate.toString() + " into " + targetDir);
+        return new InstallResult(coordinate,
+                                 InstallResult.Status.INSTALLED,
+                                 "Installed into " + targetDir.getAbsolutePath());
     }
 
     /**
-     * Uninstall package.  Renames the enclosing directory before
-     * proceeding to delete it so that the directory is not allowed to
-     * exist in a half removed state (recursive delete of directory
-     * trees is not atomic).  Removes as much of the path as possible.
+     * Flush the directories from the one a package was renamed into up
+     * to the package directory, since installing may have created
+     * them.
+     */
+    private void syncParents(File targetDir) throws IOException {
+        final File packageDir = new File(config.getPackageDir()).getAbsoluteFile();
+        for (File dir = targetDir.getAbsoluteFile().getParentFile(); dir != null; dir = dir.getParentFile()) {
+            FileSync.sync(dir.toPath());
+            if (dir.equals(packageDir)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Uninstall package.  The package directory is renamed out of the
+     * way, which is atomic, so the package is either installed or not
+     * and never half removed.  The files are then deleted in the
+     * background by the reaper, so this returns as soon as the rename
+     * is done.  The package is locked while it is uninstalled.
      *
      * @param coordinate the coordinate we wish to uninstall
      */
     public void uninstall(PackageCoordinate coordinate) throws Exception {
-        File targetDir = new File(config.getPackageDir()
-                                  + File.separatorChar
-                                  + coordinate.getPathFragment());
-
-        File removeDir = new File(targetDir.getAbsolutePath()
-                                  + "---"
-                                  + REMOVE_DIR_SUFFIX);
-
-        // First check if there is a leftover removeDir and nuke it
-        if (removeDir.exists()) {
-            log.info("Found incomplete uninstall.  Cleaning up.");
-            new Traverse() {
-                @Override public void after(final File f) {
-                    f.delete();
-                    log.info("Removed " + f.getAbsolutePath());
+        final PackageLock lock = lockPackage(coordinate);
+        try {
+            uninstallLocked(coordinate);
+        } finally {
+            lock.close();
+        }
+    }
+
+    void uninstallLocked(PackageCoordinate coordinate) throws IOException {
+        File targetDir = new File(config.packageDirectoryForCoordinate(coordinate));
+
+        // Pick up leftovers from uninstalls which died before the
+        // reaper was done
+        final File[] siblings = targetDir.getParentFile().listFiles();
+        if (siblings != null) {
+            final String prefix = targetDir.getName() + "---" + REMOVE_DIR_SUFFIX;
+            for (final File f : siblings) {
+                if (f.getName().startsWith(prefix)) {
+                    log.info("Found incomplete uninstall " + f.getAbsolutePath() + ".  Cleaning up.");
+                    getReaper().reap(f);
                 }
-            };
+            }
         }
 
         if (! targetDir.exists()) {
@@ -222,22 +1235,188 @@ public class Manager {
         }
 
         // Renaming is atomic which means we can rename and then take
-        // our time removing the files recursively.
+        // our time removing the files.
+        final File removeDir = newRemoveDir(targetDir);
         if (! targetDir.renameTo(removeDir)) {
-            log.warning("Unable to rename " + targetDir.getAbsolutePath() + " to " + removeDir.getAbsolutePath());
+            throw new IOException("Unable to rename " + targetDir.getAbsolutePath() + " to " + removeDir.getAbsolutePath());
+        }
+        getReaper().reap(removeDir);
+        packages.update(null, coordinate);
+        new File(config.statCacheFilenameForCoordinate(coordinate)).delete();
+        lazyPackage(coordinate).delete();
+
+        log.info("Uninstalled " + coordinate.toString());
+    }
+
+    /**
+     * Pick a name to rename a package directory to before it is
+     * deleted.  The name is randomized since a directory from an
+     * earlier uninstall of the same version may still be around.
+     */
+    private static File newRemoveDir(File targetDir) throws IOException {
+        for (int i = 0; i < 10; i++) {
+            final File removeDir = new File(targetDir.getAbsolutePath()
+                                            + "---"
+                                            + REMOVE_DIR_SUFFIX
+                                            + "-"
+                                            + Long.toHexString(random.nextLong() & Long.MAX_VALUE));
+            if (! removeDir.exists()) {
+                return removeDir;
+            }
         }
+        throw new IOException("Unable to find a name to remove " + targetDir.getAbsolutePath() + " under");
+    }
 
-        // Traverse the directory and recursively delete everything in it.
-        new Traverse() {
-            @Override public void after(final File f) {
-                if (! f.delete()) {
-                    log.warning("Failed to delete " + f.getAbsolutePath());
-                    return;
+    /**
+     * Look for directories left behind by installs and uninstalls
+     * which died, and have the reaper delete them.  This is meant to
+     * be called at startup.  The search runs on the reaper thread so
+     * this returns at once.
+     *
+     * <p>Leftover remove directories can always be deleted.  An
+     * unpack directory may belong to an install in progress in
+     * another process, so it is only deleted if we can get the lock
+     * for its package.
+     */
+    public void reapStaleDirectories() {
+        final File packageDir = new File(config.getPackageDir());
+        final Reaper reaper = getReaper();
+        reaper.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Map<File, PackageCoordinate> leftovers = new LinkedHashMap<>();
+                InstalledPackages.scanPackageDirectory(packageDir, new ArrayList<String>(), new LinkedHashMap<File, PackageCoordinate>(), leftovers);
+                for (final Map.Entry<File, PackageCoordinate> leftover : leftovers.entrySet()) {
+                    reapStaleDirectory(reaper, leftover.getKey(), leftover.getValue());
                 }
-                log.fine("Deleted " + f.getAbsolutePath());
             }
-        }.traverse(removeDir);
+        });
+    }
 
-        log.info("Uninstalled " + coordinate.toString());
+    private void reapStaleDirectory(Reaper reaper, File dir, PackageCoordinate coordinate) {
+        final String suffix = dir.getName().substring(dir.getName().indexOf("---") + 3);
+        if (suffix.startsWith(REMOVE_DIR_SUFFIX)) {
+            log.info("Found incomplete uninstall " + dir.getAbsolutePath() + ".  Cleaning up.");
+            reaper.reap(dir);
+            return;
+        }
+
+        if (! suffix.startsWith(UNPACK_DIR_SUFFIX) || coordinate == null) {
+            return;
+        }
+        try {
+            final PackageLock lock = PackageLock.tryAcquire(new File(config.lockFilenameForCoordinate(coordinate)));
+            if (lock == null) {
+                log.fine("Not removing " + dir.getAbsolutePath() + ", " + coordinate + " is being installed");
+                return;
+            }
+            try {
+                log.info("Found incomplete install " + dir.getAbsolutePath() + ".  Cleaning up.");
+                reaper.reap(dir);
+            } finally {
+                lock.close();
+            }
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Unable to lock " + coordinate, e);
+        }
+    }
+
+    /**
+     * List the installed packages.  This reads the package index,
+     * which is rebuilt if it is missing or corrupt.
+     *
+     * @return the installed packages in coordinate order.
+     */
+    public List<InstalledPackage> list() throws IOException {
+        return packages.list();
+    }
+
+    /**
+     * @return the index entry of an installed package or {@code null}
+     *   if the package is not installed.
+     */
+    public InstalledPackage getInstalled(PackageCoordinate coordinate) throws IOException {
+        return packages.get(coordinate);
+    }
+
+    /**
+     * Check an installed package against its manifest, using all
+     * cores.  The package is locked while it is checked so it is not
+     * uninstalled under our feet.
+     *
+     * @param incremental if {@code true} only hash the files whose
+     *   stat has changed since they were installed or last verified.
+     * @throws FileNotFoundException if the package is not installed
+     *   or has no manifest.
+     */
+    public PackageVerifier.Result verify(PackageCoordinate coordinate, boolean incremental) throws IOException {
+        return materializer.verify(coordinate, incremental);
+    }
+
+    /**
+     * Extract files a lazy install left in the package ZIP file.  The
+     * files are extracted into a directory of their own, checked
+     * against the manifest if there is one, and then renamed into the
+     * package one by one, so a file is either there in full or not at
+     * all.  The package is locked while this is done.
+     *
+     * @param coordinate the coordinate of the package
+     * @param pattern a glob pattern, see {@link LazyPackage}
+     * @return the names of the files extracted.  Empty if no file
+     *   which has yet to be extracted matches the pattern.
+     * @throws FileNotFoundException if the package is not installed.
+     */
+    public List<String> materialize(PackageCoordinate coordinate, String pattern) throws IOException {
+        return materializer.materialize(coordinate, pattern);
+    }
+
+    /**
+     * Rebuild the package index from the package directory.  This
+     * reads every installed file to work out the content hashes.
+     *
+     * @return the installed packages in coordinate order.
+     */
+    public List<InstalledPackage> rebuildIndex() throws IOException {
+        return packages.rebuild();
+    }
+
+    /**
+     * @return the number of bytes in uninstalled packages which the
+     *   reaper has yet to delete.
+     */
+    public synchronized long getPendingReclaimBytes() {
+        return (reaper == null) ? 0 : reaper.getPendingBytes();
+    }
+
+    /**
+     * Uninstall the least recently used package versions which are
+     * not running until the installed packages fit within the disk
+     * budget.  A package is used when it is installed or started.
+     * Packages which are being installed or uninstalled by someone
+     * else are skipped.
+     *
+     * @param dryRun if {@code true}, only work out what would be
+     *   evicted.
+     * @return the packages evicted, or which would be evicted, least
+     *   recently used first.
+     */
+    public List<InstalledPackage> evict(boolean dryRun) throws IOException {
+        return evictor.evict(null, dryRun);
+    }
+
+    /**
+     * Remove the files in the content store which are no longer used
+     * by any installed package.  Waits for installs which are adding
+     * files to the store to finish.
+     *
+     * @return the number of bytes freed.
+     */
+    public long gc() throws IOException {
+        final long freed;
+        try (PackageLock lock = lockContentStore(false)) {
+            freed = contentStore.gc();
+        }
+        log.info("Removed " + freed + " bytes from " + contentStore.getDir().getAbsolutePath());
+        return freed;
     }
 }
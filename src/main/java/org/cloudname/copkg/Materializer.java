@@ -0,0 +1,154 @@
+package org.cloudname.copkg;
+
+import org.cloudname.copkg.util.Unzip;
+
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Checks the files of installed packages against their manifests,
+ * and extracts the files a lazy install left in the package ZIP
+ * file.  Both work on a package which is locked, so it is not
+ * uninstalled under our feet.
+ */
+class Materializer {
+    private static final Logger log = Logger.getLogger(Materializer.class.getName());
+
+    private final Configuration config;
+    private final InstalledPackages installed;
+    private final Manager manager;
+
+    /**
+     * @param config the configuration of the package manager.
+     * @param installed the installed packages.
+     * @param manager the manager which locks the packages and reaps
+     *   what is left after extracting.
+     */
+    Materializer(Configuration config, InstalledPackages installed, Manager manager) {
+        this.config = config;
+        this.installed = installed;
+        this.manager = manager;
+    }
+
+    /**
+     * Check an installed package against its manifest, using all
+     * cores.
+     *
+     * @param incremental if {@code true} only hash the files whose
+     *   stat has changed since they were installed or last verified.
+     * @throws FileNotFoundException if the package is not installed
+     *   or has no manifest.
+     */
+    PackageVerifier.Result verify(PackageCoordinate coordinate, boolean incremental) throws IOException {
+        final File targetDir = new File(config.packageDirectoryForCoordinate(coordinate));
+        try (PackageLock lock = manager.lockPackage(coordinate)) {
+            if (! targetDir.isDirectory()) {
+                throw new FileNotFoundException("Package " + coordinate + " is not installed");
+            }
+            return new PackageVerifier(Runtime.getRuntime().availableProcessors())
+                .verify(targetDir,
+                        new File(config.statCacheFilenameForCoordinate(coordinate)),
+                        incremental,
+                        manager.lazyPackage(coordinate).readPending());
+        }
+    }
+
+    /**
+     * Extract the files matching a pattern.  The files are extracted
+     * into a directory of their own, checked against the manifest if
+     * there is one, and then renamed into the package one by one, so
+     * a file is either there in full or not at all.
+     *
+     * @param coordinate the coordinate of the package
+     * @param pattern a glob pattern, see {@link LazyPackage}
+     * @return the names of the files extracted.  Empty if no file
+     *   which has yet to be extracted matches the pattern.
+     * @throws FileNotFoundException if the package is not installed.
+     */
+    List<String> materialize(PackageCoordinate coordinate, String pattern) throws IOException {
+        final File targetDir = new File(config.packageDirectoryForCoordinate(coordinate));
+        try (PackageLock lock = manager.lockPackage(coordinate)) {
+            if (! targetDir.isDirectory()) {
+                throw new FileNotFoundException("Package " + coordinate + " is not installed");
+            }
+
+            final LazyPackage lazy = manager.lazyPackage(coordinate);
+            final SortedSet<String> pending = lazy.readPending();
+            final Predicate<String> matcher = LazyPackage.matcher(Collections.singletonList(pattern));
+            final List<String> selected = new ArrayList<>();
+            for (final String name : pending) {
+                if (matcher.apply(name)) {
+                    selected.add(name);
+                }
+            }
+            if (selected.isEmpty()) {
+                return selected;
+            }
+
+            final long archiveSize = lazy.getArchive().length();
+            final File unpackDir = Manager.newUnpackDir(targetDir);
+            try {
+                new Unzip(lazy.getArchive(), unpackDir)
+                    .setNumThreads(config.getUnpackThreads())
+                    .setFilter(Predicates.in(new HashSet<>(selected)))
+                    .unzip();
+                moveFiles(unpackDir, targetDir, selected);
+            } finally {
+                manager.getReaper().reap(unpackDir);
+            }
+
+            pending.removeAll(selected);
+            lazy.writePending(pending);
+
+            // The files have just been checked against the manifest
+            try {
+                PackageVerifier.record(targetDir, new File(config.statCacheFilenameForCoordinate(coordinate)), selected);
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Unable to record the stat cache of " + coordinate, e);
+            }
+
+            // The files now take up space of their own, and the archive
+            // none once it is deleted
+            long materializedBytes = 0;
+            for (final String name : selected) {
+                materializedBytes += new File(targetDir, name).length();
+            }
+            final long freedBytes = lazy.getArchive().exists() ? 0 : archiveSize;
+            installed.resize(coordinate, materializedBytes - freedBytes);
+            log.info("Materialized " + selected.size() + " files of " + coordinate
+                     + ", " + pending.size() + " left in " + lazy.getArchive().getAbsolutePath());
+            return selected;
+        }
+    }
+
+    /**
+     * Rename files from one directory tree into another, creating
+     * directories as needed.
+     */
+    private static void moveFiles(File fromDir, File toDir, Collection<String> names) throws IOException {
+        for (final String name : names) {
+            final File to = new File(toDir, name);
+            final File parent = to.getParentFile();
+            if (! (parent.mkdirs() || parent.isDirectory())) {
+                throw new IOException("Unable to create directory: " + parent.getAbsolutePath());
+            }
+            java.nio.file.Files.move(new File(fromDir, name).toPath(),
+                                     to.toPath(),
+                                     StandardCopyOption.REPLACE_EXISTING,
+                                     StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package org.cloudname.copkg;
+
+import org.cloudname.copkg.util.FileWalker;
+import org.cloudname.copkg.util.ZipDirectory;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+/**
+ * On-disk index of the installed packages, so that listing them does
+ * not mean walking the whole package directory.
+ *
+ * <p>The index is a small binary file.  It is replaced as a whole by
+ * writing a new file and renaming it into place, so readers always
+ * see either the old or the new index and do not need a lock.
+ * Writers take the lock returned by {@link #lock} around reading,
+ * changing and writing the index.
+ *
+ * <p>The format, in network byte order, is a magic number, a format
+ * version and the number of entries, followed by the entries and a
+ * CRC32 of everything before it.  Each entry is the coordinate as a
+ * length prefixed UTF-8 string, the install time, the size, the file
+ * count and the raw 32 bytes of the content hash.  An index which
+ * does not check out is reported as corrupt, and should be rebuilt
+ * from the package directory.
+ *
+ * <p>The content hash of a package is the SHA-256 hash of the name,
+ * size and CRC32 of each file in it, in name order.  This can be
+ * worked out from the central directory of the package ZIP file when
+ * installing it, and from the installed files when rebuilding the
+ * index.
+ */
+public class PackageIndex {
+    private static final int MAGIC = 0x434f5049; // "COPI"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 12;
+    private static final int HASH_SIZE = 32;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final BaseEncoding HEX = BaseEncoding.base16().lowerCase();
+
+    private final File file;
+
+    /**
+     * @param file the index file
+     */
+    public PackageIndex(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Lock the index for changes.  Must be closed to release it.
+     */
+    public PackageLock lock() throws IOException {
+        return PackageLock.acquire(new File(file.getPath() + Configuration.LOCK_SUFFIX));
+    }
+
+    /**
+     * Read the index.
+     *
+     * @return the installed packages in coordinate order, or {@code
+     *   null} if there is no index.
+     * @throws IOException if the index cannot be read or is corrupt.
+     */
+    public List<InstalledPackage> read() throws IOException {
+        if (! file.exists()) {
+            return null;
+        }
+
+        final ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final long size = channel.size();
+            if (size < HEADER_SIZE + 4 || size > Integer.MAX_VALUE) {
+                throw new IOException("Corrupt index " + file.getAbsolutePath() + ": bad size " + size);
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+
+        // Check the CRC before we believe anything in the index
+        final CRC32 crc = new CRC32();
+        final byte[] chunk = new byte[8192];
+        final ByteBuffer data = buffer.duplicate();
+        data.limit(buffer.limit() - 4);
+        while (data.hasRemaining()) {
+            final int n = Math.min(chunk.length, data.remaining());
+            data.get(chunk, 0, n);
+            crc.update(chunk, 0, n);
+        }
+        if ((int) crc.getValue() != buffer.getInt(buffer.limit() - 4)) {
+            throw new IOException("Corrupt index " + file.getAbsolutePath() + ": bad checksum");
+        }
+
+        try {
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new IOException("Corrupt index " + file.getAbsolutePath() + ": unknown format");
+            }
+
+            final int count = buffer.getInt();
+            final List<InstalledPackage> packages = new ArrayList<>(Math.min(count, 1024));
+            for (int i = 0; i < count; i++) {
+                final byte[] name = new byte[buffer.getShort() & 0xffff];
+                buffer.get(name);
+                final long installTime = buffer.getLong();
+                final long size = buffer.getLong();
+                final int fileCount = buffer.getInt();
+                final byte[] hash = new byte[HASH_SIZE];
+                buffer.get(hash);
+                packages.add(new InstalledPackage(PackageCoordinate.parse(new String(name, UTF8)),
+                                                  installTime,
+                                                  size,
+                                                  fileCount,
+                                                  HEX.encode(hash)));
+            }
+            return packages;
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Corrupt index " + file.getAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * Replace the index.  The caller should hold the {@link #lock}.
+     *
+     * @param packages the installed packages
+     */
+    public void write(Collection<InstalledPackage> packages) throws IOException {
+        final List<InstalledPackage> sorted = new ArrayList<>(packages);
+        Collections.sort(sorted, new Comparator<InstalledPackage>() {
+            @Override
+            public int compare(InstalledPackage a, InstalledPackage b) {
+                return a.getCoordinate().asString().compareTo(b.getCoordinate().asString());
+            }
+        });
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(sorted.size());
+        for (final InstalledPackage p : sorted) {
+            final byte[] name = p.getCoordinate().asString().getBytes(UTF8);
+            out.writeShort(name.length);
+            out.write(name);
+            out.writeLong(p.getInstallTime());
+            out.writeLong(p.getSize());
+            out.writeInt(p.getFileCount());
+            out.write(HEX.decode(p.getContentHash()));
+        }
+        out.flush();
+
+        final CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeInt((int) crc.getValue());
+        out.flush();
+
+        final File tmpFile = new File(file.getPath() + ".tmp");
+        Files.write(bytes.toByteArray(), tmpFile);
+        if (! tmpFile.renameTo(file)) {
+            tmpFile.delete();
+            throw new IOException("Unable to rename " + tmpFile.getAbsolutePath() + " to " + file.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Make an index entry for a package from the central directory of
+     * its ZIP file.
+     *
+     * @param coordinate the coordinate of the package
+     * @param installTime when the package was installed
+     * @param entries the entries of the ZIP file
+     */
+    public static InstalledPackage summarize(PackageCoordinate coordinate,
+                                             long installTime,
+                                             List<ZipDirectory.Entry> entries) {
+        final SortedMap<String, long[]> files = new TreeMap<>();
+        for (final ZipDirectory.Entry entry : entries) {
+            if (! entry.isDirectory()) {
+                files.put(entry.getName(), new long[] { entry.getSize(), entry.getCrc() });
+            }
+        }
+        return summarize(coordinate, installTime, files);
+    }
+
+    /**
+     * Make an index entry for a package from its installed files.
+     * This reads every file.
+     *
+     * @param coordinate the coordinate of the package
+     * @param dir the directory the package is installed in
+     */
+    public static InstalledPackage scan(PackageCoordinate coordinate, File dir) throws IOException {
+        final Path root = dir.toPath();
+        final SortedMap<String, long[]> files = new TreeMap<>();
+        new FileWalker() {
+            @Override public void visit(Path file, BasicFileAttributes attrs) throws IOException {
+                if (! attrs.isRegularFile()) {
+                    return;
+                }
+
+                final CRC32 crc = new CRC32();
+                try (InputStream in = new CheckedInputStream(new FileInputStream(file.toFile()), crc)) {
+                    ByteStreams.copy(in, ByteStreams.nullOutputStream());
+                }
+                final String name = root.relativize(file).toString().replace(File.separatorChar, '/');
+                files.put(name, new long[] { attrs.size(), crc.getValue() });
+            }
+        }.walk(root);
+        return summarize(coordinate, dir.lastModified(), files);
+    }
+
+    private static InstalledPackage summarize(PackageCoordinate coordinate,
+                                              long installTime,
+                                              SortedMap<String, long[]> files) {
+        final Hasher hasher = Hashing.sha256().newHasher();
+        long size = 0;
+        for (final Map.Entry<String, long[]> file : files.entrySet()) {
+            hasher.putBytes(file.getKey().getBytes(UTF8));
+            hasher.putByte((byte) 0);
+            hasher.putLong(file.getValue()[0]);
+            hasher.putInt((int) file.getValue()[1]);
+            size += file.getValue()[0];
+        }
+        return new InstalledPackage(coordinate, installTime, size, files.size(), hasher.hash().toString());
+    }
+}
@@ -0,0 +1,237 @@
+package org.cloudname.copkg;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Lock held while installing or uninstalling a single package, so
+ * that several processes can work on different packages at the same
+ * time without stepping on each other when they happen to work on
+ * the same one.
+ *
+ * <p>The lock is a FileChannel lock on a lock file, which the
+ * operating system releases if the process dies.  Lock files are
+ * never deleted: a process waiting for a lock file which is deleted
+ * and recreated would end up holding a lock on the old file.
+ *
+ * <p>A lock can also be shared, for work which only has to keep an
+ * exclusive locker out, like installs using the content store while
+ * it is garbage collected.  Any number of shared lockers can hold
+ * the lock at the same time.
+ *
+ * <p>File locks are held on behalf of the whole JVM, and on some
+ * platforms closing any channel to a file releases every lock the
+ * JVM holds on it.  Locks within this JVM are therefore tracked
+ * separately so we only ever have one channel open per lock file,
+ * which shared lockers in this JVM share.
+ */
+public class PackageLock implements Closeable {
+    private static final Logger log = Logger.getLogger(PackageLock.class.getName());
+
+    private static final long POLL_INTERVAL_MS = 200;
+
+    // The lock files held by this JVM, by canonical path
+    private static final Map<String, Holder> held = new HashMap<>();
+
+    /**
+     * A lock file held by this JVM and the number of lockers holding
+     * it.  The channel and lock are set once the lock is acquired
+     * from the operating system.
+     */
+    private static class Holder {
+        final boolean shared;
+        FileChannel channel;
+        FileLock lock;
+        int count = 1;
+
+        Holder(boolean shared) {
+            this.shared = shared;
+        }
+
+        /**
+         * @return {@code true} if a shared locker can join the lock.
+         */
+        boolean isJoinable() {
+            return shared && lock != null && count > 0;
+        }
+    }
+
+    private final String path;
+    private final Holder holder;
+    private final boolean contended;
+
+    private PackageLock(String path, Holder holder, boolean contended) {
+        this.path = path;
+        this.holder = holder;
+        this.contended = contended;
+    }
+
+    /**
+     * Acquire the lock, waiting for as long as it takes if someone
+     * else holds it.
+     *
+     * @param lockFile the lock file.  Created if it does not exist.
+     * @return the lock.  Must be closed to release it.
+     */
+    public static PackageLock acquire(File lockFile) throws IOException {
+        return acquire(lockFile, false);
+    }
+
+    /**
+     * Acquire the lock shared with other shared lockers, waiting for
+     * as long as it takes if someone holds it exclusively.
+     *
+     * @param lockFile the lock file.  Created if it does not exist.
+     * @return the lock.  Must be closed to release it.
+     */
+    public static PackageLock acquireShared(File lockFile) throws IOException {
+        return acquire(lockFile, true);
+    }
+
+    private static PackageLock acquire(File lockFile, boolean shared) throws IOException {
+        final File dir = lockFile.getParentFile();
+        if (! (dir.mkdirs() || dir.isDirectory())) {
+            throw new IOException("Unable to create directory: " + dir.getAbsolutePath());
+        }
+
+        final String path = lockFile.getCanonicalPath();
+        boolean contended = false;
+        try {
+            // First wait for other threads in this JVM
+            final Holder holder;
+            synchronized (held) {
+                Holder current;
+                while ((current = held.get(path)) != null && ! (shared && current.isJoinable())) {
+                    if (! contended) {
+                        log.info("Waiting for lock " + path);
+                        contended = true;
+                    }
+                    held.wait();
+                }
+                if (current != null) {
+                    current.count++;
+                    return new PackageLock(path, current, contended);
+                }
+                holder = new Holder(shared);
+                held.put(path, holder);
+            }
+
+            // Then for other processes
+            FileChannel channel = null;
+            try {
+                channel = new RandomAccessFile(lockFile, "rw").getChannel();
+                FileLock lock;
+                while ((lock = channel.tryLock(0, Long.MAX_VALUE, shared)) == null) {
+                    if (! contended) {
+                        log.info("Waiting for lock " + path + " held by another process");
+                        contended = true;
+                    }
+                    Thread.sleep(POLL_INTERVAL_MS);
+                }
+                hold(holder, channel, lock);
+                return new PackageLock(path, holder, contended);
+            } catch (IOException | InterruptedException | RuntimeException e) {
+                if (channel != null) {
+                    channel.close();
+                }
+                unhold(path);
+                throw e;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for lock " + path);
+        }
+    }
+
+    /**
+     * Acquire the lock if nobody else holds it.
+     *
+     * @param lockFile the lock file.  Created if it does not exist.
+     * @return the lock, or {@code null} if it is held by someone else.
+     */
+    public static PackageLock tryAcquire(File lockFile) throws IOException {
+        final File dir = lockFile.getParentFile();
+        if (! (dir.mkdirs() || dir.isDirectory())) {
+            throw new IOException("Unable to create directory: " + dir.getAbsolutePath());
+        }
+
+        final String path = lockFile.getCanonicalPath();
+        final Holder holder = new Holder(false);
+        synchronized (held) {
+            if (held.containsKey(path)) {
+                return null;
+            }
+            held.put(path, holder);
+        }
+
+        FileChannel channel = null;
+        try {
+            channel = new RandomAccessFile(lockFile, "rw").getChannel();
+            final FileLock lock = channel.tryLock();
+            if (lock == null) {
+                channel.close();
+                unhold(path);
+                return null;
+            }
+            hold(holder, channel, lock);
+            return new PackageLock(path, holder, false);
+        } catch (IOException | RuntimeException e) {
+            if (channel != null) {
+                channel.close();
+            }
+            unhold(path);
+            throw e;
+        }
+    }
+
+    /**
+     * @return {@code true} if we had to wait for someone else to
+     *   release the lock.  They may have done the job for us.
+     */
+    public boolean isContended() {
+        return contended;
+    }
+
+    /**
+     * Release the lock.  A shared lock file is released when the last
+     * shared locker in this JVM releases it.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (held) {
+            if (--holder.count > 0) {
+                return;
+            }
+        }
+        try {
+            holder.lock.release();
+        } finally {
+            holder.channel.close();
+            unhold(path);
+        }
+    }
+
+    private static void hold(Holder holder, FileChannel channel, FileLock lock) {
+        synchronized (held) {
+            holder.channel = channel;
+            holder.lock = lock;
+            // Shared lockers waiting for us can join now
+            held.notifyAll();
+        }
+    }
+
+    private static void unhold(String path) {
+        synchronized (held) {
+            held.remove(path);
+            held.notifyAll();
+        }
+    }
+}
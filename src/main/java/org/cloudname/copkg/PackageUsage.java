@@ -0,0 +1,146 @@
+package org.cloudname.copkg;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Records when each package was last started and which runtime
+ * directories it is running in, so that disk budget eviction can
+ * pick the least recently used versions and leave running ones
+ * alone.
+ *
+ * <pre>
+ *   usageDir/com/example/artifact/1.2.3.json
+ * </pre>
+ *
+ * <p>A package is running from a successful start until a
+ * successful stop in the same runtime directory.  A service which
+ * dies without being stopped still counts as running.
+ */
+public class PackageUsage {
+    private static final Logger log = Logger.getLogger(PackageUsage.class.getName());
+
+    private static final String USAGE_SUFFIX = ".json";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private final File usageDir;
+
+    /**
+     * The usage of a single package.
+     */
+    public static final class Entry {
+        private final long lastStart;
+        private final List<String> running;
+
+        /**
+         * @param lastStart when the package was last started, in
+         *   milliseconds since the epoch
+         * @param running the runtime directories the package is
+         *   running in
+         */
+        @JsonCreator
+        public Entry(@JsonProperty("lastStart") long lastStart,
+                     @JsonProperty("running") List<String> running) {
+            this.lastStart = lastStart;
+            this.running = Collections.unmodifiableList(new ArrayList<>(checkNotNull(running)));
+        }
+
+        public long getLastStart() {
+            return lastStart;
+        }
+
+        public List<String> getRunning() {
+            return running;
+        }
+
+        @JsonIgnore // derived property
+        public boolean isRunning() {
+            return ! running.isEmpty();
+        }
+    }
+
+    /**
+     * @param usageDir the directory the usage records live in.
+     */
+    public PackageUsage(File usageDir) {
+        this.usageDir = usageDir;
+    }
+
+    /**
+     * @return the usage of a package or {@code null} if it has never
+     *   been started.
+     */
+    public Entry get(PackageCoordinate coordinate) {
+        final File usageFile = usageFile(coordinate);
+        if (! usageFile.exists()) {
+            return null;
+        }
+
+        try {
+            return new ObjectMapper().readValue(usageFile, Entry.class);
+        } catch (IOException e) {
+            log.warning("Ignoring unreadable usage record " + usageFile.getAbsolutePath() + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Record that a package was started.
+     *
+     * @param coordinate the package
+     * @param runtimeDir the runtime directory it was started in
+     */
+    public void started(PackageCoordinate coordinate, String runtimeDir) throws IOException {
+        update(coordinate, runtimeDir, true);
+    }
+
+    /**
+     * Record that a package was stopped.
+     *
+     * @param coordinate the package
+     * @param runtimeDir the runtime directory it was stopped in
+     */
+    public void stopped(PackageCoordinate coordinate, String runtimeDir) throws IOException {
+        update(coordinate, runtimeDir, false);
+    }
+
+    private void update(PackageCoordinate coordinate, String runtimeDir, boolean start) throws IOException {
+        final File usageFile = usageFile(coordinate);
+        try (PackageLock lock = PackageLock.acquire(new File(usageFile.getPath() + Configuration.LOCK_SUFFIX))) {
+            final Entry old = get(coordinate);
+            long lastStart = (old == null) ? 0 : old.getLastStart();
+            final List<String> running = new ArrayList<>();
+            if (old != null) {
+                running.addAll(old.getRunning());
+            }
+
+            running.remove(runtimeDir);
+            if (start) {
+                lastStart = System.currentTimeMillis();
+                running.add(runtimeDir);
+            }
+
+            final File tmpFile = new File(usageFile.getPath() + TMP_SUFFIX);
+            new ObjectMapper().writeValue(tmpFile, new Entry(lastStart, running));
+            if (! tmpFile.renameTo(usageFile)) {
+                throw new IOException("Unable to rename " + tmpFile.getAbsolutePath()
+                                      + " to " + usageFile.getAbsolutePath());
+            }
+        }
+    }
+
+    private File usageFile(PackageCoordinate coordinate) {
+        return new File(usageDir, coordinate.getPathFragment() + USAGE_SUFFIX);
+    }
+}
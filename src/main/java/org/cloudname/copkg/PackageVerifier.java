@@ -0,0 +1,339 @@
+package org.cloudname.copkg;
+
+import org.cloudname.copkg.util.FileWalker;
+import org.cloudname.copkg.util.Manifest;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Checks an installed package against its {@link Manifest}.
+ *
+ * <p>The package directory is walked in parallel with {@link
+ * FileWalker} and each file is hashed when it is visited, so there
+ * are as many files being hashed at once as there are threads.
+ * Large files are hashed from memory mappings rather than read into
+ * buffers.
+ *
+ * <p>Verifying with a {@link StatCache} skips the files whose size,
+ * modification time and inode are as they were when they were last
+ * found to match, so a package which has not been touched costs a
+ * stat call per file.  Every verify writes a new stat cache with the
+ * files which match.  {@link #record} writes one right after an
+ * install, which has just checked every file, without hashing
+ * anything.
+ */
+public class PackageVerifier {
+    private static final Logger log = Logger.getLogger(PackageVerifier.class.getName());
+
+    private final int numThreads;
+
+    /**
+     * The outcome of checking a package.
+     */
+    public static final class Result {
+        private final int fileCount;
+        private final int hashedCount;
+        private final long size;
+        private final List<String> mismatched;
+        private final List<String> missing;
+        private final List<String> unlisted;
+
+        Result(int fileCount,
+               int hashedCount,
+               long size,
+               List<String> mismatched,
+               List<String> missing,
+               List<String> unlisted) {
+            this.fileCount = fileCount;
+            this.hashedCount = hashedCount;
+            this.size = size;
+            this.mismatched = sorted(mismatched);
+            this.missing = sorted(missing);
+            this.unlisted = sorted(unlisted);
+        }
+
+        private static List<String> sorted(List<String> names) {
+            final List<String> copy = new ArrayList<>(names);
+            Collections.sort(copy);
+            return Collections.unmodifiableList(copy);
+        }
+
+        /**
+         * @return the number of files checked.
+         */
+        public int getFileCount() {
+            return fileCount;
+        }
+
+        /**
+         * @return the number of files hashed.  The rest were taken to
+         *   be unchanged from the stat cache.
+         */
+        public int getHashedCount() {
+            return hashedCount;
+        }
+
+        /**
+         * @return the total size of the files checked.
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return the files which do not match the manifest, or could
+         *   not be read.
+         */
+        public List<String> getMismatched() {
+            return mismatched;
+        }
+
+        /**
+         * @return the files in the manifest which are not installed.
+         */
+        public List<String> getMissing() {
+            return missing;
+        }
+
+        /**
+         * @return the installed files which are not in the manifest.
+         */
+        public List<String> getUnlisted() {
+            return unlisted;
+        }
+
+        /**
+         * @return {@code true} if the package matches the manifest.
+         */
+        public boolean isOk() {
+            return mismatched.isEmpty() && missing.isEmpty() && unlisted.isEmpty();
+        }
+    }
+
+    /**
+     * @param numThreads the number of threads hashing files.
+     */
+    public PackageVerifier(int numThreads) {
+        this.numThreads = Math.max(1, numThreads);
+    }
+
+    /**
+     * Check a package, hashing every file.
+     *
+     * @param dir the directory the package is installed in
+     * @throws FileNotFoundException if the package has no manifest.
+     */
+    public Result verify(File dir) throws IOException {
+        return verify(dir, null, false);
+    }
+
+    /**
+     * Check a package and write a new stat cache.
+     *
+     * @param dir the directory the package is installed in
+     * @param statFile the stat cache of the package, or {@code null}
+     *   for none.
+     * @param incremental if {@code true} only hash the files the stat
+     *   cache does not vouch for.
+     * @throws FileNotFoundException if the package has no manifest.
+     */
+    public Result verify(File dir, File statFile, boolean incremental) throws IOException {
+        return verify(dir, statFile, incremental, Collections.<String>emptySet());
+    }
+
+    /**
+     * Check a lazily installed package, see {@link LazyPackage}, and
+     * write a new stat cache.
+     *
+     * @param dir the directory the package is installed in
+     * @param statFile the stat cache of the package, or {@code null}
+     *   for none.
+     * @param incremental if {@code true} only hash the files the stat
+     *   cache does not vouch for.
+     * @param deferred the files which have not been extracted yet.
+     *   They are not reported as missing.
+     * @throws FileNotFoundException if the package has no manifest.
+     */
+    public Result verify(File dir, File statFile, boolean incremental, Set<String> deferred) throws IOException {
+        final File manifestFile = new File(dir, Manifest.NAME);
+        if (! manifestFile.isFile()) {
+            throw new FileNotFoundException("No manifest in " + dir.getAbsolutePath());
+        }
+        final Manifest manifest = Manifest.read(manifestFile);
+
+        StatCache cache = null;
+        if (incremental && statFile != null) {
+            try {
+                cache = StatCache.read(statFile);
+            } catch (IOException e) {
+                log.warning("Ignoring stat cache: " + e.getMessage());
+            }
+            if (cache == null) {
+                log.info("No stat cache for " + dir.getAbsolutePath() + ", hashing every file");
+            }
+        }
+        final StatCache previous = cache;
+
+        final long time = System.currentTimeMillis();
+        final Map<String, StatCache.Entry> stats = new ConcurrentHashMap<>();
+        final Path root = dir.toPath();
+        final AtomicInteger fileCount = new AtomicInteger();
+        final AtomicInteger hashedCount = new AtomicInteger();
+        final AtomicLong size = new AtomicLong();
+        final Set<String> seen = Collections.synchronizedSet(new HashSet<String>());
+        final List<String> mismatched = Collections.synchronizedList(new ArrayList<String>());
+        final List<String> unlisted = Collections.synchronizedList(new ArrayList<String>());
+
+        final ForkJoinPool pool = new ForkJoinPool(numThreads);
+        try {
+            new FileWalker() {
+                @Override public void visit(Path file, BasicFileAttributes attrs) {
+                    final String name = root.relativize(file).toString().replace(File.separatorChar, '/');
+                    if (Manifest.NAME.equals(name)) {
+                        return;
+                    }
+
+                    final String expected = manifest.get(name);
+                    if (expected == null) {
+                        unlisted.add(name);
+                        return;
+                    }
+                    seen.add(name);
+                    fileCount.incrementAndGet();
+                    size.addAndGet(attrs.size());
+
+                    if (! attrs.isRegularFile()) {
+                        mismatched.add(name);
+                        return;
+                    }
+                    if (previous != null && previous.isUnchanged(name, attrs, expected)) {
+                        stats.put(name, previous.get(name));
+                        return;
+                    }
+
+                    hashedCount.incrementAndGet();
+                    try {
+                        if (expected.equals(Manifest.digest(file.toFile()))) {
+                            stats.put(name, new StatCache.Entry(attrs, expected));
+                        } else {
+                            mismatched.add(name);
+                        }
+                    } catch (IOException e) {
+                        log.warning("Unable to read " + file + ": " + e.getMessage());
+                        mismatched.add(name);
+                    }
+                }
+            }.walk(root, pool);
+        } finally {
+            pool.shutdown();
+        }
+
+        final List<String> missing = new ArrayList<>();
+        for (final String name : manifest.getDigests().keySet()) {
+            if (! seen.contains(name) && ! deferred.contains(name)) {
+                missing.add(name);
+            }
+        }
+
+        if (statFile != null) {
+            new StatCache(time, stats).write(statFile);
+        }
+        return new Result(fileCount.get(), hashedCount.get(), size.get(), mismatched, missing, unlisted);
+    }
+
+    /**
+     * Write the stat cache of a package which has just been installed
+     * and checked against its manifest.  Only stats the files.
+     *
+     * @param dir the directory the package is installed in
+     * @param statFile the stat cache of the package.  Deleted if the
+     *   package has no manifest.
+     */
+    public static void record(File dir, File statFile) throws IOException {
+        final File manifestFile = new File(dir, Manifest.NAME);
+        if (! manifestFile.isFile()) {
+            statFile.delete();
+            return;
+        }
+        final Manifest manifest = Manifest.read(manifestFile);
+
+        final long time = System.currentTimeMillis();
+        final Map<String, StatCache.Entry> stats = new HashMap<>();
+        final Path root = dir.toPath();
+        new FileWalker() {
+            @Override public void visit(Path file, BasicFileAttributes attrs) {
+                final String name = root.relativize(file).toString().replace(File.separatorChar, '/');
+                final String digest = manifest.get(name);
+                if (digest != null && attrs.isRegularFile()) {
+                    stats.put(name, new StatCache.Entry(attrs, digest));
+                }
+            }
+        }.walk(root);
+        new StatCache(time, stats).write(statFile);
+    }
+    /**
+     * Add files which have just been extracted and checked against
+     * the manifest to the stat cache of a package, like those a lazy
+     * install materializes.  A stat cache which cannot be read is
+     * deleted, so the next incremental verify hashes every file.
+     *
+     * @param dir the directory the package is installed in
+     * @param statFile the stat cache of the package
+     * @param names the names of the files to add
+     */
+    public static void record(File dir, File statFile, Collection<String> names) throws IOException {
+        final File manifestFile = new File(dir, Manifest.NAME);
+        if (! manifestFile.isFile()) {
+            statFile.delete();
+            return;
+        }
+        final Manifest manifest = Manifest.read(manifestFile);
+
+        final StatCache cache;
+        try {
+            cache = StatCache.read(statFile);
+        } catch (IOException e) {
+            log.warning("Discarding stat cache: " + e.getMessage());
+            statFile.delete();
+            return;
+        }
+        if (cache == null) {
+            return;
+        }
+
+        final long time = System.currentTimeMillis();
+        final Map<String, StatCache.Entry> stats = new HashMap<>();
+        for (final String name : names) {
+            final String digest = manifest.get(name);
+            if (digest == null) {
+                continue;
+            }
+            final BasicFileAttributes attrs = Files.readAttributes(new File(dir, name).toPath(),
+                                                                   BasicFileAttributes.class,
+                                                                   LinkOption.NOFOLLOW_LINKS);
+            if (attrs.isRegularFile()) {
+                stats.put(name, new StatCache.Entry(attrs, digest));
+            }
+        }
+        cache.plus(time, stats).write(statFile);
+    }
+}
@@ -0,0 +1,190 @@
+package org.cloudname.copkg;
+
+import org.cloudname.copkg.util.FileWalker;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Deletes directory trees in the background.  Uninstalling a package
+ * only has to rename it out of the way; the reaper takes care of the
+ * slow part.
+ *
+ * <p>Trees are deleted one at a time.  Each tree is first walked to
+ * add up the sizes of its files, which tells us how much space is
+ * pending reclamation, and then walked again to delete it.  Both
+ * walks are parallel {@link FileWalker} walks.
+ *
+ * <p>The threads are daemon threads, so a process which exits
+ * without closing the reaper leaves the rest of the work for the
+ * next sweep for stale directories.
+ */
+public class Reaper implements Closeable {
+    private static final Logger log = Logger.getLogger(Reaper.class.getName());
+
+    private final ExecutorService coordinator;
+    private final ForkJoinPool deleters;
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private final AtomicInteger pendingDirectories = new AtomicInteger();
+
+    // Tasks queued or running.  A task may queue more tasks, so we
+    // wait for this to reach zero rather than shut down the executor
+    // under its feet.
+    private final Object lock = new Object();
+    private int outstanding = 0;
+
+    /**
+     * @param numThreads the number of threads deleting files.
+     */
+    public Reaper(int numThreads) {
+        coordinator = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("reaper").build());
+        deleters = new ForkJoinPool(numThreads);
+    }
+
+    /**
+     * Queue a directory tree for deletion.  Returns at once.
+     *
+     * @param dir the directory to delete.  Nobody else should be
+     *   using it.
+     */
+    public void reap(final File dir) {
+        pendingDirectories.incrementAndGet();
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    delete(dir);
+                } catch (Exception e) {
+                    log.log(Level.WARNING, "Failed to delete " + dir.getAbsolutePath(), e);
+                } finally {
+                    pendingDirectories.decrementAndGet();
+                }
+            }
+        });
+    }
+
+    /**
+     * Run a task on the reaper thread, typically one which looks for
+     * directories to {@link #reap}.  Directories it queues are
+     * deleted after the ones already queued.
+     */
+    public void execute(final Runnable task) {
+        synchronized (lock) {
+            outstanding++;
+        }
+        coordinator.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } finally {
+                    synchronized (lock) {
+                        outstanding--;
+                        lock.notifyAll();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the number of bytes in the files of the trees being
+     *   deleted.  Trees which are queued but which we have not yet
+     *   started on are not counted.
+     */
+    public long getPendingBytes() {
+        return pendingBytes.get();
+    }
+
+    /**
+     * @return the number of directory trees queued or being deleted.
+     */
+    public int getPendingDirectories() {
+        return pendingDirectories.get();
+    }
+
+    /**
+     * Wait for the queued work to finish and stop the threads.
+     */
+    @Override
+    public void close() {
+        try {
+            synchronized (lock) {
+                while (outstanding > 0) {
+                    lock.wait(TimeUnit.SECONDS.toMillis(10));
+                    if (outstanding > 0) {
+                        log.info("Waiting for " + pendingDirectories.get() + " directories, "
+                                 + pendingBytes.get() + " bytes, to be deleted");
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            coordinator.shutdown();
+            deleters.shutdown();
+        }
+    }
+
+    private void delete(File dir) throws IOException {
+        final Path root = dir.toPath();
+        if (! Files.exists(root, LinkOption.NOFOLLOW_LINKS)) {
+            return;
+        }
+
+        // First find out how much there is to delete
+        final AtomicLong totalBytes = new AtomicLong();
+        new FileWalker() {
+            @Override public void visit(Path file, BasicFileAttributes attrs) {
+                totalBytes.addAndGet(attrs.size());
+            }
+        }.walk(root, deleters);
+        pendingBytes.addAndGet(totalBytes.get());
+        log.fine("Deleting " + dir.getAbsolutePath() + ": " + totalBytes.get() + " bytes");
+
+        // The walk visits a directory after everything in it, so it
+        // is empty by the time we delete it.  Files which fail to
+        // delete are logged and otherwise ignored so we get rid of
+        // as much as we can.
+        new FileWalker() {
+            @Override public void visit(Path file, BasicFileAttributes attrs) {
+                remove(file);
+                pendingBytes.addAndGet(-attrs.size());
+            }
+
+            @Override public void after(Path dir) {
+                remove(dir);
+            }
+
+            @Override public void failed(Path path, IOException e) {
+                log.warning("Failed to read " + path + ": " + e.getMessage());
+            }
+
+            private void remove(Path path) {
+                try {
+                    Files.deleteIfExists(path);
+                } catch (IOException e) {
+                    log.warning("Failed to delete " + path + ": " + e.getMessage());
+                }
+            }
+        }.walk(root, deleters);
+
+        log.info("Deleted " + dir.getAbsolutePath());
+    }
+}
@@ -0,0 +1,266 @@
+package org.cloudname.copkg;
+
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.Files;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * The size, modification time, inode and SHA-256 digest of each file
+ * of an installed package as last seen by an install or a verify.
+ * Like the index of git, this lets {@code verify --incremental} take
+ * a file whose stat has not changed to be unchanged, and only hash
+ * the files whose stat has.
+ *
+ * <p>A file modified within {@link #MTIME_GRANULARITY_MS} of the
+ * cache being written may be modified again without its modification
+ * time changing, so such files are always hashed.
+ *
+ * <p>The format, in network byte order, is a magic number, a format
+ * version, the time the cache was written and the number of entries,
+ * followed by the entries and a CRC32 of everything before it.  Each
+ * entry is the file name, the size, the modification time, the file
+ * key (device and inode on unixen) and the raw 32 bytes of the
+ * digest.
+ */
+public class StatCache {
+    private static final int MAGIC = 0x434f5053; // "COPS"
+    private static final int VERSION = 1;
+
+    // Coarsest modification time resolution we expect to see
+    public static final long MTIME_GRANULARITY_MS = 2000;
+
+    private static final BaseEncoding HEX = BaseEncoding.base16().lowerCase();
+
+    private final long time;
+    private final Map<String, Entry> entries;
+
+    /**
+     * The stat and digest of a single file.
+     */
+    public static final class Entry {
+        private final long size;
+        private final long lastModified;
+        private final String fileKey;
+        private final String digest;
+
+        /**
+         * @param size the size of the file
+         * @param lastModified the modification time of the file, in
+         *   milliseconds since the epoch
+         * @param fileKey the file key of the file, see {@link
+         *   BasicFileAttributes#fileKey}, or the empty string if the
+         *   platform has none.
+         * @param digest the hex SHA-256 digest of the file
+         */
+        public Entry(long size, long lastModified, String fileKey, String digest) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.fileKey = fileKey;
+            this.digest = digest;
+        }
+
+        /**
+         * @param attrs the attributes of the file
+         * @param digest the hex SHA-256 digest of the file
+         */
+        public Entry(BasicFileAttributes attrs, String digest) {
+            this(attrs.size(), attrs.lastModifiedTime().toMillis(), fileKey(attrs), digest);
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public String getFileKey() {
+            return fileKey;
+        }
+
+        public String getDigest() {
+            return digest;
+        }
+
+        /**
+         * @return {@code true} if a file has the stat recorded here.
+         */
+        public boolean matches(BasicFileAttributes attrs) {
+            return size == attrs.size()
+                && lastModified == attrs.lastModifiedTime().toMillis()
+                && fileKey.equals(fileKey(attrs));
+        }
+
+        private static String fileKey(BasicFileAttributes attrs) {
+            return (attrs.fileKey() == null) ? "" : attrs.fileKey().toString();
+        }
+    }
+
+    /**
+     * @param time when the stats were taken, in milliseconds since the
+     *   epoch.  Take this before looking at the first file.
+     * @param entries map from file name to entry
+     */
+    public StatCache(long time, Map<String, Entry> entries) {
+        this.time = time;
+        this.entries = Collections.unmodifiableMap(new HashMap<>(entries));
+    }
+
+    /**
+     * Read a stat cache.
+     *
+     * @return the stat cache or {@code null} if there is none.
+     * @throws IOException if the cache cannot be read or is corrupt.
+     */
+    public static StatCache read(File file) throws IOException {
+        if (! file.exists()) {
+            return null;
+        }
+
+        final byte[] bytes = Files.toByteArray(file);
+        if (bytes.length < 4) {
+            throw new IOException("Corrupt stat cache " + file.getAbsolutePath() + ": bad size " + bytes.length);
+        }
+
+        final CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length - 4);
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        in.skipBytes(bytes.length - 4);
+        if ((int) crc.getValue() != in.readInt()) {
+            throw new IOException("Corrupt stat cache " + file.getAbsolutePath() + ": bad checksum");
+        }
+
+        try {
+            final DataInputStream data = new DataInputStream(new ByteArrayInputStream(bytes, 0, bytes.length - 4));
+            if (data.readInt() != MAGIC || data.readInt() != VERSION) {
+                throw new IOException("Corrupt stat cache " + file.getAbsolutePath() + ": unknown format");
+            }
+
+            final long time = data.readLong();
+            final int count = data.readInt();
+            final Map<String, Entry> entries = new HashMap<>();
+            for (int i = 0; i < count; i++) {
+                final String name = data.readUTF();
+                final long size = data.readLong();
+                final long lastModified = data.readLong();
+                final String fileKey = data.readUTF();
+                final byte[] digest = new byte[32];
+                data.readFully(digest);
+                entries.put(name, new Entry(size, lastModified, fileKey, HEX.encode(digest)));
+            }
+            return new StatCache(time, entries);
+        } catch (EOFException e) {
+            throw new IOException("Corrupt stat cache " + file.getAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * Write the stat cache, replacing whatever was there.
+     */
+    public void write(File file) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(time);
+        out.writeInt(entries.size());
+        for (final Map.Entry<String, Entry> entry : entries.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeLong(entry.getValue().getSize());
+            out.writeLong(entry.getValue().getLastModified());
+            out.writeUTF(entry.getValue().getFileKey());
+            out.write(HEX.decode(entry.getValue().getDigest()));
+        }
+        out.flush();
+
+        final CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeInt((int) crc.getValue());
+        out.flush();
+
+        final File dir = file.getParentFile();
+        if (! (dir.mkdirs() || dir.isDirectory())) {
+            throw new IOException("Unable to create directory: " + dir.getAbsolutePath());
+        }
+        final File tmpFile = new File(file.getPath() + ".tmp");
+        Files.write(bytes.toByteArray(), tmpFile);
+        if (! tmpFile.renameTo(file)) {
+            tmpFile.delete();
+            throw new IOException("Unable to rename " + tmpFile.getAbsolutePath() + " to " + file.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Add entries taken later than the rest of the cache.  Entries
+     * which were modified too close to the time this cache was
+     * written are dropped, since the later time of the new cache
+     * would make them look unchanged.
+     *
+     * @param time when the new entries were taken
+     * @param added map from file name to entry
+     * @return the new cache.
+     */
+    public StatCache plus(long time, Map<String, Entry> added) {
+        final Map<String, Entry> merged = new HashMap<>();
+        for (final Map.Entry<String, Entry> entry : entries.entrySet()) {
+            if (entry.getValue().getLastModified() + MTIME_GRANULARITY_MS < this.time) {
+                merged.put(entry.getKey(), entry.getValue());
+            }
+        }
+        merged.putAll(added);
+        return new StatCache(time, merged);
+    }
+
+    /**
+     * @return when the stats were taken.
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * @return the entry of a file or {@code null} if there is none.
+     */
+    public Entry get(String name) {
+        return entries.get(name);
+    }
+
+    /**
+     * @return the number of files in the cache.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Decide whether a file can be taken to be unchanged without
+     * hashing it.
+     *
+     * @param name the name of the file
+     * @param attrs the current attributes of the file
+     * @param digest the digest the file should have
+     * @return {@code true} if the cache has the file with the same
+     *   stat and digest, and the file was not modified too close to
+     *   the time the cache was written.
+     */
+    public boolean isUnchanged(String name, BasicFileAttributes attrs, String digest) {
+        final Entry entry = entries.get(name);
+        return entry != null
+            && entry.matches(attrs)
+            && entry.getDigest().equals(digest)
+            && entry.getLastModified() + MTIME_GRANULARITY_MS < time;
+    }
+}
@@ -0,0 +1,64 @@
+package org.cloudname.copkg;
+
+import org.cloudname.copkg.util.GrowingFile;
+
+import com.ning.http.client.HttpResponseBodyPart;
+
+import java.io.File;
+import java.io.InputStream;
+
+/**
+ * Download handler which lets a reader follow the download file as
+ * it is written, see {@link GrowingFile}, so the package can be
+ * extracted while it is still downloading.  The reader reads the body
+ * back from the file, so a slow reader never holds up the I/O thread
+ * of the HTTP client, which other downloads share.
+ *
+ * <p>Only the body of a 200 response is given to the reader.  For
+ * any other response the reader just sees an empty stream and has to
+ * look at the status code.
+ */
+class StreamingDownloadHandler extends DownloadHandler {
+    private final GrowingFile growing;
+
+    /**
+     * @param url the URL we are downloading
+     * @param destinationFile the file we download into
+     * @param stateFile the file where we keep the download state
+     */
+    public StreamingDownloadHandler(String url, File destinationFile, File stateFile) {
+        super(url, destinationFile, stateFile, 0);
+        this.growing = new GrowingFile(destinationFile);
+    }
+
+    /**
+     * @return the stream the body of the response can be read from.
+     */
+    public InputStream getInputStream() {
+        return growing.getInputStream();
+    }
+
+    @Override
+    public STATE onBodyPartReceived(HttpResponseBodyPart bodyPart) throws Exception {
+        final STATE state = super.onBodyPartReceived(bodyPart);
+        if (getStatusCode() == 200) {
+            growing.advance(getPosition());
+        }
+        return state;
+    }
+
+    @Override
+    public Integer onCompleted() throws Exception {
+        try {
+            return super.onCompleted();
+        } finally {
+            growing.close();
+        }
+    }
+
+    @Override
+    public void onThrowable(Throwable t) {
+        super.onThrowable(t);
+        growing.fail(t);
+    }
+}
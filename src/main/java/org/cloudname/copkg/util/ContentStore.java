@@ -0,0 +1,184 @@
+package org.cloudname.copkg.util;
+
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystemException;
+import java.nio.file.NoSuchFileException;
+import java.util.logging.Logger;
+
+/**
+ * Host-wide store of file contents, keyed by SHA-256 hash.  Installed
+ * packages hard link their files to blobs in the store, so a file
+ * which is identical across package versions only takes up space,
+ * and only gets written, once.
+ *
+ * <p>A hard link shares the mode and timestamp of the blob, so
+ * executable and non-executable files with the same content are
+ * stored as separate blobs, and a file gets the timestamp of the
+ * first package which stored it.  Blobs are read-only since writing
+ * through one link would change the file in every package.
+ *
+ * <p>Where hard links are not possible, for instance because the
+ * package directory is on another filesystem, the blob is copied.
+ *
+ * <p>When packages are uninstalled their links go away, but the
+ * blobs stay until {@link #gc} removes the ones that are no longer
+ * linked from anywhere.  A blob is not linked from anywhere between
+ * {@link #add} and {@link #link} either, so the caller has to keep
+ * {@link #gc} from running while anyone is adding blobs.
+ */
+public class ContentStore {
+    private static final Logger log = Logger.getLogger(ContentStore.class.getName());
+
+    private static final String TMP_DIR = "tmp";
+    private static final String EXECUTABLE_SUFFIX = "-x";
+
+    // Temporary files older than this are left over from a crash
+    private static final long STALE_TMP_MS = (24 * 60 * 60 * 1000);
+
+    private final File storeDir;
+    private final File tmpDir;
+
+    /**
+     * @param storeDir the directory of the store.
+     */
+    public ContentStore(File storeDir) {
+        this.storeDir = storeDir;
+        this.tmpDir = new File(storeDir, TMP_DIR);
+    }
+
+    /**
+     * @return the directory of the store.
+     */
+    public File getDir() {
+        return storeDir;
+    }
+
+    /**
+     * Make a file the content we already have in the store.  Any
+     * existing file is replaced.
+     *
+     * @param sha256 the hex SHA-256 hash of the content
+     * @param executable whether the file should be executable
+     * @param destinationFile the file we want the content in
+     * @return {@code true} if the file is in place, {@code false} if
+     *   we do not have the content.
+     */
+    public boolean link(String sha256, boolean executable, File destinationFile) throws IOException {
+        final File blob = blobFile(sha256, executable);
+        if (! blob.isFile()) {
+            return false;
+        }
+
+        destinationFile.delete();
+        try {
+            java.nio.file.Files.createLink(destinationFile.toPath(), blob.toPath());
+        } catch (NoSuchFileException e) {
+            // Collected in the meantime
+            return false;
+        } catch (UnsupportedOperationException | FileSystemException e) {
+            log.fine("Unable to link " + blob.getAbsolutePath() + ", copying: " + e.getMessage());
+            Files.copy(blob, destinationFile);
+            destinationFile.setExecutable(executable);
+            destinationFile.setLastModified(blob.lastModified());
+        }
+        return true;
+    }
+
+    /**
+     * @return a new temporary file in the store, on the same
+     *   filesystem as the blobs so it can be renamed into place by
+     *   {@link #add}.
+     */
+    public File newTempFile() throws IOException {
+        if (! (tmpDir.mkdirs() || tmpDir.isDirectory())) {
+            throw new IOException("Unable to create directory: " + tmpDir.getAbsolutePath());
+        }
+        return File.createTempFile("blob", ".tmp", tmpDir);
+    }
+
+    /**
+     * Move a file into the store.  If another thread or process got
+     * there first the blob is simply replaced by one with the same
+     * content.
+     *
+     * @param file a file from {@link #newTempFile} holding the content
+     * @param sha256 the hex SHA-256 hash of the content
+     * @param executable whether the file should be executable
+     * @param time the modification time of the blob
+     */
+    public void add(File file, String sha256, boolean executable, long time) throws IOException {
+        final File blob = blobFile(sha256, executable);
+        final File dir = blob.getParentFile();
+        if (! (dir.mkdirs() || dir.isDirectory())) {
+            throw new IOException("Unable to create directory: " + dir.getAbsolutePath());
+        }
+
+        file.setExecutable(executable, false);
+        file.setWritable(false, false);
+        file.setLastModified(time);
+        if (! file.renameTo(blob)) {
+            throw new IOException("Unable to rename " + file.getAbsolutePath() + " to " + blob.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Remove the blobs no package links to anymore, that is, blobs
+     * with a link count of 1, and temporary files left over from
+     * crashed installs.
+     *
+     * @return the number of bytes freed.
+     * @throws IOException if link counts are not available on this
+     *   platform.
+     */
+    public long gc() throws IOException {
+        long freed = 0;
+        final File[] dirs = storeDir.listFiles();
+        if (dirs == null) {
+            return 0;
+        }
+
+        for (final File dir : dirs) {
+            final File[] files = dir.listFiles();
+            if (files == null) {
+                continue;
+            }
+
+            final boolean isTmpDir = dir.equals(tmpDir);
+            final long staleTime = System.currentTimeMillis() - STALE_TMP_MS;
+            for (final File file : files) {
+                if (isTmpDir ? file.lastModified() >= staleTime : linkCount(file) > 1) {
+                    continue;
+                }
+
+                final long length = file.length();
+                if (! file.delete()) {
+                    log.warning("Failed to delete " + file.getAbsolutePath());
+                    continue;
+                }
+                log.fine("Removed " + file.getAbsolutePath() + " [" + length + "]");
+                freed += length;
+            }
+        }
+        return freed;
+    }
+
+    private static int linkCount(File file) throws IOException {
+        try {
+            return (Integer) java.nio.file.Files.getAttribute(file.toPath(), "unix:nlink");
+        } catch (UnsupportedOperationException | IllegalArgumentException e) {
+            throw new IOException("Link counts are not available on this platform", e);
+        }
+    }
+
+    /**
+     * Blobs are spread over subdirectories named after the first two
+     * characters of the hash to keep directories small.
+     */
+    private File blobFile(String sha256, boolean executable) {
+        return new File(new File(storeDir, sha256.substring(0, 2)),
+                        sha256 + (executable ? EXECUTABLE_SUFFIX : ""));
+    }
+}
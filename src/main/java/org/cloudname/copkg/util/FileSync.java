@@ -0,0 +1,60 @@
+package org.cloudname.copkg.util;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Flushes files and directories to disk, so that a tree of files
+ * which is renamed into place survives a crash or power loss with
+ * everything in it.
+ *
+ * <p>Writing a file and renaming the directory it is in does not
+ * mean the data of the file has reached the disk.  After a crash the
+ * rename may be there and the file empty.  The data of every file,
+ * and the entries of every directory, must be flushed before the
+ * rename, and the directory holding the renamed directory after it.
+ *
+ * <p>Flushing files one by one as they are written makes every write
+ * wait for the disk.  {@link #syncTree} flushes a whole tree once it
+ * has been written, with many flushes in flight at once, which lets
+ * the filesystem commit them together.
+ */
+public class FileSync {
+    private FileSync() {}
+
+    /**
+     * Flush a file or a directory to disk.
+     */
+    public static void sync(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Flush every file in a tree, and every directory once everything
+     * in it has been flushed, so the root goes last.  Symbolic links
+     * are left alone.
+     *
+     * @param root the root of the tree
+     * @param pool the pool which flushes the files.  Files in the same
+     *   directory are flushed in batches on several threads.
+     */
+    public static void syncTree(Path root, ForkJoinPool pool) throws IOException {
+        new FileWalker() {
+            @Override public void visit(Path file, BasicFileAttributes attrs) throws IOException {
+                if (attrs.isRegularFile()) {
+                    sync(file);
+                }
+            }
+
+            @Override public void after(Path dir) throws IOException {
+                sync(dir);
+            }
+        }.walk(root, pool);
+    }
+}
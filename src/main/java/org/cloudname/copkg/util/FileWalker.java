@@ -0,0 +1,297 @@
+package org.cloudname.copkg.util;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Utility for walking file trees.  Use like this:
+ *
+ * <pre>
+ *   new FileWalker() {
+ *     &#64;Override public void visit(Path file, BasicFileAttributes attrs) {
+ *       // do stuff with file
+ *     }
+ *     &#64;Override public void after(Path dir) {
+ *       // do stuff with dir once everything in it has been visited
+ *     }
+ *   }.walk(Paths.get("mydir"));
+ * </pre>
+ *
+ * <p>Every file and directory is stat'ed once and the attributes are
+ * handed to the callbacks, so they should not have to look at the
+ * file again.  Symbolic links are not followed; a link is visited
+ * like a file.
+ *
+ * <p>{@link #walk(Path)} walks the tree in a single thread.  It does
+ * not recurse, so there is no limit to how deep the tree can be.
+ * {@link #walk(Path, ForkJoinPool)} walks sibling subtrees, and
+ * large batches of files in the same directory, in parallel.  The
+ * callbacks are then called from several threads at once, but
+ * {@link #before} is still called for a directory before anything in
+ * it, and {@link #after} once everything in it is done.  If a
+ * callback throws, the rest of the walk is abandoned, and the
+ * exception is thrown once every task of the walk has stopped.
+ */
+public class FileWalker {
+    // Below this depth the parallel walk goes on in a single thread,
+    // which bounds the stack depth of the fork-join tasks.
+    private static final int MAX_FORK_DEPTH = 32;
+
+    // Number of files in a directory each parallel task visits
+    private static final int FILES_PER_TASK = 256;
+
+    /**
+     * Called for a directory before its contents.
+     *
+     * @return {@code false} to skip the contents of the directory.
+     *   {@link #after} is then not called for it either.
+     */
+    public boolean before(Path dir, BasicFileAttributes attrs) throws IOException {
+        return true;
+    }
+
+    /**
+     * Called for everything which is not a directory.
+     */
+    public void visit(Path file, BasicFileAttributes attrs) throws IOException {}
+
+    /**
+     * Called for a directory after its contents.
+     */
+    public void after(Path dir) throws IOException {}
+
+    /**
+     * Called for a file or directory which could not be read.  The
+     * default is to give up the walk by throwing the exception.
+     */
+    public void failed(Path path, IOException e) throws IOException {
+        throw e;
+    }
+
+    /**
+     * Walk a file tree in the calling thread.
+     *
+     * @param root the root of the tree.  May also be a single file.
+     */
+    public final void walk(Path root) throws IOException {
+        Files.walkFileTree(root, EnumSet.noneOf(FileVisitOption.class), Integer.MAX_VALUE,
+                           new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                return before(dir, attrs) ? FileVisitResult.CONTINUE : FileVisitResult.SKIP_SUBTREE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                visit(file, attrs);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
+                failed(file, e);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                if (e != null) {
+                    failed(dir, e);
+                } else {
+                    after(dir);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Walk a file tree in parallel.  Returns when the whole tree has
+     * been walked, or when the walk has stopped after a failure.
+     *
+     * @param root the root of the tree.  May also be a single file.
+     * @param pool the pool to run the walk in.
+     */
+    public final void walk(Path root, ForkJoinPool pool) throws IOException {
+        final BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(root, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (IOException e) {
+            failed(root, e);
+            return;
+        }
+
+        if (! attrs.isDirectory()) {
+            visit(root, attrs);
+            return;
+        }
+
+        try {
+            pool.invoke(new DirectoryTask(root, attrs, 0, new AtomicBoolean()));
+        } catch (WalkException e) {
+            // Exceptions thrown in other threads may come wrapped
+            Throwable cause = e;
+            while (cause instanceof WalkException) {
+                cause = cause.getCause();
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Carries an IOException out of a fork-join task.
+     */
+    private static final class WalkException extends RuntimeException {
+        WalkException(IOException e) {
+            super(e);
+        }
+    }
+
+    /**
+     * Fork the tasks, visit the local files in this thread and wait
+     * for all of the tasks, even after one of them has failed, so
+     * that nothing is left running when the failure is passed on.
+     *
+     * @param aborted set on failure, to make the tasks skip the rest
+     *   of their work.
+     */
+    private static void runAll(List<ForkJoinTask<?>> tasks, FilesTask local, AtomicBoolean aborted) {
+        for (ForkJoinTask<?> task : tasks) {
+            task.fork();
+        }
+
+        RuntimeException failure = null;
+        try {
+            local.compute();
+        } catch (RuntimeException e) {
+            aborted.set(true);
+            failure = e;
+        }
+        for (ForkJoinTask<?> task : tasks) {
+            try {
+                task.join();
+            } catch (RuntimeException e) {
+                aborted.set(true);
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private final class DirectoryTask extends RecursiveAction {
+        private final Path dir;
+        private final BasicFileAttributes attrs;
+        private final int depth;
+        private final AtomicBoolean aborted;
+
+        DirectoryTask(Path dir, BasicFileAttributes attrs, int depth, AtomicBoolean aborted) {
+            this.dir = dir;
+            this.attrs = attrs;
+            this.depth = depth;
+            this.aborted = aborted;
+        }
+
+        @Override
+        protected void compute() {
+            if (aborted.get()) {
+                return;
+            }
+
+            try {
+                if (depth >= MAX_FORK_DEPTH) {
+                    walk(dir);
+                    return;
+                }
+
+                if (! before(dir, attrs)) {
+                    return;
+                }
+
+                final List<ForkJoinTask<?>> tasks = new ArrayList<>();
+                final List<Path> files = new ArrayList<>();
+                final List<BasicFileAttributes> fileAttrs = new ArrayList<>();
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                    for (final Path child : stream) {
+                        final BasicFileAttributes childAttrs;
+                        try {
+                            childAttrs = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                        } catch (IOException e) {
+                            failed(child, e);
+                            continue;
+                        }
+
+                        if (childAttrs.isDirectory()) {
+                            tasks.add(new DirectoryTask(child, childAttrs, depth + 1, aborted));
+                            continue;
+                        }
+
+                        files.add(child);
+                        fileAttrs.add(childAttrs);
+                        if (files.size() == FILES_PER_TASK) {
+                            tasks.add(new FilesTask(new ArrayList<>(files), new ArrayList<>(fileAttrs), aborted));
+                            files.clear();
+                            fileAttrs.clear();
+                        }
+                    }
+                } catch (IOException e) {
+                    failed(dir, e);
+                    return;
+                }
+
+                // Visit the last few files here while the others work
+                runAll(tasks, new FilesTask(files, fileAttrs, aborted), aborted);
+
+                if (! aborted.get()) {
+                    after(dir);
+                }
+            } catch (IOException e) {
+                throw new WalkException(e);
+            }
+        }
+    }
+
+    private final class FilesTask extends RecursiveAction {
+        private final List<Path> files;
+        private final List<BasicFileAttributes> attrs;
+        private final AtomicBoolean aborted;
+
+        FilesTask(List<Path> files, List<BasicFileAttributes> attrs, AtomicBoolean aborted) {
+            this.files = files;
+            this.attrs = attrs;
+            this.aborted = aborted;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                for (int i = 0; i < files.size() && ! aborted.get(); i++) {
+                    visit(files.get(i), attrs.get(i));
+                }
+            } catch (IOException e) {
+                throw new WalkException(e);
+            }
+        }
+    }
+}
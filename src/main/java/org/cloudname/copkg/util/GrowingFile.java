@@ -0,0 +1,133 @@
+package org.cloudname.copkg.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Lets a reader follow a file while another thread is still writing
+ * it.  The writer says how much of the file has been written and the
+ * reader blocks until there is more to read or the writer is done.
+ *
+ * <p>The writer never blocks, however slow the reader is, which
+ * matters when the writer is a callback running on some I/O thread
+ * we do not own.  The file is the buffer, so nothing is held in
+ * memory.
+ */
+public class GrowingFile {
+    private final File file;
+    private long length = 0;
+    private boolean done = false;
+    private Throwable failure;
+
+    /**
+     * @param file the file being written.  It is not opened until
+     *   the writer has written something to it.
+     */
+    public GrowingFile(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Tell the reader that the first {@code length} bytes of the
+     * file have been written.
+     */
+    public synchronized void advance(long length) {
+        if (length > this.length) {
+            this.length = length;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Signal end of file to the reader.
+     */
+    public synchronized void close() {
+        done = true;
+        notifyAll();
+    }
+
+    /**
+     * Signal end of file to the reader, making the reader throw an
+     * IOException with the given cause once it has read what was
+     * written.
+     */
+    public synchronized void fail(Throwable cause) {
+        failure = cause;
+        close();
+    }
+
+    /**
+     * Block until there is more than {@code position} bytes to read
+     * or the writer is done.
+     *
+     * @return the number of bytes written so far.
+     */
+    private synchronized long await(long position) throws IOException {
+        try {
+            while (length <= position && ! done) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + file.getAbsolutePath());
+        }
+
+        if (length <= position && failure != null) {
+            throw new IOException("Writer failed", failure);
+        }
+        return length;
+    }
+
+    /**
+     * @return a stream reading the file from the start, up to where
+     *   it has been written.
+     */
+    public InputStream getInputStream() {
+        return new InputStream() {
+            private FileChannel channel = null;
+            private long position = 0;
+
+            @Override
+            public int read() throws IOException {
+                final byte[] b = new byte[1];
+                return (read(b, 0, 1) == -1) ? -1 : (b[0] & 0xff);
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+
+                final long available = await(position) - position;
+                if (available <= 0) {
+                    return -1;
+                }
+
+                if (channel == null) {
+                    channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                }
+                final int n = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, available)), position);
+                if (n < 0) {
+                    throw new IOException(file.getAbsolutePath() + " is shorter than the " + (position + available)
+                                          + " bytes written to it");
+                }
+                position += n;
+                return n;
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (channel != null) {
+                    channel.close();
+                    channel = null;
+                }
+            }
+        };
+    }
+}
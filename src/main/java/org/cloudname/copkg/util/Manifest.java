@@ -0,0 +1,341 @@
+package org.cloudname.copkg.util;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * The SHA-256 digests of the files in a package.  The manifest is
+ * kept in the package as {@link #NAME}, in the format of
+ * {@code sha256sum}, so an installed package can also be checked
+ * by hand:
+ *
+ * <pre>
+ *   cd packages/com/example/artifact/1.2.3 && sha256sum -c copkg.sha256
+ * </pre>
+ *
+ * <p>A package without a manifest is installed without being
+ * checked.  A package with one must have exactly the files listed,
+ * with the listed digests.  The manifest does not list itself.
+ */
+public class Manifest {
+    public static final String NAME = "copkg.sha256";
+
+    // Files smaller than this are read rather than mapped, since
+    // setting up a mapping costs more than copying a few pages.
+    private static final long MAP_THRESHOLD = 64 * 1024;
+
+    // Large files are mapped a piece at a time
+    private static final long MAP_CHUNK = 64 * 1024 * 1024;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final BaseEncoding HEX = BaseEncoding.base16().lowerCase();
+
+    private final SortedMap<String, String> digests;
+
+    /**
+     * @param digests map from file name, relative to the package
+     *   root with {@code /} as separator, to hex SHA-256 digest.
+     */
+    public Manifest(Map<String, String> digests) {
+        this.digests = Collections.unmodifiableSortedMap(new TreeMap<>(digests));
+    }
+
+    /**
+     * Parse a manifest.
+     *
+     * @param in the manifest.  Not closed.
+     */
+    public static Manifest parse(InputStream in) throws IOException {
+        final Map<String, String> digests = new TreeMap<>();
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(in, UTF8));
+        String line;
+        int lineNumber = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+
+            // "<digest>  <name>", or "<digest> *<name>" in binary mode
+            if (line.length() < 67
+                || ! line.substring(0, 64).matches("[0-9a-fA-F]{64}")
+                || line.charAt(64) != ' '
+                || (line.charAt(65) != ' ' && line.charAt(65) != '*')) {
+                throw new IOException("Bad manifest line " + lineNumber + ": " + line);
+            }
+            digests.put(line.substring(66), line.substring(0, 64).toLowerCase());
+        }
+        return new Manifest(digests);
+    }
+
+    /**
+     * Read a manifest file.
+     */
+    public static Manifest read(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            return parse(in);
+        }
+    }
+
+    /**
+     * Write the manifest.
+     *
+     * @param out where to write it.  Not closed.
+     */
+    public void write(OutputStream out) throws IOException {
+        final Writer writer = new OutputStreamWriter(out, UTF8);
+        for (final Map.Entry<String, String> entry : digests.entrySet()) {
+            writer.write(entry.getValue() + "  " + entry.getKey() + "\n");
+        }
+        writer.flush();
+    }
+
+    /**
+     * @return map from file name to hex SHA-256 digest, in name order.
+     */
+    public SortedMap<String, String> getDigests() {
+        return digests;
+    }
+
+    /**
+     * @return the hex SHA-256 digest of a file or {@code null} if the
+     *   file is not listed.
+     */
+    public String get(String name) {
+        return digests.get(name);
+    }
+
+    /**
+     * Check the digest of a file.
+     *
+     * @param name the name of the file
+     * @param digest the hex SHA-256 digest of the file as found
+     * @throws IOException if the file is not listed or the digest
+     *   does not match.
+     */
+    public void check(String name, String digest) throws IOException {
+        final String expected = digests.get(name);
+        if (expected == null) {
+            throw new IOException("File not in manifest: " + name);
+        }
+        if (! expected.equals(digest)) {
+            throw new IOException("Checksum mismatch for " + name + ": expected " + expected + ", got " + digest);
+        }
+    }
+
+    /**
+     * Check that a package has exactly the files listed.
+     *
+     * @param names the names of the files in the package.  The
+     *   manifest itself is ignored.
+     * @throws IOException if a file is missing or not listed.
+     */
+    public void checkNames(Collection<String> names) throws IOException {
+        final Set<String> present = new HashSet<>(names);
+        present.remove(NAME);
+
+        final List<String> unlisted = new ArrayList<>();
+        for (final String name : present) {
+            if (! digests.containsKey(name)) {
+                unlisted.add(name);
+            }
+        }
+        if (! unlisted.isEmpty()) {
+            Collections.sort(unlisted);
+            throw new IOException("Files not in manifest: " + unlisted);
+        }
+
+        final List<String> missing = new ArrayList<>();
+        for (final String name : digests.keySet()) {
+            if (! present.contains(name)) {
+                missing.add(name);
+            }
+        }
+        if (! missing.isEmpty()) {
+            throw new IOException("Files missing from package: " + missing);
+        }
+    }
+
+    /**
+     * Check a whole package.
+     *
+     * @param digests map from the name of each file in the package to
+     *   its hex SHA-256 digest.  The manifest itself is ignored.
+     * @throws IOException if a file is missing, not listed or does
+     *   not match.
+     */
+    public void checkAll(Map<String, String> digests) throws IOException {
+        checkNames(digests.keySet());
+        for (final Map.Entry<String, String> entry : digests.entrySet()) {
+            if (! NAME.equals(entry.getKey())) {
+                check(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * @return a new SHA-256 message digest.
+     */
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every JRE has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the hex form of a digest.
+     */
+    public static String hex(byte[] digest) {
+        return HEX.encode(digest);
+    }
+
+    /**
+     * @return the hex SHA-256 digest of a file.
+     */
+    public static String digest(File file) throws IOException {
+        final MessageDigest digest = newDigest();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            update(digest, channel, 0, channel.size());
+        }
+        return hex(digest.digest());
+    }
+
+    /**
+     * Feed a region of a file to a digest.  Large regions are mapped
+     * into memory, so the data is hashed straight from the page cache
+     * without being read into a buffer first.  Does not move the
+     * position of the channel, so it is safe to call from several
+     * threads at once.
+     *
+     * @param digest the digest to update
+     * @param channel the file
+     * @param offset where the region starts
+     * @param length the length of the region
+     */
+    public static void update(MessageDigest digest, FileChannel channel, long offset, long length) throws IOException {
+        if (length < MAP_THRESHOLD) {
+            final ByteBuffer buffer = ByteBuffer.allocate((int) length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, offset + buffer.position()) < 0) {
+                    throw new EOFException("Unexpected end of file at " + (offset + buffer.position()));
+                }
+            }
+            digest.update(buffer.array());
+            return;
+        }
+
+        for (long done = 0; done < length; ) {
+            final long n = Math.min(MAP_CHUNK, length - done);
+            digest.update(channel.map(FileChannel.MapMode.READ_ONLY, offset + done, n));
+            done += n;
+        }
+    }
+
+    /**
+     * Add a manifest to a package ZIP file, replacing any manifest it
+     * has.  The file is rewritten with the manifest as the first
+     * entry, so a streaming unzip gets it before the files.
+     *
+     * @param zip the package ZIP file
+     * @return the manifest
+     */
+    public static Manifest addTo(File zip) throws IOException {
+        final ZipFile zipFile = new ZipFile(zip);
+        final File tmpFile = new File(zip.getPath() + ".tmp");
+        final Manifest manifest;
+        try {
+            final Map<String, String> digests = new TreeMap<>();
+            final byte buffer[] = new byte[Unzip.BUFFER_SIZE];
+            Enumeration<? extends ZipArchiveEntry> entries = zipFile.getEntries();
+            while (entries.hasMoreElements()) {
+                final ZipArchiveEntry zipEntry = entries.nextElement();
+                if (zipEntry.isDirectory() || NAME.equals(zipEntry.getName())) {
+                    continue;
+                }
+
+                final MessageDigest digest = newDigest();
+                try (InputStream in = zipFile.getInputStream(zipEntry)) {
+                    int numBytes;
+                    while ((numBytes = in.read(buffer, 0, buffer.length)) != -1) {
+                        digest.update(buffer, 0, numBytes);
+                    }
+                }
+                digests.put(zipEntry.getName(), hex(digest.digest()));
+            }
+            manifest = new Manifest(digests);
+
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            manifest.write(bytes);
+
+            final ZipArchiveOutputStream out = new ZipArchiveOutputStream(tmpFile);
+            try {
+                final ZipArchiveEntry manifestEntry = new ZipArchiveEntry(NAME);
+                manifestEntry.setUnixMode(0100644);
+                out.putArchiveEntry(manifestEntry);
+                out.write(bytes.toByteArray());
+                out.closeArchiveEntry();
+
+                entries = zipFile.getEntries();
+                while (entries.hasMoreElements()) {
+                    final ZipArchiveEntry zipEntry = entries.nextElement();
+                    if (NAME.equals(zipEntry.getName())) {
+                        continue;
+                    }
+                    out.putArchiveEntry(new ZipArchiveEntry(zipEntry));
+                    try (InputStream in = zipFile.getInputStream(zipEntry)) {
+                        ByteStreams.copy(in, out);
+                    }
+                    out.closeArchiveEntry();
+                }
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            tmpFile.delete();
+            throw e;
+        } finally {
+            zipFile.close();
+        }
+
+        if (! tmpFile.renameTo(zip)) {
+            tmpFile.delete();
+            throw new IOException("Unable to rename " + tmpFile.getAbsolutePath() + " to " + zip.getAbsolutePath());
+        }
+        return manifest;
+    }
+}
@@ -0,0 +1,208 @@
+package org.cloudname.copkg.util;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.base.Charsets;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An OutputStream which keeps the first and the last bytes written
+ * to it and drops what is in between.  Memory use is fixed no matter
+ * how much is written, so a process which writes a lot of output can
+ * be left to run while we still get to see how its output started
+ * and how it ended.
+ *
+ * <p>Listeners get every line written as it arrives, including the
+ * lines which are not kept.  Lines are split on {@code '\n'}, decoded
+ * as UTF-8 and given to the listener without the line terminator.
+ * Lines longer than {@link #MAX_LINE_LENGTH} bytes are given in
+ * pieces.  What is left after the last line terminator is given when
+ * the stream is closed.
+ *
+ * <p>Meant to be written by a single thread, like the one running a
+ * {@link StreamConsumer}.  Listeners are called on that thread.
+ */
+public class OutputCapture extends OutputStream {
+    private static final Logger log = Logger.getLogger(OutputCapture.class.getName());
+
+    /**
+     * The longest line given to the listeners in one piece.
+     */
+    public static final int MAX_LINE_LENGTH = 8 * 1024;
+
+    /**
+     * Listener for lines written to the capture.
+     */
+    public static interface LineListener {
+        /**
+         * @param line a line of output without the line terminator.
+         */
+        void onLine(String line);
+    }
+
+    private final byte[] head;
+    private final byte[] tail;
+    private final List<LineListener> listeners = new CopyOnWriteArrayList<>();
+    private ByteArrayOutputStream line;
+    private int headCount = 0;
+    // The next position to write in the tail, which is the oldest
+    // byte in the tail once it has filled up
+    private int tailPos = 0;
+    private int tailCount = 0;
+    private long byteCount = 0;
+    private boolean closed = false;
+
+    /**
+     * @param headSize the number of bytes to keep from the start.
+     * @param tailSize the number of bytes to keep from the end.
+     */
+    public OutputCapture(final int headSize, final int tailSize) {
+        checkArgument(headSize >= 0, "headSize must not be negative");
+        checkArgument(tailSize >= 0, "tailSize must not be negative");
+        this.head = new byte[headSize];
+        this.tail = new byte[tailSize];
+    }
+
+    /**
+     * Add a listener which is given every line from now on.
+     */
+    public OutputCapture addLineListener(final LineListener listener) {
+        listeners.add(listener);
+        return this;
+    }
+
+    @Override
+    public void write(final int b) {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(final byte[] b, int off, int len) {
+        if (! listeners.isEmpty()) {
+            splitLines(b, off, len);
+        }
+        byteCount += len;
+
+        final int toHead = Math.min(len, head.length - headCount);
+        System.arraycopy(b, off, head, headCount, toHead);
+        headCount += toHead;
+        off += toHead;
+        len -= toHead;
+
+        if (len == 0 || tail.length == 0) {
+            return;
+        }
+
+        // Only the last tail.length bytes of the write can survive
+        if (len > tail.length) {
+            off += len - tail.length;
+            len = tail.length;
+        }
+        final int first = Math.min(len, tail.length - tailPos);
+        System.arraycopy(b, off, tail, tailPos, first);
+        System.arraycopy(b, off + first, tail, 0, len - first);
+        tailPos = (tailPos + len) % tail.length;
+        tailCount = Math.min(tail.length, tailCount + len);
+    }
+
+    /**
+     * Give what is left of the last line to the listeners.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (line != null && line.size() > 0) {
+            emitLine();
+        }
+    }
+
+    /**
+     * @return the number of bytes written, including those which
+     *   were dropped.
+     */
+    public synchronized long getByteCount() {
+        return byteCount;
+    }
+
+    /**
+     * @return the number of bytes which were dropped.
+     */
+    public synchronized long getOmittedCount() {
+        return byteCount - headCount - tailCount;
+    }
+
+    /**
+     * @return the bytes kept from the start and the end decoded as
+     *   UTF-8.  If bytes were dropped in between, a line saying how
+     *   many marks where they were.
+     */
+    public synchronized String getText() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(new String(head, 0, headCount, Charsets.UTF_8));
+
+        final long omitted = getOmittedCount();
+        if (omitted > 0) {
+            sb.append("\n[... ").append(omitted).append(" bytes omitted ...]\n");
+        }
+
+        final byte[] ordered = new byte[tailCount];
+        if (tailCount < tail.length) {
+            System.arraycopy(tail, 0, ordered, 0, tailCount);
+        } else {
+            System.arraycopy(tail, tailPos, ordered, 0, tail.length - tailPos);
+            System.arraycopy(tail, 0, ordered, tail.length - tailPos, tailPos);
+        }
+        sb.append(new String(ordered, Charsets.UTF_8));
+        return sb.toString();
+    }
+
+    private void splitLines(final byte[] b, final int off, final int len) {
+        if (line == null) {
+            line = new ByteArrayOutputStream();
+        }
+
+        int start = off;
+        final int end = off + len;
+        for (int i = off; i < end; i++) {
+            if (b[i] == '\n') {
+                line.write(b, start, i - start);
+                emitLine();
+                start = i + 1;
+            } else if (line.size() + (i + 1 - start) >= MAX_LINE_LENGTH) {
+                line.write(b, start, i + 1 - start);
+                emitLine();
+                start = i + 1;
+            }
+        }
+        line.write(b, start, end - start);
+    }
+
+    private void emitLine() {
+        final byte[] bytes = line.toByteArray();
+        line.reset();
+
+        int length = bytes.length;
+        if (length > 0 && bytes[length - 1] == '\r') {
+            length--;
+        }
+        final String text = new String(bytes, 0, length, Charsets.UTF_8);
+        for (final LineListener listener : listeners) {
+            try {
+                listener.onLine(text);
+            } catch (Exception e) {
+                // A broken listener should not stop the output from
+                // being read
+                log.log(Level.WARNING, "Got exception from line listener", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package org.cloudname.copkg.util;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An OutputStream appending to a file which is rotated when it grows
+ * too large.  On rotation {@code name} becomes {@code name.1}, {@code
+ * name.1} becomes {@code name.2} and so on, and the oldest file is
+ * removed, so at most {@code maxFiles} files of about {@code maxSize}
+ * bytes each are kept.  Writes go straight to a FileChannel and are
+ * not buffered.
+ *
+ * <p>A failure to write is logged once and the rest of the output is
+ * dropped rather than thrown, since the output of a process should
+ * not fail the process.  Only one stream should write to a file at
+ * a time.
+ */
+public class RotatingFileOutputStream extends OutputStream {
+    private static final Logger log = Logger.getLogger(RotatingFileOutputStream.class.getName());
+
+    private final File file;
+    private final long maxSize;
+    private final int maxFiles;
+    private FileChannel channel;
+    private long size;
+    private long byteCount = 0;
+    private boolean failed = false;
+
+    /**
+     * Open a file for appending, creating it and its directory if
+     * they do not exist.
+     *
+     * @param file the file to write to.
+     * @param maxSize the size in bytes at which the file is rotated.
+     * @param maxFiles the number of files to keep, including the one
+     *   being written.
+     */
+    public RotatingFileOutputStream(final File file, final long maxSize, final int maxFiles) throws IOException {
+        checkArgument(maxSize > 0, "maxSize must be positive");
+        checkArgument(maxFiles > 0, "maxFiles must be positive");
+        this.file = file;
+        this.maxSize = maxSize;
+        this.maxFiles = maxFiles;
+
+        final File dir = file.getAbsoluteFile().getParentFile();
+        if (! (dir.mkdirs() || dir.isDirectory())) {
+            throw new IOException("Unable to create directory: " + dir.getAbsolutePath());
+        }
+        open();
+    }
+
+    /**
+     * @return the file being written.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the number of bytes written to this stream, over all
+     *   the files it has written to.
+     */
+    public synchronized long getByteCount() {
+        return byteCount;
+    }
+
+    @Override
+    public void write(final int b) {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(final byte[] b, final int off, final int len) {
+        byteCount += len;
+        if (failed || channel == null) {
+            return;
+        }
+
+        try {
+            if (size > 0 && size + len > maxSize) {
+                rotate();
+            }
+            final ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            size += len;
+        } catch (IOException e) {
+            failed = true;
+            log.log(Level.WARNING, "Unable to write " + file.getAbsolutePath() + ", dropping further output", e);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    private void open() throws IOException {
+        channel = FileChannel.open(file.toPath(),
+                                   StandardOpenOption.CREATE,
+                                   StandardOpenOption.WRITE,
+                                   StandardOpenOption.APPEND);
+        size = channel.size();
+    }
+
+    private void rotate() throws IOException {
+        channel.close();
+        channel = null;
+
+        new File(file.getPath() + "." + (maxFiles - 1)).delete();
+        for (int i = maxFiles - 2; i >= 1; i--) {
+            new File(file.getPath() + "." + i).renameTo(new File(file.getPath() + "." + (i + 1)));
+        }
+        if (maxFiles > 1) {
+            file.renameTo(new File(file.getPath() + ".1"));
+        } else {
+            file.delete();
+        }
+        open();
+    }
+}
@@ -1,5 +1,6 @@
 package org.cloudname.copkg.util;
 
+import java.io.Closeable;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.IOException;
@@ -18,11 +19,20 @@ public class StreamConsumer implements Runnable {
     private static final Logger log = Logger.getLogger(StreamConsumer.class.getName());
 
     private static final int BUFFER_SIZE = 64 * 1024;
+
+    // Consumers are mostly run on pooled threads, so the buffer is
+    // kept per thread rather than allocated for every stream
+    private static final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[BUFFER_SIZE];
+        }
+    };
+
     private final InputStream in;
     private final OutputStream out;
     private final int maxRead;
     private int byteCount = 0;
-    private final byte[] buffer = new byte[BUFFER_SIZE];
     private final Set<Listener> listeners= new HashSet<>();
 
     /**
@@ -90,8 +100,15 @@ public class StreamConsumer implements Runnable {
         }
     }
 
+    /**
+     * Pump the data.  The streams are closed before the listeners are
+     * told the stream is DONE or GOT_EXCEPTION, so by then everything
+     * written has been flushed through the OutputStream.
+     */
     @Override
     public void run() {
+        final byte[] buffer = buffers.get();
+        Listener.Status status = Listener.Status.DONE;
         int n;
         try {
             while((n = in.read(buffer)) != -1) {
@@ -108,20 +125,23 @@ public class StreamConsumer implements Runnable {
                     notifyListeners(Listener.Status.MAX_READ);
                 }
             }
-
             // invariant: read() returned -1
-            notifyListeners(Listener.Status.DONE);
         } catch (IOException e) {
             log.log(Level.WARNING, "Got exception", e);
-            notifyListeners(Listener.Status.GOT_EXCEPTION);
+            status = Listener.Status.GOT_EXCEPTION;
         } finally {
-            try {
-                in.close();
-                out.close();
-            } catch (IOException e) {
-                // Ignore.  Nothing we can do about this.
-                log.log(Level.WARNING, "Got exception while closing streams", e);
-            }
+            close(in);
+            close(out);
+        }
+        notifyListeners(status);
+    }
+
+    private static void close(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Ignore.  Nothing we can do about this.
+            log.log(Level.WARNING, "Got exception while closing stream", e);
         }
     }
-}
\ No newline at end of file
+}
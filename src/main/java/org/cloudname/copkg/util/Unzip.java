@@ -1,15 +1,38 @@
 package org.cloudname.copkg.util;
 
 import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream;
 import org.apache.commons.compress.archivers.zip.ZipFile;
 
+import com.google.common.base.Predicate;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.io.FileOutputStream;
 
 import java.util.logging.Logger;
@@ -25,6 +48,98 @@ public class Unzip {
 
     public static final int BUFFER_SIZE = (16 * 1024);
 
+    /**
+     * Copy buffers grow to the size of the largest entry a thread has
+     * copied, up to this size.
+     */
+    public static final int MAX_BUFFER_SIZE = (1024 * 1024);
+
+    /**
+     * Files at least this large are given their full length before
+     * any data is written, so the filesystem knows how much room the
+     * file needs.
+     */
+    public static final long PREALLOCATE_MIN_SIZE = (1024 * 1024);
+
+    // One copy buffer per thread rather than one per entry
+    private static final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[BUFFER_SIZE];
+        }
+    };
+
+    /**
+     * Archives with fewer file entries than this are always unpacked
+     * on the calling thread.  Starting a pool is not worth it.
+     */
+    public static final int PARALLEL_MIN_ENTRIES = 32;
+
+    private final File sourceFile;
+    private final File targetDirectory;
+    private int numThreads = 1;
+    private ContentStore contentStore;
+    private Predicate<String> filter;
+    private final List<String> skipped = new ArrayList<>();
+
+    // Set up by unzip() before any entries are extracted
+    private FileChannel sourceChannel;
+    private Map<String, Long> storedDataOffsets = Collections.emptyMap();
+    private Manifest manifest;
+
+    /**
+     * @param sourceFile the ZIP-file we wish to extract
+     * @param targetDirectory the target directory into which we will extract the ZIP file
+     */
+    public Unzip(File sourceFile, File targetDirectory) {
+        this.sourceFile = sourceFile;
+        this.targetDirectory = targetDirectory;
+    }
+
+    /**
+     * Set the number of threads used to extract entries.  Only used
+     * for archives with at least {@link #PARALLEL_MIN_ENTRIES} files.
+     *
+     * @param numThreads the number of threads. 1 means extract
+     *   everything on the calling thread.
+     */
+    public Unzip setNumThreads(int numThreads) {
+        this.numThreads = Math.max(1, numThreads);
+        return this;
+    }
+
+    /**
+     * Place the files in a content store and hard link them into the
+     * target directory instead of writing them there.
+     *
+     * @param contentStore the content store or {@code null} to write
+     *   files directly.
+     */
+    public Unzip setContentStore(ContentStore contentStore) {
+        this.contentStore = contentStore;
+        return this;
+    }
+
+    /**
+     * Only extract the files whose names are accepted by a filter.
+     * Directories are always created.  The manifest, if there is one,
+     * must still list exactly the files in the ZIP file.
+     *
+     * @param filter the filter or {@code null} to extract every file.
+     */
+    public Unzip setFilter(Predicate<String> filter) {
+        this.filter = filter;
+        return this;
+    }
+
+    /**
+     * @return the names of the files the filter rejected, in the
+     *   order they appear in the ZIP file.
+     */
+    public List<String> getSkipped() {
+        return Collections.unmodifiableList(skipped);
+    }
+
     /**
      * Unpack a ZIP file into the target directory.  If the target
      * directory does not exist we will create it.
@@ -33,75 +148,580 @@ public class Unzip {
      * @param targetDirectory the target directory into which we will extract the ZIP file
      */
     public static void unzip(File sourceFile, File targetDirectory) throws IOException {
+        new Unzip(sourceFile, targetDirectory).unzip();
+    }
+
+    /**
+     * Unpack the ZIP file into the target directory.  If the target
+     * directory does not exist we will create it.
+     *
+     * <p>The directory skeleton is created up front.  The files are
+     * then extracted, in parallel if so configured, with each worker
+     * reading its own stream from the shared ZipFile.  Directory
+     * timestamps are applied last since writing files into a
+     * directory changes its timestamp.
+     *
+     * <p>Entries that are STORED rather than compressed are copied
+     * directly between the file channels, see {@link #extractStored}.
+     * With a content store files are linked from the store instead,
+     * see {@link #extractToStore}.
+     *
+     * <p>With a filter only the files it accepts are extracted, see
+     * {@link #setFilter}.
+     *
+     * <p>If the package has a {@link Manifest} every file is hashed
+     * as it is extracted and checked against it.  A file which does
+     * not match, or is missing or not listed, fails the whole unzip.
+     */
+    public void unzip() throws IOException {
         if (! sourceFile.exists()) {
             throw new FileNotFoundException("Source file not found: " + sourceFile.getAbsolutePath());
         }
 
-        // if the target directory does not exist we create it
-        if (! (targetDirectory.exists())) {
-            boolean ok = targetDirectory.mkdirs();
-            if (! ok) {
-                throw new IOException("Unable to create directory: " + targetDirectory.getAbsolutePath());
-            }
-        }
+        makeDirectory(targetDirectory);
 
         // Invariants: sourceFile exists and target directory exists
 
-        ZipFile zipFile = new ZipFile(sourceFile);
-        Enumeration<? extends ZipArchiveEntry> entries = zipFile.getEntries();
-
-        while (entries.hasMoreElements()) {
-            final ZipArchiveEntry zipEntry = entries.nextElement();
-
-            // Prepare target name and make sure that we create any
-            // directories that are needed.
-            File destinationFile = new File(targetDirectory, zipEntry.getName());
-            File parent = destinationFile.getParentFile();
-            if (! parent.exists()) {
-                boolean ok = parent.mkdirs();
-                if (! ok) {
-                    throw new IOException("Unable to create directory: " + parent.getAbsolutePath());
+        final ZipFile zipFile = new ZipFile(sourceFile);
+        sourceChannel = new RandomAccessFile(sourceFile, "r").getChannel();
+        try {
+            final List<ZipArchiveEntry> directories = new ArrayList<>();
+            final List<ZipArchiveEntry> files = new ArrayList<>();
+            final List<ZipArchiveEntry> extracted = new ArrayList<>();
+            skipped.clear();
+
+            // First pass: create the directory skeleton
+            Enumeration<? extends ZipArchiveEntry> entries = zipFile.getEntries();
+            while (entries.hasMoreElements()) {
+                final ZipArchiveEntry zipEntry = entries.nextElement();
+                if (zipEntry.isDirectory()) {
+                    extractEntry(null, zipEntry, targetDirectory, null);
+                    directories.add(zipEntry);
+                } else if (filter != null && ! filter.apply(zipEntry.getName())) {
+                    files.add(zipEntry);
+                    skipped.add(zipEntry.getName());
+                } else {
+                    makeDirectory(new File(targetDirectory, zipEntry.getName()).getParentFile());
+                    files.add(zipEntry);
+                    extracted.add(zipEntry);
                 }
             }
 
-            // If the entry is a directory we need not process any further.
-            if (zipEntry.isDirectory()) {
-                destinationFile.mkdir();
-                log.fine(" - Created dir " + destinationFile.getAbsolutePath());
-                continue;
+            manifest = readManifest(zipFile, files);
+            storedDataOffsets = findStoredDataOffsets(extracted);
+
+            if (numThreads > 1 && extracted.size() >= PARALLEL_MIN_ENTRIES) {
+                extractParallel(zipFile, extracted);
+            } else {
+                for (final ZipArchiveEntry zipEntry : extracted) {
+                    extractEntry(zipFile, zipEntry);
+                }
             }
 
-            InputStream in = zipFile.getInputStream(zipEntry);
+            // Deepest directories first so setting the time of a
+            // directory does not disturb its parent.  A child always
+            // has a longer name than its parent.
+            Collections.sort(directories, new Comparator<ZipArchiveEntry>() {
+                @Override
+                public int compare(ZipArchiveEntry a, ZipArchiveEntry b) {
+                    return b.getName().length() - a.getName().length();
+                }
+            });
+            for (final ZipArchiveEntry zipEntry : directories) {
+                new File(targetDirectory, zipEntry.getName()).setLastModified(zipEntry.getTime());
+            }
+        } finally {
+            zipFile.close();
+            sourceChannel.close();
+        }
+    }
+
+    /**
+     * Extract file entries using a pool of worker threads.  The first
+     * failure aborts the remaining work and is rethrown once every
+     * worker has stopped, so nothing is written into the target
+     * directory after we return.  Workers are not interrupted since
+     * that would close the channel they share.
+     */
+    private void extractParallel(final ZipFile zipFile, List<ZipArchiveEntry> files) throws IOException {
+        final ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        final AtomicBoolean aborted = new AtomicBoolean(false);
+        try {
+            final List<Future<Void>> futures = new ArrayList<>(files.size());
+            for (final ZipArchiveEntry zipEntry : files) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        if (! aborted.get()) {
+                            extractEntry(zipFile, zipEntry);
+                        }
+                        return null;
+                    }
+                }));
+            }
+
+            for (final Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    aborted.set(true);
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
+                    }
+                    throw new IOException("Extraction failed", e.getCause());
+                } catch (InterruptedException e) {
+                    aborted.set(true);
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while extracting " + sourceFile.getAbsolutePath());
+                }
+            }
+        } finally {
+            aborted.set(true);
+            executor.shutdown();
+            awaitTermination(executor);
+        }
+    }
 
-            // Copy the data
-            OutputStream outs = new FileOutputStream(destinationFile);
-            byte buffer[] = new byte[BUFFER_SIZE];
-            int numBytes = 0;
-            int totalBytes = 0;
-            while((numBytes = in.read(buffer, 0, BUFFER_SIZE)) != -1) {
-                outs.write(buffer, 0, numBytes);
-                totalBytes += numBytes;
+    /**
+     * Wait for the workers to finish, even if we are interrupted.
+     */
+    private static void awaitTermination(ExecutorService executor) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                if (executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                    break;
+                }
+            } catch (InterruptedException e) {
+                interrupted = true;
             }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Extract a single file entry from the ZipFile.  Safe to call
+     * from several threads at once.
+     */
+    private void extractEntry(ZipFile zipFile, ZipArchiveEntry zipEntry) throws IOException {
+        if (contentStore != null) {
+            extractToStore(zipFile, zipEntry);
+            return;
+        }
+
+        final Long dataOffset = storedDataOffsets.get(zipEntry.getName());
+        if (dataOffset != null) {
+            extractStored(dataOffset, zipEntry);
+            return;
+        }
+
+        final MessageDigest digest = (manifest == null) ? null : Manifest.newDigest();
+        InputStream in = zipFile.getInputStream(zipEntry);
+        try {
+            check(zipEntry, extractEntry(in, zipEntry, targetDirectory, digest));
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Read the manifest of the ZIP file, if it has one, and check
+     * that it lists exactly the files in the ZIP file.
+     *
+     * @return the manifest or {@code null} if there is none.
+     */
+    private Manifest readManifest(ZipFile zipFile, List<ZipArchiveEntry> files) throws IOException {
+        final ZipArchiveEntry manifestEntry = zipFile.getEntry(Manifest.NAME);
+        if (manifestEntry == null) {
+            log.fine("No manifest in " + sourceFile.getAbsolutePath() + ", not checking files");
+            return null;
+        }
+
+        final Manifest manifest;
+        final InputStream in = zipFile.getInputStream(manifestEntry);
+        try {
+            manifest = Manifest.parse(in);
+        } finally {
+            in.close();
+        }
+
+        final List<String> names = new ArrayList<>(files.size());
+        for (final ZipArchiveEntry zipEntry : files) {
+            names.add(zipEntry.getName());
+        }
+        manifest.checkNames(names);
+        return manifest;
+    }
+
+    /**
+     * Check the digest of an extracted file against the manifest.
+     */
+    private void check(ZipArchiveEntry zipEntry, String digest) throws IOException {
+        if (manifest != null && ! Manifest.NAME.equals(zipEntry.getName())) {
+            manifest.check(zipEntry.getName(), digest);
+        }
+    }
+
+    /**
+     * Unpack a ZIP file from a stream into the target directory as
+     * the bytes arrive.  Entries are found by their local headers so
+     * we never need the central directory at the end of the file.
+     *
+     * <p>Note that local headers do not carry the unix mode of the
+     * entries, so files are not made executable.  If the ZIP file
+     * ends up on disk, {@link #applyUnixModes} takes care of this.
+     *
+     * <p>Every file is hashed as it is extracted.  The manifest may
+     * come anywhere in the stream, so the files are checked against
+     * it once everything has been extracted.
+     *
+     * @param in the stream the ZIP file is read from.  Not closed.
+     * @param targetDirectory the target directory into which we will extract the ZIP file
+     */
+    public static void unzip(InputStream in, File targetDirectory) throws IOException {
+        makeDirectory(targetDirectory);
 
-            // Log a warning if the file was different size than expected.
-            if (zipEntry.getSize() != totalBytes) {
-                log.warning("Expected " + zipEntry.getSize()
-                            + " bytes, got " + numBytes
-                            + " for " + destinationFile.getAbsolutePath());
+        // Do not close the ZipArchiveInputStream; that would close
+        // the stream we were given.
+        final ZipArchiveInputStream zin = new ZipArchiveInputStream(in);
+        final Map<String, String> digests = new HashMap<>();
+        ZipArchiveEntry zipEntry;
+        while ((zipEntry = zin.getNextZipEntry()) != null) {
+            if (! zin.canReadEntryData(zipEntry)) {
+                throw new IOException("Unable to stream entry " + zipEntry.getName());
             }
+            final String digest = extractEntry(zin, zipEntry, targetDirectory, Manifest.newDigest());
+            if (digest != null) {
+                digests.put(zipEntry.getName(), digest);
+            }
+        }
+
+        if (digests.containsKey(Manifest.NAME)) {
+            Manifest.read(new File(targetDirectory, Manifest.NAME)).checkAll(digests);
+        }
+    }
 
-            // Make sure executable files are executable
-            if ((zipEntry.getUnixMode() & 0100) != 0) {
+    /**
+     * Make files executable according to the unix modes recorded in
+     * the central directory of a ZIP file which has already been
+     * extracted into the target directory.
+     *
+     * @param sourceFile the ZIP-file which has been extracted
+     * @param targetDirectory the directory the ZIP file was extracted into
+     */
+    public static void applyUnixModes(File sourceFile, File targetDirectory) throws IOException {
+        ZipFile zipFile = new ZipFile(sourceFile);
+        try {
+            Enumeration<? extends ZipArchiveEntry> entries = zipFile.getEntries();
+            while (entries.hasMoreElements()) {
+                final ZipArchiveEntry zipEntry = entries.nextElement();
+                if (zipEntry.isDirectory() || (zipEntry.getUnixMode() & 0100) == 0) {
+                    continue;
+                }
+
+                File destinationFile = new File(targetDirectory, zipEntry.getName());
                 destinationFile.setExecutable(true);
                 log.fine(" - Making executable " + destinationFile.getAbsolutePath());
             }
+        } finally {
+            zipFile.close();
+        }
+    }
 
-            log.fine(" - Extracted " + destinationFile.getAbsolutePath() + " [" + totalBytes + "]");
+    /**
+     * Extract a single entry.
+     *
+     * @param in the stream holding the data of the entry.  Not
+     *   closed.  May be {@code null} for directories.
+     * @param zipEntry the entry we are extracting
+     * @param targetDirectory the target directory into which we extract
+     * @param digest updated with the data of the entry.  May be
+     *   {@code null}.
+     * @return the hex digest of the data, or {@code null} for
+     *   directories or if no digest was given.
+     */
+    private static String extractEntry(InputStream in,
+                                       ZipArchiveEntry zipEntry,
+                                       File targetDirectory,
+                                       MessageDigest digest) throws IOException {
+        // Prepare target name and make sure that we create any
+        // directories that are needed.
+        File destinationFile = new File(targetDirectory, zipEntry.getName());
+        makeDirectory(destinationFile.getParentFile());
 
-            outs.flush();
-            outs.close();
+        // If the entry is a directory we need not process any further.
+        if (zipEntry.isDirectory()) {
+            destinationFile.mkdir();
+            log.fine(" - Created dir " + destinationFile.getAbsolutePath());
+            return null;
+        }
+
+        // Copy the data
+        final FileChannel out = openForWrite(destinationFile, zipEntry.getSize());
+        final long totalBytes;
+        try {
+            totalBytes = copy(in, out, digest, zipEntry.getSize());
+        } finally {
+            out.close();
+        }
+
+        // Log a warning if the file was different size than expected.
+        // When streaming the size may not be known up front.
+        if (zipEntry.getSize() != ZipArchiveEntry.SIZE_UNKNOWN && zipEntry.getSize() != totalBytes) {
+            log.warning("Expected " + zipEntry.getSize()
+                        + " bytes, got " + totalBytes
+                        + " for " + destinationFile.getAbsolutePath());
+        }
+
+        finishEntry(zipEntry, destinationFile, totalBytes);
+        return (digest == null) ? null : Manifest.hex(digest.digest());
+    }
+
+    /**
+     * Extract a STORED entry by copying its bytes straight from the
+     * ZIP file to the destination file with FileChannel.transferTo.
+     * The data never passes through a Java buffer, and on Linux the
+     * kernel does the copy.  Safe to call from several threads at
+     * once since transferTo does not move the position of the source
+     * channel.
+     *
+     * <p>If there is a manifest the entry is hashed from a memory
+     * mapping of the ZIP file, which the copy then reads from the
+     * page cache.
+     *
+     * @param dataOffset the offset of the entry data in the ZIP file.
+     * @param zipEntry the entry we are extracting
+     */
+    private void extractStored(long dataOffset, ZipArchiveEntry zipEntry) throws IOException {
+        final File destinationFile = new File(targetDirectory, zipEntry.getName());
+        final long size = zipEntry.getSize();
+        long totalBytes = 0;
+
+        if (manifest != null) {
+            final MessageDigest digest = Manifest.newDigest();
+            Manifest.update(digest, sourceChannel, dataOffset, size);
+            check(zipEntry, Manifest.hex(digest.digest()));
+        }
+
+        final FileChannel out = openForWrite(destinationFile, size);
+        try {
+            while (totalBytes < size) {
+                final long n = sourceChannel.transferTo(dataOffset + totalBytes, size - totalBytes, out);
+                if (n <= 0) {
+                    throw new EOFException("Unexpected end of " + sourceFile.getAbsolutePath()
+                                           + " in " + zipEntry.getName());
+                }
+                totalBytes += n;
+            }
+        } finally {
+            out.close();
+        }
+
+        finishEntry(zipEntry, destinationFile, totalBytes);
+    }
+
+    /**
+     * Extract a file entry by way of the content store.  The entry is
+     * first read just to hash it, so content we already have in the
+     * store is linked into place without writing anything.  Only new
+     * content is extracted, into the store, and then linked.
+     */
+    private void extractToStore(ZipFile zipFile, ZipArchiveEntry zipEntry) throws IOException {
+        final File destinationFile = new File(targetDirectory, zipEntry.getName());
+        final boolean executable = (zipEntry.getUnixMode() & 0100) != 0;
+
+        final String sha256 = hashEntry(zipFile, zipEntry);
+        check(zipEntry, sha256);
+        if (contentStore.link(sha256, executable, destinationFile)) {
+            log.fine(" - Linked " + destinationFile.getAbsolutePath() + " [" + sha256 + "]");
+            return;
+        }
+
+        final File tmpFile = contentStore.newTempFile();
+        try {
+            final InputStream in = zipFile.getInputStream(zipEntry);
+            try {
+                final FileChannel out = openForWrite(tmpFile, zipEntry.getSize());
+                try {
+                    copy(in, out, null, zipEntry.getSize());
+                } finally {
+                    out.close();
+                }
+            } finally {
+                in.close();
+            }
+            contentStore.add(tmpFile, sha256, executable, zipEntry.getTime());
+        } finally {
+            tmpFile.delete();
+        }
+
+        if (! contentStore.link(sha256, executable, destinationFile)) {
+            throw new IOException("Unable to link " + destinationFile.getAbsolutePath() + " from content store");
+        }
+        log.fine(" - Stored " + destinationFile.getAbsolutePath() + " [" + sha256 + "]");
+    }
+
+    /**
+     * @return the hex SHA-256 hash of the data of an entry.
+     */
+    private static String hashEntry(ZipFile zipFile, ZipArchiveEntry zipEntry) throws IOException {
+        final Hasher hasher = Hashing.sha256().newHasher();
+        final byte buffer[] = buffer(zipEntry.getSize());
+        final InputStream in = zipFile.getInputStream(zipEntry);
+        try {
+            int numBytes;
+            while ((numBytes = in.read(buffer, 0, buffer.length)) != -1) {
+                hasher.putBytes(buffer, 0, numBytes);
+            }
+        } finally {
             in.close();
-            destinationFile.setLastModified(zipEntry.getTime());
+        }
+        return hasher.hash().toString();
+    }
+
+    /**
+     * @return the copy buffer of this thread, grown to fit an entry
+     *   of the given size if need be.
+     */
+    private static byte[] buffer(long size) {
+        final byte[] buffer = buffers.get();
+        if (size <= buffer.length || buffer.length >= MAX_BUFFER_SIZE) {
+            return buffer;
+        }
+
+        // Round up to a power of two so a thread does not reallocate
+        // for every entry slightly larger than the last
+        final int newSize = (int) Math.min(MAX_BUFFER_SIZE, Long.highestOneBit(size - 1) << 1);
+        final byte[] larger = new byte[newSize];
+        buffers.set(larger);
+        return larger;
+    }
+
+    /**
+     * Open a file to write an entry into, replacing whatever was
+     * there.  Files of at least {@link #PREALLOCATE_MIN_SIZE} bytes
+     * are given their full length up front.
+     *
+     * @param file the file
+     * @param size the size of the entry, or {@link
+     *   ZipArchiveEntry#SIZE_UNKNOWN}.
+     */
+    private static FileChannel openForWrite(File file, long size) throws IOException {
+        if (size < PREALLOCATE_MIN_SIZE) {
+            return new FileOutputStream(file).getChannel();
+        }
+
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(size);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+        return raf.getChannel();
+    }
+
+    /**
+     * Copy the data of an entry to a file opened by {@link
+     * #openForWrite}, using the copy buffer of this thread.
+     *
+     * @param in the data of the entry.  Not closed.
+     * @param out the file.  Not closed.
+     * @param digest updated with the data.  May be {@code null}.
+     * @param size the size of the entry, or {@link
+     *   ZipArchiveEntry#SIZE_UNKNOWN}.
+     * @return the number of bytes copied.
+     */
+    private static long copy(InputStream in, FileChannel out, MessageDigest digest, long size) throws IOException {
+        final byte buffer[] = buffer(size);
+        long totalBytes = 0;
+        int numBytes;
+        while ((numBytes = in.read(buffer, 0, buffer.length)) != -1) {
+            final ByteBuffer data = ByteBuffer.wrap(buffer, 0, numBytes);
+            while (data.hasRemaining()) {
+                out.write(data);
+            }
+            if (digest != null) {
+                digest.update(buffer, 0, numBytes);
+            }
+            totalBytes += numBytes;
+        }
+
+        // A preallocated file must not keep its length if the entry
+        // turned out shorter
+        if (size >= PREALLOCATE_MIN_SIZE && totalBytes < size) {
+            out.truncate(totalBytes);
+        }
+        return totalBytes;
+    }
+
+    /**
+     * Work done on a file once its data has been written.
+     */
+    private static void finishEntry(ZipArchiveEntry zipEntry, File destinationFile, long totalBytes) {
+        // Make sure executable files are executable
+        if ((zipEntry.getUnixMode() & 0100) != 0) {
+            destinationFile.setExecutable(true);
+            log.fine(" - Making executable " + destinationFile.getAbsolutePath());
+        }
+
+        log.fine(" - Extracted " + destinationFile.getAbsolutePath() + " [" + totalBytes + "]");
+
+        destinationFile.setLastModified(zipEntry.getTime());
+    }
+
+    /**
+     * Find the data offsets of the STORED file entries so they can be
+     * copied without going through commons-compress.  This is an
+     * optimization only: if we cannot make sense of the central
+     * directory, or an entry does not match what commons-compress
+     * saw, the entry is simply extracted the regular way.
+     *
+     * @return map from entry name to data offset.
+     */
+    private Map<String, Long> findStoredDataOffsets(List<ZipArchiveEntry> files) {
+        final Map<String, ZipArchiveEntry> stored = new HashMap<>();
+        for (final ZipArchiveEntry zipEntry : files) {
+            if (zipEntry.getMethod() == ZipArchiveEntry.STORED) {
+                stored.put(zipEntry.getName(), zipEntry);
+            }
+        }
+
+        final Map<String, Long> offsets = new HashMap<>();
+        if (stored.isEmpty()) {
+            return offsets;
+        }
+
+        try {
+            for (final ZipDirectory.Entry entry : ZipDirectory.read(sourceChannel)) {
+                final ZipArchiveEntry zipEntry = stored.get(entry.getName());
+                if (zipEntry == null
+                    || entry.getMethod() != ZipArchiveEntry.STORED
+                    || entry.getSize() != zipEntry.getSize()
+                    || entry.getCompressedSize() != zipEntry.getSize()) {
+                    continue;
+                }
+                offsets.put(entry.getName(), ZipDirectory.dataOffset(sourceChannel, entry));
+            }
+        } catch (IOException e) {
+            log.fine("Not using fast path for stored entries in " + sourceFile.getAbsolutePath() + ": " + e.getMessage());
+            offsets.clear();
+        }
+        return offsets;
+    }
+
+    /**
+     * If the directory does not exist we create it.
+     */
+    private static void makeDirectory(File directory) throws IOException {
+        if (! (directory.exists())) {
+            // Someone else may have created it in the meantime
+            boolean ok = directory.mkdirs() || directory.isDirectory();
+            if (! ok) {
+                throw new IOException("Unable to create directory: " + directory.getAbsolutePath());
+            }
         }
     }
 }
@@ -0,0 +1,312 @@
+package org.cloudname.copkg.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+/**
+ * Minimal reader for the central directory of a ZIP file.  Unlike
+ * commons-compress this gives us the raw offsets of the entries,
+ * which we need to copy stored entries without going through an
+ * InputStream and to fetch individual entries with ranged requests.
+ *
+ * <p>ZIP64 archives are not supported.  Callers are expected to use
+ * this as a fast path and fall back to commons-compress when we
+ * throw.
+ */
+public final class ZipDirectory {
+    private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+    private static final int CENTRAL_DIRECTORY_SIGNATURE = 0x02014b50;
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+
+    private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+    private static final int CENTRAL_DIRECTORY_HEADER_SIZE = 46;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+
+    /**
+     * The number of bytes from the end of a ZIP file which is
+     * guaranteed to hold the end of central directory record.
+     */
+    public static final int MAX_TAIL_SIZE = END_OF_CENTRAL_DIRECTORY_SIZE + MAX_COMMENT_SIZE;
+
+    // Compression methods
+    public static final int STORED = 0;
+    public static final int DEFLATED = 8;
+
+    private static final int PLATFORM_UNIX = 3;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private ZipDirectory() {}
+
+    /**
+     * Where the central directory is found in a ZIP file.
+     */
+    public static final class Location {
+        private final long offset;
+        private final long size;
+        private final int numEntries;
+
+        Location(long offset, long size, int numEntries) {
+            this.offset = offset;
+            this.size = size;
+            this.numEntries = numEntries;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public int getNumEntries() {
+            return numEntries;
+        }
+    }
+
+    /**
+     * An entry of the central directory.
+     */
+    public static final class Entry {
+        private final String name;
+        private final int method;
+        private final long crc;
+        private final long compressedSize;
+        private final long size;
+        private final long localHeaderOffset;
+        private final int unixMode;
+        private final long time;
+
+        Entry(String name,
+              int method,
+              long crc,
+              long compressedSize,
+              long size,
+              long localHeaderOffset,
+              int unixMode,
+              long time) {
+            this.name = name;
+            this.method = method;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeaderOffset = localHeaderOffset;
+            this.unixMode = unixMode;
+            this.time = time;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the compression method, {@link #STORED} or
+         *   {@link #DEFLATED} for the ZIP files we make.
+         */
+        public int getMethod() {
+            return method;
+        }
+
+        public long getCrc() {
+            return crc;
+        }
+
+        public long getCompressedSize() {
+            return compressedSize;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLocalHeaderOffset() {
+            return localHeaderOffset;
+        }
+
+        /**
+         * @return the unix mode of the entry or 0 if the entry was
+         *   not made on a unix system.
+         */
+        public int getUnixMode() {
+            return unixMode;
+        }
+
+        /**
+         * @return the modification time of the entry in milliseconds
+         *   since the epoch.
+         */
+        public long getTime() {
+            return time;
+        }
+
+        public boolean isDirectory() {
+            return name.endsWith("/");
+        }
+    }
+
+    /**
+     * Read the central directory of a ZIP file.
+     *
+     * @param channel the ZIP file.
+     * @return the entries in the order they appear in the central directory.
+     */
+    public static List<Entry> read(FileChannel channel) throws IOException {
+        final long length = channel.size();
+        final int tailSize = (int) Math.min(length, MAX_TAIL_SIZE);
+        final ByteBuffer tail = readFully(channel, length - tailSize, tailSize);
+
+        final Location location = locate(tail);
+        if (location.getOffset() + location.getSize() > length) {
+            throw new IOException("Central directory extends beyond end of file");
+        }
+
+        final ByteBuffer directory = readFully(channel, location.getOffset(), (int) location.getSize());
+        return parse(directory, location.getNumEntries());
+    }
+
+    /**
+     * Find the central directory given the last bytes of a ZIP file.
+     *
+     * @param tail the last bytes of the ZIP file, at most
+     *   {@link #MAX_TAIL_SIZE} are needed.
+     * @return the location of the central directory.
+     */
+    public static Location locate(ByteBuffer tail) throws IOException {
+        final ByteBuffer buf = tail.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        final int base = buf.position();
+
+        // The record is followed by a comment of unknown length so
+        // we scan backwards for the signature.
+        for (int pos = buf.limit() - END_OF_CENTRAL_DIRECTORY_SIZE; pos >= base; pos--) {
+            if (buf.getInt(pos) != END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+                continue;
+            }
+
+            final int numEntries = buf.getShort(pos + 10) & 0xffff;
+            final long size = buf.getInt(pos + 12) & 0xffffffffL;
+            final long offset = buf.getInt(pos + 16) & 0xffffffffL;
+            if (numEntries == 0xffff || size == 0xffffffffL || offset == 0xffffffffL) {
+                throw new IOException("ZIP64 archives are not supported");
+            }
+            return new Location(offset, size, numEntries);
+        }
+        throw new IOException("End of central directory not found");
+    }
+
+    /**
+     * Parse the entries of a central directory.
+     *
+     * @param directory the bytes of the central directory.
+     * @param numEntries the number of entries according to the
+     *   end of central directory record.
+     */
+    public static List<Entry> parse(ByteBuffer directory, int numEntries) throws IOException {
+        final ByteBuffer buf = directory.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        final List<Entry> entries = new ArrayList<>(numEntries);
+
+        for (int i = 0; i < numEntries; i++) {
+            if (buf.remaining() < CENTRAL_DIRECTORY_HEADER_SIZE) {
+                throw new EOFException("Truncated central directory");
+            }
+
+            final int pos = buf.position();
+            if (buf.getInt(pos) != CENTRAL_DIRECTORY_SIGNATURE) {
+                throw new IOException("Bad central directory header at entry " + i);
+            }
+
+            final int platform = (buf.getShort(pos + 4) >> 8) & 0xff;
+            final int method = buf.getShort(pos + 10) & 0xffff;
+            final int dosTime = buf.getShort(pos + 12) & 0xffff;
+            final int dosDate = buf.getShort(pos + 14) & 0xffff;
+            final long crc = buf.getInt(pos + 16) & 0xffffffffL;
+            final long compressedSize = buf.getInt(pos + 20) & 0xffffffffL;
+            final long size = buf.getInt(pos + 24) & 0xffffffffL;
+            final int nameLength = buf.getShort(pos + 28) & 0xffff;
+            final int extraLength = buf.getShort(pos + 30) & 0xffff;
+            final int commentLength = buf.getShort(pos + 32) & 0xffff;
+            final long externalAttributes = buf.getInt(pos + 38) & 0xffffffffL;
+            final long localHeaderOffset = buf.getInt(pos + 42) & 0xffffffffL;
+
+            if (compressedSize == 0xffffffffL || size == 0xffffffffL || localHeaderOffset == 0xffffffffL) {
+                throw new IOException("ZIP64 archives are not supported");
+            }
+
+            final int next = pos + CENTRAL_DIRECTORY_HEADER_SIZE + nameLength + extraLength + commentLength;
+            if (next > buf.limit()) {
+                throw new EOFException("Truncated central directory");
+            }
+
+            final byte[] nameBytes = new byte[nameLength];
+            buf.position(pos + CENTRAL_DIRECTORY_HEADER_SIZE);
+            buf.get(nameBytes);
+            buf.position(next);
+
+            final int unixMode = (platform == PLATFORM_UNIX) ? (int) ((externalAttributes >> 16) & 0xffff) : 0;
+            entries.add(new Entry(new String(nameBytes, UTF8),
+                                  method,
+                                  crc,
+                                  compressedSize,
+                                  size,
+                                  localHeaderOffset,
+                                  unixMode,
+                                  dosToJavaTime(dosDate, dosTime)));
+        }
+        return entries;
+    }
+
+    /**
+     * Convert an MS-DOS date and time, which is in local time with a
+     * two second resolution, to milliseconds since the epoch.
+     */
+    static long dosToJavaTime(int dosDate, int dosTime) {
+        final Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(((dosDate >> 9) & 0x7f) + 1980,
+                     ((dosDate >> 5) & 0x0f) - 1,
+                     dosDate & 0x1f,
+                     (dosTime >> 11) & 0x1f,
+                     (dosTime >> 5) & 0x3f,
+                     (dosTime & 0x1f) * 2);
+        return calendar.getTimeInMillis();
+    }
+
+    /**
+     * Find the offset of the (possibly compressed) data of an entry.
+     * The local header has its own name and extra field lengths, which
+     * may differ from those in the central directory, so we have to
+     * read it.
+     */
+    public static long dataOffset(FileChannel channel, Entry entry) throws IOException {
+        final ByteBuffer header = readFully(channel, entry.getLocalHeaderOffset(), LOCAL_HEADER_SIZE)
+            .order(ByteOrder.LITTLE_ENDIAN);
+        if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+            throw new IOException("Bad local header for " + entry.getName());
+        }
+
+        final int nameLength = header.getShort(26) & 0xffff;
+        final int extraLength = header.getShort(28) & 0xffff;
+        return entry.getLocalHeaderOffset() + LOCAL_HEADER_SIZE + nameLength + extraLength;
+    }
+
+    /**
+     * Read exactly length bytes at the given position.
+     */
+    private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        final ByteBuffer buf = ByteBuffer.allocate(length);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position()) < 0) {
+                throw new EOFException("Unexpected end of ZIP file");
+            }
+        }
+        buf.flip();
+        return buf;
+    }
+}
@@ -4,16 +4,31 @@ import static com.google.common.base.Preconditions.checkNotNull;
 
 import org.cloudname.copkg.Configuration;
 import org.cloudname.copkg.PackageCoordinate;
+import org.cloudname.copkg.PackageUsage;
+import org.cloudname.copkg.util.OutputCapture;
+import org.cloudname.copkg.util.RotatingFileOutputStream;
 import org.cloudname.copkg.util.StreamConsumer;
+import org.cloudname.copkg.util.TeeOutputStream;
+
+import com.google.common.util.concurrent.AbstractFuture;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import java.io.*;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Queue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -21,29 +36,124 @@ import java.util.logging.Logger;
  * terminate within a reasonable amount of time.  It is not designed
  * to support long-running jobs.
  *
+ * <p>The output of the jobs is read by a pool of threads shared by
+ * all jobs run by the same runner, so running many jobs at once does
+ * not start and stop threads for every job.  The pool has {@link
+ * Configuration#getJobIoThreads} threads, which exit when they have
+ * been idle for a while.  At most half as many jobs run at once, so
+ * every running job has a thread for each of its output streams and
+ * its output is read as soon as it starts.  Other jobs are queued and
+ * their scripts are started when a running job is done.  The runner
+ * should be closed when no longer needed.
+ *
+ * <p>No thread waits for a job.  A job is done when both its output
+ * streams have ended and the process has exited, which is checked by
+ * a single timer thread per runner.  The same thread enforces the
+ * time limit, which starts when the output of the job is first read.
+ * See {@link #runJobAsync}.
+ *
+ * <p>Only the first {@link #OUTPUT_HEAD_BYTES} and the last {@link
+ * #OUTPUT_TAIL_BYTES} bytes of each output stream are kept for the
+ * Result, so a job uses a bounded amount of memory however much it
+ * writes.  An {@link OutputListener} gets all of it, line by line.
+ *
+ * <p>If {@link Configuration#getJobLogSize} is set the output is not
+ * kept in memory at all.  It is appended to log files in the {@link
+ * #LOG_DIR} directory of the runtime directory of the job, named
+ * after the script and the stream, for instance {@code
+ * logs/start.py.stdout.log}, and rotated when they reach that size.
+ * The Result then refers to the files.  Jobs running the same script
+ * in the same runtime directory should not run at the same time,
+ * since they would write to the same files.
+ *
  * @author borud
  */
-public final class JobRunner {
+public final class JobRunner implements Closeable {
     private static final Logger log = Logger.getLogger(JobRunner.class.getName());
 
     public static final String SCRIPT_DIR = "script.d";
     public static final String START_SCRIPT = "start.py";
     public static final String STOP_SCRIPT = "stop.py";
+    public static final String LOG_DIR = "logs";
+    public static final String STDOUT_LOG_SUFFIX = ".stdout.log";
+    public static final String STDERR_LOG_SUFFIX = ".stderr.log";
+
+    // How long an idle output reader thread is kept around
+    private static final long IO_THREAD_KEEPALIVE_SECONDS = 60;
+
+    // How often we check whether a process has exited
+    private static final long EXIT_POLL_MS = 10;
 
     private final Configuration config;
+    private final PackageUsage usage;
+    private final ThreadPoolExecutor ioExecutor;
+    private final ScheduledThreadPoolExecutor scheduler;
+
+    // Jobs are started at most this many at a time, so every running
+    // job has a reader thread for each of its output streams.  The
+    // rest wait in the queue without a process.
+    private final int maxActiveJobs;
+    private final Queue<RunningJob> pendingJobs = new ArrayDeque<>();
+    private int activeJobs = 0; // guarded by pendingJobs
+    private int stuckReaders = 0; // guarded by ioExecutor
 
     /**
      * @param config the copkg configuration.
      */
     public JobRunner(final Configuration config) {
         this.config = checkNotNull(config);
+        this.usage = new PackageUsage(new File(config.getUsageDir()));
+        this.maxActiveJobs = Math.max(1, config.getJobIoThreads() / 2);
+
+        // Fixed size but idle threads time out, so a runner which is
+        // not running anything holds no threads.  Daemon threads so a
+        // runner which is never closed does not keep the JVM alive.
+        this.ioExecutor = new ThreadPoolExecutor(config.getJobIoThreads(),
+                                                 config.getJobIoThreads(),
+                                                 IO_THREAD_KEEPALIVE_SECONDS,
+                                                 TimeUnit.SECONDS,
+                                                 new LinkedBlockingQueue<Runnable>(),
+                                                 new ThreadFactoryBuilder()
+                                                     .setNameFormat("job-io-%d")
+                                                     .setDaemon(true)
+                                                     .build());
+        this.ioExecutor.allowCoreThreadTimeOut(true);
+
+        this.scheduler = new ScheduledThreadPoolExecutor(1,
+                                                         new ThreadFactoryBuilder()
+                                                             .setNameFormat("job-timer-%d")
+                                                             .setDaemon(true)
+                                                             .build());
+        this.scheduler.setRemoveOnCancelPolicy(true);
     }
 
     /**
-     * The maximum number of bytes to read from the process before
-     * bailing out.
+     * Stop the output reader threads once the jobs which are running
+     * are done.  Jobs which are still running are no longer timed out
+     * and their futures may never complete.  No new jobs can be run
+     * afterwards.
+     */
+    @Override
+    public void close() {
+        ioExecutor.shutdown();
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * @return the number of output reader threads alive right now.
+     */
+    public int getIoThreadCount() {
+        return ioExecutor.getPoolSize();
+    }
+
+    /**
+     * The number of bytes kept from the start of each output stream.
+     */
+    public static final int OUTPUT_HEAD_BYTES = 1024*16;
+    /**
+     * The number of bytes kept from the end of each output stream.
      */
-    private final int MAX_BYTES_TO_READ = 1024*64;
+    public static final int OUTPUT_TAIL_BYTES = 1024*48;
     /**
      * The maximum number of seconds to wait for the process to start.
      */
@@ -52,104 +162,494 @@ public final class JobRunner {
     /**
      * Run a Job.  The job is expected to just execute the script and
      * then terminate.  If this job hangs for an unacceptably long
-     * time or it produces exorbitant amounts of output, we
-     * unceremoniously terminate the process.
+     * time we unceremoniously terminate the process.  If it writes
+     * a lot of output, the middle of it is left out of the Result.
+     *
+     * <p>Blocks until the job is done, see {@link #runJobAsync}.
      *
      * @return a Result instance.
      */
     public Result runJob(final Job job, final String scriptFile) {
+        final ListenableFuture<Result> future = runJobAsync(job, scriptFile);
+        try {
+            return future.get();
+        } catch (InterruptedException ie) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Got InterruptedException waiting for process", ie);
+        } catch (ExecutionException e) {
+            return Result.makeError(
+                    Result.Status.OTHER,
+                    "Got exception running the process: " + e.getCause());
+        }
+    }
+
+    /**
+     * Start a Job and return at once.  If the runner already runs as
+     * many jobs as it has reader threads for, the script is started
+     * when one of them is done.  The future completes when the
+     * script has exited and its output has been read, or when the job
+     * fails the same way {@link #runJob} would fail it.  Cancelling
+     * the future kills the process, or drops the job if it has not
+     * been started.
+     *
+     * <p>Only the process running the script is killed on
+     * cancellation or timeout.  Java 7 has no way to find the
+     * processes it started, so a script which starts other processes
+     * should see to it that they die with it.
+     *
+     * @return a future Result.  Failures to start the script are
+     *   reported as an error Result.
+     */
+    public ListenableFuture<Result> runJobAsync(final Job job, final String scriptFile) {
+        return runJobAsync(job, scriptFile, null);
+    }
+
+    /**
+     * Start a Job and return at once, giving its output to a
+     * listener line by line as the script writes it.  See {@link
+     * #runJobAsync(Job, String)}.
+     *
+     * @param listener the listener for the output, or {@code null}.
+     * @return a future Result.
+     */
+    public ListenableFuture<Result> runJobAsync(final Job job,
+                                                final String scriptFile,
+                                                final OutputListener listener) {
         File script = getScriptForJob(job, scriptFile);
         log.info("Script: " + script.getAbsolutePath());
 
         if (! script.exists()) {
-            return Result.makeError(Result.Status.SCRIPT_NOT_FOUND,
-                                    "Script does not exist: " + script.getAbsolutePath());
+            return Futures.immediateFuture(
+                    Result.makeError(Result.Status.SCRIPT_NOT_FOUND,
+                                     "Script does not exist: " + script.getAbsolutePath()));
         }
 
         if (! script.canExecute()) {
-            return Result.makeError(Result.Status.SCRIPT_NOT_EXECUTABLE,
-                                    "Script is not executable: " + script.getAbsolutePath());
+            return Futures.immediateFuture(
+                    Result.makeError(Result.Status.SCRIPT_NOT_EXECUTABLE,
+                                     "Script is not executable: " + script.getAbsolutePath()));
+        }
+
+        final RunningJob running = new RunningJob(job, scriptFile, script, listener);
+        schedule(running);
+        return running;
+    }
+
+    /**
+     * Start a job if there is room for it, otherwise queue it until
+     * a running job is done.
+     */
+    private void schedule(final RunningJob job) {
+        synchronized (pendingJobs) {
+            if (activeJobs >= maxActiveJobs) {
+                pendingJobs.add(job);
+                return;
+            }
+            activeJobs++;
         }
+        if (! job.start()) {
+            startNext();
+        }
+    }
 
-        // Launch job. The first entry is the script name, the 2nd and 3rd element
-        // is the working directory parameter
-        final List<String> command = new ArrayList<>();
-        command.add(script.getAbsolutePath());
-        command.add("--working-directory");
-        command.add(job.getRuntimeDirectory());
+    /**
+     * Hand the slot of a job which is done to the next queued job
+     * which starts, or give it up if there is none.  A loop rather
+     * than recursion since jobs may fail to start.
+     */
+    private void startNext() {
+        while (true) {
+            final RunningJob next;
+            synchronized (pendingJobs) {
+                next = pendingJobs.poll();
+                if (next == null) {
+                    activeJobs--;
+                    return;
+                }
+            }
+            if (next.start()) {
+                return;
+            }
+        }
+    }
 
-        command.addAll(job.getParams());
+    /**
+     * Change the size of the output reader pool by the given number
+     * of threads.  Readers which are stuck on an abandoned job are
+     * replaced, so they do not hold up the jobs after it.
+     */
+    private void resizeIoPool(final int delta) {
+        synchronized (ioExecutor) {
+            stuckReaders += delta;
+            final int size = config.getJobIoThreads() + stuckReaders;
+            // The core size must never be larger than the maximum
+            if (delta > 0) {
+                ioExecutor.setMaximumPoolSize(size);
+                ioExecutor.setCorePoolSize(size);
+            } else {
+                ioExecutor.setCorePoolSize(size);
+                ioExecutor.setMaximumPoolSize(size);
+            }
+        }
+    }
 
-        // Finally, launch the startup script and capture all stdout and stderr
-        // data in separate threads.
+    /**
+     * A job which is queued or whose script has been started.
+     * Completes itself when the last of its output streams ends and
+     * the process has exited, or fails when the process takes too
+     * long.
+     *
+     * <p>A job which fails or is cancelled is abandoned: its process
+     * is killed and its streams are closed.  A reader may still be
+     * stuck if a child of the script holds on to the output, so its
+     * thread is replaced in the pool until it gets out.
+     */
+    private final class RunningJob extends AbstractFuture<Result> implements StreamConsumer.Listener {
+        private final Job job;
+        private final String scriptFile;
+        private final File script;
+        private final OutputListener listener;
+        private final AtomicInteger openStreams = new AtomicInteger(2);
+        private final AtomicInteger runningReaders = new AtomicInteger(2);
+        private final AtomicBoolean timeoutStarted = new AtomicBoolean(false);
+        private final AtomicBoolean slotReleased = new AtomicBoolean(false);
+        private final Object lock = new Object();
 
-        final ExecutorService executor = Executors.newFixedThreadPool(3);
-        try {
-            final Process process = Runtime.getRuntime().exec(command.toArray(new String[command.size()]));
+        // Set when the script is started
+        private volatile Process process;
+        private volatile OutputCapture stdoutOutput;
+        private volatile OutputCapture stderrOutput;
+        private volatile RotatingFileOutputStream stdoutLog;
+        private volatile RotatingFileOutputStream stderrLog;
+        private volatile Reader stdoutReader;
+        private volatile Reader stderrReader;
+        private volatile ScheduledFuture<?> timeout;
+        private boolean killed = false; // guarded by lock
 
-            final ByteArrayOutputStream stderrOutput = new ByteArrayOutputStream();
-            final ByteArrayOutputStream stdoutOutput = new ByteArrayOutputStream();
+        RunningJob(final Job job, final String scriptFile, final File script, final OutputListener listener) {
+            this.job = job;
+            this.scriptFile = scriptFile;
+            this.script = script;
+            this.listener = listener;
+        }
 
-            final StreamConsumer stderrConsumer = new StreamConsumer(process.getErrorStream(), stderrOutput, MAX_BYTES_TO_READ);
-            final StreamConsumer stdoutConsumer = new StreamConsumer(process.getInputStream(), stdoutOutput, MAX_BYTES_TO_READ);
-            final CountDownLatch completeLatch = new CountDownLatch(2);
-            final AtomicBoolean hasOverflow = new AtomicBoolean(false);
-            final StreamConsumer.Listener listener = new StreamConsumer.Listener() {
+        private OutputCapture.LineListener forward(final OutputListener listener, final OutputListener.Stream stream) {
+            return new OutputCapture.LineListener() {
                 @Override
-                public void onNotify(StreamConsumer consumer, Status status) {
-                    if (status == Status.DONE || status == Status.GOT_EXCEPTION) {
-                        completeLatch.countDown();
-                    }
-                    if (status == Status.MAX_READ) {
-                        hasOverflow.set(true);
-                    }
+                public void onLine(String line) {
+                    listener.onLine(job, stream, line);
                 }
             };
-            stderrConsumer.addListener(listener);
-            stdoutConsumer.addListener(listener);
+        }
+
+        /**
+         * Launch the script and start reading its output.
+         *
+         * @return {@code true} if the job holds its slot until its
+         *   readers are done, {@code false} if it was already done or
+         *   failed to start.
+         */
+        boolean start() {
+            if (isDone()) {
+                return false;
+            }
 
-            executor.execute(stderrConsumer);
-            executor.execute(stdoutConsumer);
+            // Launch job. The first entry is the script name, the 2nd and 3rd element
+            // is the working directory parameter
+            final List<String> command = new ArrayList<>();
+            command.add(script.getAbsolutePath());
+            command.add("--working-directory");
+            command.add(job.getRuntimeDirectory());
 
+            command.addAll(job.getParams());
+
+            if (config.getJobLogSize() > 0) {
+                try {
+                    stdoutLog = openLog(job, scriptFile + STDOUT_LOG_SUFFIX);
+                    stderrLog = openLog(job, scriptFile + STDERR_LOG_SUFFIX);
+                } catch (IOException ioe) {
+                    closeQuietly(stdoutLog);
+                    finish(Result.makeError(Result.Status.OTHER,
+                                            "Unable to open log file: " + ioe.getMessage()));
+                    return false;
+                }
+            }
+
+            // With log files the captures only count bytes and split
+            // lines for the listener
+            stdoutOutput = (stdoutLog == null)
+                ? new OutputCapture(OUTPUT_HEAD_BYTES, OUTPUT_TAIL_BYTES)
+                : new OutputCapture(0, 0);
+            stderrOutput = (stderrLog == null)
+                ? new OutputCapture(OUTPUT_HEAD_BYTES, OUTPUT_TAIL_BYTES)
+                : new OutputCapture(0, 0);
+            if (listener != null) {
+                stdoutOutput.addLineListener(forward(listener, OutputListener.Stream.STDOUT));
+                stderrOutput.addLineListener(forward(listener, OutputListener.Stream.STDERR));
+            }
+
+            // Finally, launch the startup script and capture all stdout and stderr
+            // data on the shared output reader threads.
+            final Process started;
             try {
-                completeLatch.await(MAX_SECONDS_TO_WAIT, TimeUnit.SECONDS);
-            } catch (InterruptedException ie) {
-                throw new RuntimeException("Got InterruptedException waiting for process", ie);
-            }
-
-            if (hasOverflow.get()) {
-                process.destroy();
-                return Result.makeError(
-                        Result.Status.OTHER,
-                        "Process has dumped excessive amounts of data (> " + MAX_BYTES_TO_READ + " bytes) has been terminated ");
-            }
-            if (completeLatch.getCount() > 0) {
-                // The process is still running - kill it.
-                process.destroy();
-                return Result.makeError(Result.Status.OTHER, "Process did not start in " + MAX_SECONDS_TO_WAIT + " seconds.");
-            }
-
-            if (process.exitValue() != 0) {
-                return new Result(
-                        stdoutOutput.toString("UTF-8"),
-                        stderrOutput.toString("UTF-8"),
-                        Result.Status.ERROR_CODE_RETURNED,
-                        "Script executed but returned with error code",
-                        process.exitValue());
-            }
-            return new Result(
-                    stdoutOutput.toString("UTF-8"),
-                    stderrOutput.toString("UTF-8"),
-                    Result.Status.SUCCESS,
-                    "Script executed",
-                    process.exitValue());
-
-        } catch (IOException ioe) {
-            return Result.makeError(
-                    Result.Status.OTHER,
-                    "Got exception running the process: " + ioe.getMessage());
-        } finally {
-            executor.shutdown();
+                started = Runtime.getRuntime().exec(command.toArray(new String[command.size()]));
+            } catch (IOException ioe) {
+                closeQuietly(stdoutLog);
+                closeQuietly(stderrLog);
+                finish(Result.makeError(Result.Status.OTHER,
+                                        "Got exception running the process: " + ioe.getMessage()));
+                return false;
+            }
+
+            stdoutReader = new Reader(started.getInputStream(), sink(stdoutLog, stdoutOutput));
+            stderrReader = new Reader(started.getErrorStream(), sink(stderrLog, stderrOutput));
+            process = started;
+            ioExecutor.execute(stderrReader);
+            ioExecutor.execute(stdoutReader);
+
+            // Cancelled while we were starting it
+            if (isDone()) {
+                abandon();
+            }
+            return true;
+        }
+
+        private OutputStream sink(final RotatingFileOutputStream log, final OutputCapture capture) {
+            return (log == null) ? capture : new TeeOutputStream(log, capture);
+        }
+
+        /**
+         * Start the time limit.  It starts when the output is first
+         * read rather than when the job is started, so time spent
+         * waiting for a reader does not count.
+         */
+        private void startTimeout() {
+            if (isDone() || ! timeoutStarted.compareAndSet(false, true)) {
+                return;
+            }
+            timeout = scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    fail("Process did not start in " + MAX_SECONDS_TO_WAIT + " seconds.");
+                }
+            }, MAX_SECONDS_TO_WAIT, TimeUnit.SECONDS);
+
+            // Done in the meantime, so finish() may have missed it
+            if (isDone()) {
+                timeout.cancel(false);
+            }
+        }
+
+        private void cancelTimeout() {
+            final ScheduledFuture<?> t = timeout;
+            if (t != null) {
+                t.cancel(false);
+            }
+        }
+
+        /**
+         * Let the next job have the slot of this one.  Called once the
+         * readers are done, or when the job is abandoned.
+         */
+        private void releaseSlot() {
+            if (slotReleased.compareAndSet(false, true)) {
+                startNext();
+            }
+        }
+
+        private Result makeResult(final Result.Status status, final String message, final int exitValue) {
+            return new Result((stdoutLog == null) ? stdoutOutput.getText() : "",
+                              (stderrLog == null) ? stderrOutput.getText() : "",
+                              (stdoutLog == null) ? null : stdoutLog.getFile(),
+                              (stderrLog == null) ? null : stderrLog.getFile(),
+                              stdoutOutput.getByteCount(),
+                              stderrOutput.getByteCount(),
+                              status,
+                              message,
+                              exitValue);
+        }
+
+        @Override
+        public void onNotify(StreamConsumer consumer, Status status) {
+            if (openStreams.decrementAndGet() == 0) {
+                checkExit();
+            }
+        }
+
+        /**
+         * Complete the job if the process has exited, otherwise look
+         * again a little later.  The output has ended, so it will
+         * exit shortly.
+         */
+        private void checkExit() {
+            if (isDone()) {
+                return;
+            }
+
+            final int exitValue;
+            try {
+                exitValue = process.exitValue();
+            } catch (IllegalThreadStateException e) {
+                scheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        checkExit();
+                    }
+                }, EXIT_POLL_MS, TimeUnit.MILLISECONDS);
+                return;
+            }
+
+            try {
+                if (exitValue != 0) {
+                    finish(makeResult(
+                            Result.Status.ERROR_CODE_RETURNED,
+                            "Script executed but returned with error code",
+                            exitValue));
+                    return;
+                }
+                recordUsage(job, scriptFile);
+                finish(makeResult(
+                        Result.Status.SUCCESS,
+                        "Script executed",
+                        exitValue));
+            } catch (RuntimeException e) {
+                setException(e);
+                cancelTimeout();
+                abandon();
+            }
+        }
+
+        /**
+         * Kill the process and complete the job with an error.
+         */
+        private void fail(final String message) {
+            if (isDone()) {
+                return;
+            }
+            finish(Result.makeError(Result.Status.OTHER, message));
+            abandon();
+        }
+
+        private void finish(final Result result) {
+            if (set(result)) {
+                cancelTimeout();
+            }
+        }
+
+        /**
+         * Kill the process and close its streams and our ends of
+         * them, so the readers are let go if nothing else holds the
+         * output open.  Readers which are still running are replaced
+         * in the pool.  Does nothing before the script is started,
+         * since {@link #start} checks for that.
+         */
+        private void abandon() {
+            final Process p = process;
+            synchronized (lock) {
+                if (p == null || killed) {
+                    return;
+                }
+                killed = true;
+            }
+
+            p.destroy();
+            closeQuietly(p.getOutputStream());
+            closeQuietly(p.getInputStream());
+            closeQuietly(p.getErrorStream());
+            closeQuietly(stdoutReader.out);
+            closeQuietly(stderrReader.out);
+            stdoutReader.abandon();
+            stderrReader.abandon();
+            releaseSlot();
+        }
+
+        @Override
+        public boolean cancel(final boolean mayInterruptIfRunning) {
+            if (! super.cancel(mayInterruptIfRunning)) {
+                return false;
+            }
+            cancelTimeout();
+            abandon();
+            return true;
+        }
+
+        /**
+         * Reads one output stream of the job on the reader pool.
+         */
+        private final class Reader implements Runnable {
+            private static final int RUNNING = 0;
+            private static final int ABANDONED = 1;
+            private static final int DONE = 2;
+
+            private final StreamConsumer consumer;
+            private final OutputStream out;
+            private final AtomicInteger state = new AtomicInteger(RUNNING);
+
+            Reader(final InputStream in, final OutputStream out) {
+                this.out = out;
+                this.consumer = new StreamConsumer(in, out, 0).addListener(RunningJob.this);
+            }
+
+            @Override
+            public void run() {
+                startTimeout();
+                try {
+                    consumer.run();
+                } finally {
+                    if (state.getAndSet(DONE) == ABANDONED) {
+                        resizeIoPool(-1);
+                    }
+                    if (runningReaders.decrementAndGet() == 0) {
+                        releaseSlot();
+                    }
+                }
+            }
+
+            /**
+             * Give this reader's thread a replacement if it is still
+             * running.
+             */
+            void abandon() {
+                if (state.compareAndSet(RUNNING, ABANDONED)) {
+                    resizeIoPool(1);
+                }
+            }
+        }
+    }
+
+    /**
+     * Record that a package was started or stopped so that disk
+     * budget eviction leaves running packages alone.  A failure to
+     * record does not fail the job.
+     */
+    private void recordUsage(final Job job, final String scriptFile) {
+        final PackageCoordinate coordinate = PackageCoordinate.parse(job.getPackageCoordinate());
+        try {
+            if (START_SCRIPT.equals(scriptFile)) {
+                usage.started(coordinate, job.getRuntimeDirectory());
+            } else if (STOP_SCRIPT.equals(scriptFile)) {
+                usage.stopped(coordinate, job.getRuntimeDirectory());
+            }
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Unable to record usage of " + coordinate, e);
+        }
+    }
+
+    private RotatingFileOutputStream openLog(final Job job, final String name) throws IOException {
+        return new RotatingFileOutputStream(new File(job.getRuntimeDirectory(), LOG_DIR + File.separatorChar + name),
+                                            config.getJobLogSize(),
+                                            config.getJobLogFiles());
+    }
+
+    private static void closeQuietly(final Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Got exception while closing", e);
         }
     }
 
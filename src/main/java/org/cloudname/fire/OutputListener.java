@@ -0,0 +1,26 @@
+package org.cloudname.fire;
+
+/**
+ * Listener for the output of a job as it is written, for following
+ * a job while it runs.  See {@link JobRunner#runJobAsync(Job, String,
+ * OutputListener)}.
+ */
+public interface OutputListener {
+    /**
+     * The output streams of a job.
+     */
+    enum Stream {
+        STDOUT, STDERR
+    }
+
+    /**
+     * Called for every line the job writes.  Called on the thread
+     * reading the output, so it should return quickly.  Lines from
+     * the two streams may arrive at the same time.
+     *
+     * @param job the job which wrote the line.
+     * @param stream the stream the line was written to.
+     * @param line the line without the line terminator.
+     */
+    void onLine(Job job, Stream stream, String line);
+}
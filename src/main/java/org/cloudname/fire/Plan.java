@@ -0,0 +1,117 @@
+package org.cloudname.fire;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A plan for starting or stopping many jobs.  The jobs are grouped
+ * into waves which are run one after the other.  The jobs within a
+ * wave do not depend on each other and are run concurrently, see
+ * {@link PlanRunner}.  In JSON:
+ *
+ * <pre>
+ *   {
+ *     "maxConcurrent" : 8,
+ *     "waveTimeoutSeconds" : 300,
+ *     "continueOnFailure" : false,
+ *     "waves" : [
+ *       [ { "runtimeDirectory" : "...", "packageCoordinate" : "...", "params" : [] }, ... ],
+ *       ...
+ *     ]
+ *   }
+ * </pre>
+ *
+ * Everything but the waves is optional.
+ */
+public final class Plan {
+    public static final int DEFAULT_MAX_CONCURRENT = 8;
+    public static final int DEFAULT_WAVE_TIMEOUT_SECONDS = 300;
+
+    private final List<List<Job>> waves;
+    private final int maxConcurrent;
+    private final int waveTimeoutSeconds;
+    private final boolean continueOnFailure;
+
+    /**
+     * @param waves the jobs, one list per wave in the order the waves
+     *   are started.
+     * @param maxConcurrent the maximum number of jobs running at once,
+     *   or {@code null} for {@link #DEFAULT_MAX_CONCURRENT}.
+     * @param waveTimeoutSeconds how long a wave may take, or {@code
+     *   null} for {@link #DEFAULT_WAVE_TIMEOUT_SECONDS}.
+     * @param continueOnFailure whether to go on with the next wave
+     *   when a job fails, or {@code null} for {@code false}.
+     */
+    @JsonCreator
+    public Plan(@JsonProperty("waves") List<List<Job>> waves,
+                @JsonProperty("maxConcurrent") Integer maxConcurrent,
+                @JsonProperty("waveTimeoutSeconds") Integer waveTimeoutSeconds,
+                @JsonProperty("continueOnFailure") Boolean continueOnFailure) {
+        checkNotNull(waves);
+        final List<List<Job>> copy = new ArrayList<>(waves.size());
+        for (final List<Job> wave : waves) {
+            copy.add(Collections.unmodifiableList(new ArrayList<>(checkNotNull(wave))));
+        }
+        this.waves = Collections.unmodifiableList(copy);
+        this.maxConcurrent = (maxConcurrent == null) ? DEFAULT_MAX_CONCURRENT : maxConcurrent;
+        this.waveTimeoutSeconds = (waveTimeoutSeconds == null) ? DEFAULT_WAVE_TIMEOUT_SECONDS : waveTimeoutSeconds;
+        this.continueOnFailure = (continueOnFailure == null) ? false : continueOnFailure;
+        checkArgument(this.maxConcurrent > 0, "maxConcurrent must be positive");
+        checkArgument(this.waveTimeoutSeconds > 0, "waveTimeoutSeconds must be positive");
+    }
+
+    public List<List<Job>> getWaves() {
+        return waves;
+    }
+
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    public int getWaveTimeoutSeconds() {
+        return waveTimeoutSeconds;
+    }
+
+    public boolean isContinueOnFailure() {
+        return continueOnFailure;
+    }
+
+    /**
+     * Parse a JSON blob and return a Plan instance.
+     */
+    public static Plan parse(String json) throws IOException {
+        checkNotNull(json);
+        return new ObjectMapper().readValue(json, Plan.class);
+    }
+
+    /**
+     * @return Plan instance based on JSON read from file.
+     */
+    public static Plan fromFile(File jsonFile) throws IOException {
+        return new ObjectMapper().readValue(jsonFile, Plan.class);
+    }
+
+    /**
+     * Transform this instance to a JSON blob.
+     */
+    public String toJson() {
+        try {
+            final ObjectMapper mapper = new ObjectMapper();
+            mapper.enable(SerializationFeature.INDENT_OUTPUT);
+            return mapper.writeValueAsString(this);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
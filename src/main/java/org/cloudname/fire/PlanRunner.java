@@ -0,0 +1,156 @@
+package org.cloudname.fire;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Logger;
+
+/**
+ * Runs the jobs of a {@link Plan} wave by wave.  The jobs of a wave
+ * are started with {@link JobRunner#runJobAsync} as fast as the
+ * concurrency cap of the plan allows, so bringing up a host takes
+ * about as long as its slowest wave rather than the sum of its jobs.
+ * A wave starts when every job of the one before it is done.
+ *
+ * <p>A wave which takes longer than the timeout of the plan has its
+ * running jobs cancelled, which kills their processes, and the jobs
+ * not yet started are skipped.  Unless the plan says to continue on
+ * failure, a wave with a job which did not succeed stops the plan and
+ * the jobs of the waves after it are skipped.
+ */
+public final class PlanRunner {
+    private static final Logger log = Logger.getLogger(PlanRunner.class.getName());
+
+    // Runs the completion listener on the thread completing the job
+    private static final Executor INLINE = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private final JobRunner runner;
+
+    /**
+     * @param runner the job runner which runs the jobs.
+     */
+    public PlanRunner(final JobRunner runner) {
+        this.runner = checkNotNull(runner);
+    }
+
+    /**
+     * Run a plan.
+     *
+     * @param plan the plan
+     * @param scriptFile the script to run for each job, such as
+     *   {@link JobRunner#START_SCRIPT}.
+     * @param reverse if {@code true} run the waves last first, as
+     *   when stopping what the plan started.
+     * @return the results, one list per wave with one result per job,
+     *   in the order of the plan whichever order the waves were run in.
+     */
+    public List<List<Result>> run(final Plan plan, final String scriptFile, final boolean reverse)
+        throws InterruptedException
+    {
+        final List<List<Job>> waves = plan.getWaves();
+        final List<List<Result>> results = new ArrayList<>(Collections.<List<Result>>nCopies(waves.size(), null));
+
+        String failure = null;
+        for (int n = 0; n < waves.size(); n++) {
+            final int i = reverse ? waves.size() - 1 - n : n;
+            final List<Job> wave = waves.get(i);
+            if (failure != null) {
+                results.set(i, skipAll(wave, failure));
+                continue;
+            }
+
+            log.info("Running wave " + (i + 1) + " of " + waves.size() + ": " + wave.size() + " jobs");
+            final List<Result> waveResults = runWave(wave, scriptFile, plan);
+            results.set(i, waveResults);
+
+            if (! plan.isContinueOnFailure()) {
+                for (final Result result : waveResults) {
+                    if (result.getStatus() != Result.Status.SUCCESS) {
+                        failure = "Skipped since a job in wave " + (i + 1) + " did not succeed";
+                        break;
+                    }
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Run the jobs of a single wave, at most {@link
+     * Plan#getMaxConcurrent} at a time.
+     */
+    private List<Result> runWave(final List<Job> wave, final String scriptFile, final Plan plan)
+        throws InterruptedException
+    {
+        final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(plan.getWaveTimeoutSeconds());
+        final String timedOut = "Wave timed out after " + plan.getWaveTimeoutSeconds() + " seconds";
+        final Semaphore slots = new Semaphore(plan.getMaxConcurrent());
+        final List<ListenableFuture<Result>> futures = new ArrayList<>(wave.size());
+        try {
+            for (final Job job : wave) {
+                if (! slots.tryAcquire(remaining(deadline), TimeUnit.MILLISECONDS)) {
+                    break;
+                }
+                final ListenableFuture<Result> future = runner.runJobAsync(job, scriptFile);
+                future.addListener(new Runnable() {
+                    @Override
+                    public void run() {
+                        slots.release();
+                    }
+                }, INLINE);
+                futures.add(future);
+            }
+
+            final Result[] results = new Result[wave.size()];
+            for (int i = 0; i < wave.size(); i++) {
+                if (i >= futures.size()) {
+                    results[i] = Result.makeError(Result.Status.SKIPPED, timedOut);
+                    continue;
+                }
+
+                try {
+                    results[i] = futures.get(i).get(remaining(deadline), TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    futures.get(i).cancel(true);
+                    results[i] = Result.makeError(Result.Status.OTHER, timedOut);
+                } catch (ExecutionException e) {
+                    results[i] = Result.makeError(Result.Status.OTHER,
+                                                  "Got exception running the process: " + e.getCause());
+                }
+            }
+            return Arrays.asList(results);
+        } catch (InterruptedException e) {
+            for (final ListenableFuture<Result> future : futures) {
+                future.cancel(true);
+            }
+            throw e;
+        }
+    }
+
+    private static List<Result> skipAll(final List<Job> wave, final String message) {
+        final List<Result> results = new ArrayList<>(wave.size());
+        for (int i = 0; i < wave.size(); i++) {
+            results.add(Result.makeError(Result.Status.SKIPPED, message));
+        }
+        return results;
+    }
+
+    private static long remaining(final long deadline) {
+        return Math.max(0, deadline - System.currentTimeMillis());
+    }
+}
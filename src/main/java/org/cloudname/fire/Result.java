@@ -1,11 +1,19 @@
 package org.cloudname.fire;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import com.google.common.base.Charsets;
 import com.google.common.base.Objects;
 
+import java.io.File;
+
 /**
  * Class that represents the result of a Job.
  *
+ * <p>The output of the job is either kept in the result, or, when the
+ * job runner writes the output to log files, the result refers to
+ * the files and the output strings are empty.  Either way the result
+ * says how many bytes the job wrote to each stream.
+ *
  * @author borud
  */
 public final class Result {
@@ -14,6 +22,10 @@ public final class Result {
     private final Status status;
     private final String message;
     private final int exitValue;
+    private final File stdoutFile;
+    private final File stderrFile;
+    private final long stdoutBytes;
+    private final long stderrBytes;
 
     public enum Status {
         SUCCESS,
@@ -21,6 +33,7 @@ public final class Result {
         SCRIPT_NOT_EXECUTABLE,
         ERROR_CODE_RETURNED,
         OTHER,
+        SKIPPED,
     }
 
     /**
@@ -37,8 +50,40 @@ public final class Result {
                   final Status status,
                   final String message,
                   final int exitValue) {
+        this(stdout, stderr, null, null,
+             stdout.getBytes(Charsets.UTF_8).length,
+             stderr.getBytes(Charsets.UTF_8).length,
+             status, message, exitValue);
+    }
+
+    /**
+     * Result from running the process.
+     *
+     * @param stdout the output on stdout kept from the process
+     * @param stderr the output on stderr kept from the process
+     * @param stdoutFile the file stdout was written to, or {@code null}
+     * @param stderrFile the file stderr was written to, or {@code null}
+     * @param stdoutBytes the number of bytes written to stdout
+     * @param stderrBytes the number of bytes written to stderr
+     * @param status enum that indicates status
+     * @param message human readable message to indicate what went wrong (UI usable)
+     * @return exitValue the exit value of the process
+     */
+    public Result(final String stdout,
+                  final String stderr,
+                  final File stdoutFile,
+                  final File stderrFile,
+                  final long stdoutBytes,
+                  final long stderrBytes,
+                  final Status status,
+                  final String message,
+                  final int exitValue) {
         this.stdout = checkNotNull(stdout);
         this.stderr = checkNotNull(stderr);
+        this.stdoutFile = stdoutFile;
+        this.stderrFile = stderrFile;
+        this.stdoutBytes = stdoutBytes;
+        this.stderrBytes = stderrBytes;
         this.status = checkNotNull(status);
         this.message = checkNotNull(message);
         this.exitValue = exitValue;
@@ -56,11 +101,72 @@ public final class Result {
         return new Result("", "", checkNotNull(status), checkNotNull(message), 0);
     }
 
+    public String getStdout() {
+        return stdout;
+    }
+
+    public String getStderr() {
+        return stderr;
+    }
+
+    /**
+     * @return the file stdout was written to, or {@code null} if the
+     *   output was kept in the result.
+     */
+    public File getStdoutFile() {
+        return stdoutFile;
+    }
+
+    /**
+     * @return the file stderr was written to, or {@code null} if the
+     *   output was kept in the result.
+     */
+    public File getStderrFile() {
+        return stderrFile;
+    }
+
+    /**
+     * @return the number of bytes the job wrote to stdout.
+     */
+    public long getStdoutBytes() {
+        return stdoutBytes;
+    }
+
+    /**
+     * @return the number of bytes the job wrote to stderr.
+     */
+    public long getStderrBytes() {
+        return stderrBytes;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public int getExitValue() {
+        return exitValue;
+    }
+
     @Override
     public String toString() {
-        return Objects.toStringHelper(this)
-            .add("stdout", stdout)
-            .add("stderr", stderr)
+        final Objects.ToStringHelper helper = Objects.toStringHelper(this);
+        if (stdoutFile == null) {
+            helper.add("stdout", stdout);
+        } else {
+            helper.add("stdoutFile", stdoutFile);
+        }
+        if (stderrFile == null) {
+            helper.add("stderr", stderr);
+        } else {
+            helper.add("stderrFile", stderrFile);
+        }
+        return helper
+            .add("stdoutBytes", stdoutBytes)
+            .add("stderrBytes", stderrBytes)
             .add("status", status)
             .add("message", message)
             .add("exitValue", exitValue)
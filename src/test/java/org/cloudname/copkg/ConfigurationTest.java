@@ -3,6 +3,7 @@ package org.cloudname.copkg;
 import com.google.common.testing.EqualsTester;
 
 import java.io.File;
+import java.util.Arrays;
 
 import org.junit.Test;
 import static org.junit.Assert.*;
@@ -51,6 +52,10 @@ public class ConfigurationTest {
             + coordinate.getFilename();
 
         assertEquals(expected, config.downloadFilenameForCoordinate(coordinate));
+        assertEquals(expected + Configuration.DOWNLOAD_STATE_SUFFIX,
+                     config.downloadStateFilenameForCoordinate(coordinate));
+        assertEquals(expected + Configuration.LOCK_SUFFIX,
+                     config.lockFilenameForCoordinate(coordinate));
     }
 
     @Test
@@ -79,6 +84,27 @@ public class ConfigurationTest {
         // TODO(borud): add missing unit test for fromFile() method.
     }
 
+    /**
+     * Eager patterns turn on lazy install and survive a round trip
+     * through JSON.
+     */
+    @Test
+    public void testEagerPatterns() throws Exception {
+        assertFalse(config.isLazyInstall());
+
+        final Configuration lazy = new Configuration(packageDir, baseUrl, username, password, runtimeDir);
+        lazy.setEagerPatterns(Arrays.asList("lib/*.jar", "bin/**"));
+        assertTrue(lazy.isLazyInstall());
+
+        final Configuration parsed = Configuration.fromJson(lazy.toJson());
+        assertEquals(Arrays.asList("lib/*.jar", "bin/**"), parsed.getEagerPatterns());
+        assertTrue(parsed.isLazyInstall());
+
+        assertEquals(packageDir + File.separatorChar + Configuration.LAZY_DIR
+                     + File.separatorChar + coordinate.getPathFragment() + Configuration.LAZY_INDEX_SUFFIX,
+                     config.lazyIndexFilenameForCoordinate(coordinate));
+    }
+
     @Test
     public void testEquals() throws Exception {
         // I'm not sure of the quality of this test.  It should have a
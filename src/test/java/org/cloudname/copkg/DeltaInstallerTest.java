@@ -0,0 +1,278 @@
+package org.cloudname.copkg;
+
+import org.cloudname.copkg.util.ContentStore;
+import org.cloudname.copkg.util.Manifest;
+import org.cloudname.copkg.util.Unzip;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the DeltaInstaller class.  Byte ranges are served
+ * from a local ZIP file rather than over HTTP.
+ */
+public class DeltaInstallerTest {
+    private static final long TIME = 1262304000000L;
+
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    private static void addEntry(ZipArchiveOutputStream out, String name, int mode, byte[] data) throws Exception {
+        ZipArchiveEntry entry = new ZipArchiveEntry(name);
+        entry.setTime(TIME);
+        entry.setUnixMode(mode);
+        out.putArchiveEntry(entry);
+        out.write(data);
+        out.closeArchiveEntry();
+    }
+
+    private static byte[] randomBytes(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    /**
+     * Make a package with one big jar which is the same in both
+     * versions, a start script, a file which changes and a manifest.
+     */
+    private File makePackage(String version) throws Exception {
+        File zip = testFolder.newFile("artifact-" + version + "-copkg.zip");
+        ZipArchiveOutputStream out = new ZipArchiveOutputStream(zip);
+        addEntry(out, "lib/", 040755, new byte[0]);
+        addEntry(out, "lib/big.jar", 0100644, randomBytes(256 * 1024, 42));
+        addEntry(out, "bin/start.sh", 0100755, "#!/bin/sh\n".getBytes("UTF-8"));
+        addEntry(out, "etc/version.txt", 0100644, ("version " + version + "\n").getBytes("UTF-8"));
+        out.close();
+        Manifest.addTo(zip);
+        return zip;
+    }
+
+    /**
+     * Install a new version based on an old one and make sure we get
+     * the same result as unpacking the new version, without fetching
+     * the unchanged jar.
+     */
+    @Test
+    public void testDeltaInstall() throws Exception {
+        final File oldZip = makePackage("1.4.2");
+        final File newZip = makePackage("1.4.3");
+        final File baseDir = testFolder.newFolder("1.4.2");
+        Unzip.unzip(oldZip, baseDir);
+
+        final File targetDir = new File(testFolder.getRoot(), "1.4.3");
+        final File scratchFile = new File(testFolder.getRoot(), "scratch");
+        final long[] fetched = new long[1];
+
+        DeltaInstaller installer = new DeltaInstaller(null, "http://localhost/x.zip", baseDir, scratchFile, targetDir) {
+            @Override
+            void fetch(long first, long last) throws Exception {
+                ByteBuffer buf = ByteBuffer.allocate((int) (last - first + 1));
+                FileChannel from = new RandomAccessFile(newZip, "r").getChannel();
+                FileChannel to = new RandomAccessFile(scratchFile, "rw").getChannel();
+                try {
+                    from.read(buf, first);
+                    buf.flip();
+                    to.write(buf, first);
+                } finally {
+                    from.close();
+                    to.close();
+                }
+                fetched[0] += last - first + 1;
+            }
+        };
+
+        RandomAccessFile file = new RandomAccessFile(scratchFile, "rw");
+        try {
+            file.setLength(newZip.length());
+            assertTrue(installer.installFrom(file.getChannel(), newZip.length()));
+        } finally {
+            file.close();
+        }
+
+        assertTrue("Fetched " + fetched[0] + " bytes", fetched[0] < 128 * 1024);
+        assertEquals("version 1.4.3\n", Files.toString(new File(targetDir, "etc/version.txt"), Charsets.UTF_8));
+        assertTrue(Files.equal(new File(baseDir, "lib/big.jar"), new File(targetDir, "lib/big.jar")));
+        assertTrue(new File(targetDir, "bin/start.sh").canExecute());
+        assertEquals(TIME, new File(targetDir, "etc/version.txt").lastModified());
+        assertTrue(new PackageVerifier(1).verify(targetDir).isOk());
+    }
+
+    /**
+     * A file of the installed version with the right size and CRC32
+     * but the wrong content must not make it into the new version.
+     */
+    @Test
+    public void testForgedCrc() throws Exception {
+        final File oldZip = makePackage("1.4.2");
+        final File newZip = makePackage("1.4.3");
+        final File baseDir = testFolder.newFolder("1.4.2");
+        Unzip.unzip(oldZip, baseDir);
+
+        final File jar = new File(baseDir, "lib/big.jar");
+        final byte[] data = Files.toByteArray(jar);
+        final long crc = crc(data);
+        forgeSameCrc(data, 1000);
+        assertEquals(crc, crc(data));
+        Files.write(data, jar);
+
+        final File targetDir = new File(testFolder.getRoot(), "1.4.3");
+        final File scratchFile = new File(testFolder.getRoot(), "scratch");
+        DeltaInstaller installer = localInstaller(newZip, baseDir, scratchFile, targetDir);
+
+        RandomAccessFile file = new RandomAccessFile(scratchFile, "rw");
+        try {
+            file.setLength(newZip.length());
+            installer.installFrom(file.getChannel(), newZip.length());
+            fail("Forged file was accepted");
+        } catch (IOException e) {
+            // Expected
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * In dedup install mode files are linked from the content store,
+     * not from an installed version which was not installed in dedup
+     * mode, so the versions do not share writable files.
+     */
+    @Test
+    public void testDedupFromPlainBase() throws Exception {
+        final File oldZip = makePackage("1.4.2");
+        final File newZip = makePackage("1.4.3");
+        final File baseDir = testFolder.newFolder("1.4.2");
+        Unzip.unzip(oldZip, baseDir);
+
+        final File targetDir = new File(testFolder.getRoot(), "1.4.3");
+        final File scratchFile = new File(testFolder.getRoot(), "scratch");
+        DeltaInstaller installer = localInstaller(newZip, baseDir, scratchFile, targetDir)
+            .setContentStore(new ContentStore(testFolder.newFolder("store")));
+
+        RandomAccessFile file = new RandomAccessFile(scratchFile, "rw");
+        try {
+            file.setLength(newZip.length());
+            assertTrue(installer.installFrom(file.getChannel(), newZip.length()));
+        } finally {
+            file.close();
+        }
+
+        final File baseJar = new File(baseDir, "lib/big.jar");
+        final File targetJar = new File(targetDir, "lib/big.jar");
+        assertTrue(Files.equal(baseJar, targetJar));
+        assertFalse(java.nio.file.Files.isSameFile(baseJar.toPath(), targetJar.toPath()));
+        assertTrue(new PackageVerifier(1).verify(targetDir).isOk());
+    }
+
+    /**
+     * @return an installer which fetches byte ranges from a local
+     *   ZIP file.
+     */
+    private static DeltaInstaller localInstaller(final File zip, File baseDir, final File scratchFile, File targetDir) {
+        return new DeltaInstaller(null, "http://localhost/x.zip", baseDir, scratchFile, targetDir) {
+            @Override
+            void fetch(long first, long last) throws Exception {
+                ByteBuffer buf = ByteBuffer.allocate((int) (last - first + 1));
+                FileChannel from = new RandomAccessFile(zip, "r").getChannel();
+                FileChannel to = new RandomAccessFile(scratchFile, "rw").getChannel();
+                try {
+                    from.read(buf, first);
+                    buf.flip();
+                    to.write(buf, first);
+                } finally {
+                    from.close();
+                    to.close();
+                }
+            }
+        };
+    }
+
+    private static long crc(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return crc.getValue();
+    }
+
+    /**
+     * Change the five bytes at the offset without changing the CRC32
+     * of the data.  For data of a given length the CRC32 of {@code a
+     * xor d} is the CRC32 of {@code a} xor a linear function of
+     * {@code d}, so we look for a {@code d} in the kernel of that
+     * function among the 40 bits at the offset.
+     */
+    private static void forgeSameCrc(byte[] data, int offset) {
+        final long base = crc(data);
+        final long[] columns = new long[40];
+        for (int bit = 0; bit < 40; bit++) {
+            data[offset + bit / 8] ^= (byte) (1 << (bit % 8));
+            columns[bit] = crc(data) ^ base;
+            data[offset + bit / 8] ^= (byte) (1 << (bit % 8));
+        }
+
+        // Gaussian elimination over GF(2), tracking which bits make
+        // up each reduced column.  A column reduced to zero is a
+        // combination of bit flips which leaves the CRC32 unchanged.
+        final long[] combos = new long[40];
+        for (int bit = 0; bit < 40; bit++) {
+            combos[bit] = 1L << bit;
+        }
+        int row = 0;
+        for (int pivot = 0; pivot < 32 && row < 40; pivot++) {
+            int found = -1;
+            for (int c = row; c < 40; c++) {
+                if ((columns[c] >>> pivot & 1) != 0) {
+                    found = c;
+                    break;
+                }
+            }
+            if (found < 0) {
+                continue;
+            }
+            long t = columns[found]; columns[found] = columns[row]; columns[row] = t;
+            t = combos[found]; combos[found] = combos[row]; combos[row] = t;
+            for (int c = 0; c < 40; c++) {
+                if (c != row && (columns[c] >>> pivot & 1) != 0) {
+                    columns[c] ^= columns[row];
+                    combos[c] ^= combos[row];
+                }
+            }
+            row++;
+        }
+
+        for (int c = 0; c < 40; c++) {
+            if (columns[c] == 0) {
+                for (int bit = 0; bit < 40; bit++) {
+                    if ((combos[c] >>> bit & 1) != 0) {
+                        data[offset + bit / 8] ^= (byte) (1 << (bit % 8));
+                    }
+                }
+                return;
+            }
+        }
+        throw new AssertionError("No CRC32 collision found");
+    }
+
+    @Test
+    public void testCompareVersions() throws Exception {
+        assertTrue(DeltaInstaller.compareVersions("1.4.2", "1.4.3") < 0);
+        assertTrue(DeltaInstaller.compareVersions("1.10", "1.9") > 0);
+        assertTrue(DeltaInstaller.compareVersions("1.4", "1.4.1") < 0);
+        assertEquals(0, DeltaInstaller.compareVersions("2.0.0", "2.0.0"));
+    }
+}
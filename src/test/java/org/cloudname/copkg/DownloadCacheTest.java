@@ -0,0 +1,125 @@
+package org.cloudname.copkg;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import java.io.File;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the DownloadCache class.
+ */
+public class DownloadCacheTest {
+    private static final String URL = "http://localhost/com/example/artifact/1.2.3/artifact-1.2.3-copkg.zip";
+    private static final String OTHER_URL = "http://localhost/com/example/artifact/2.3.4/artifact-2.3.4-copkg.zip";
+    private static final PackageCoordinate COORDINATE = PackageCoordinate.parse("com.example:artifact:1.2.3");
+    private static final PackageCoordinate OTHER_COORDINATE = PackageCoordinate.parse("com.example:artifact:2.3.4");
+
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    private File makeFile(String name, String contents) throws Exception {
+        File file = testFolder.newFile(name);
+        Files.write(contents, file, Charsets.UTF_8);
+        return file;
+    }
+
+    /**
+     * A cached file can be looked up and copied out again.
+     */
+    @Test
+    public void testPutAndLookup() throws Exception {
+        File cacheDir = testFolder.newFolder("cache");
+        DownloadCache cache = new DownloadCache(cacheDir, 1024);
+        File file = makeFile("a.zip", "some package");
+
+        assertNull(cache.lookup(COORDINATE, URL));
+        assertNotNull(cache.put(COORDINATE, new DownloadState(URL, "\"etag\"", null, file.length()), file));
+
+        DownloadCache.Entry entry = cache.lookup(COORDINATE, URL);
+        assertNotNull(entry);
+        assertEquals("\"etag\"", entry.getEtag());
+        assertEquals(file.length(), entry.getSize());
+        assertEquals(Files.hash(file, Hashing.sha256()).toString(), entry.getSha256());
+
+        // The entry is tied to the URL we downloaded from
+        assertNull(cache.lookup(COORDINATE, OTHER_URL));
+
+        File copy = new File(testFolder.getRoot(), "copy.zip");
+        assertTrue(cache.copyTo(entry, copy));
+        assertTrue(Files.equal(file, copy));
+    }
+
+    /**
+     * Files we have no validators for cannot be revalidated and are
+     * not cached.
+     */
+    @Test
+    public void testNoValidators() throws Exception {
+        DownloadCache cache = new DownloadCache(testFolder.newFolder("cache"), 1024);
+        File file = makeFile("a.zip", "some package");
+
+        assertNull(cache.put(COORDINATE, new DownloadState(URL, null, null, file.length()), file));
+        assertNull(cache.lookup(COORDINATE, URL));
+    }
+
+    /**
+     * The same file under two coordinates is only stored once.
+     */
+    @Test
+    public void testSameContentStoredOnce() throws Exception {
+        DownloadCache cache = new DownloadCache(testFolder.newFolder("cache"), 1024);
+        File a = makeFile("a.zip", "some package");
+        File b = makeFile("b.zip", "some package");
+
+        cache.put(COORDINATE, new DownloadState(URL, "\"a\"", null, a.length()), a);
+        cache.put(OTHER_COORDINATE, new DownloadState(OTHER_URL, "\"b\"", null, b.length()), b);
+
+        assertNotNull(cache.lookup(COORDINATE, URL));
+        assertNotNull(cache.lookup(OTHER_COORDINATE, OTHER_URL));
+        assertEquals(a.length(), cache.size());
+    }
+
+    /**
+     * When the cache is too big the least recently used blobs go
+     * first, and their entries disappear.
+     */
+    @Test
+    public void testEvictLeastRecentlyUsed() throws Exception {
+        File cacheDir = testFolder.newFolder("cache");
+        DownloadCache cache = new DownloadCache(cacheDir, 1024);
+        File a = makeFile("a.zip", "first package");
+        File b = makeFile("b.zip", "second package");
+
+        cache.put(COORDINATE, new DownloadState(URL, "\"a\"", null, a.length()), a);
+        cache.put(OTHER_COORDINATE, new DownloadState(OTHER_URL, "\"b\"", null, b.length()), b);
+
+        // Make the first package the least recently used
+        String sha256 = cache.lookup(COORDINATE, URL).getSha256();
+        assertTrue(new File(new File(cacheDir, "blobs"), sha256).setLastModified(System.currentTimeMillis() - 60000));
+
+        DownloadCache smallCache = new DownloadCache(cacheDir, b.length());
+        assertEquals(a.length(), smallCache.evict());
+        assertEquals(b.length(), smallCache.size());
+        assertNull(smallCache.lookup(COORDINATE, URL));
+        assertNotNull(smallCache.lookup(OTHER_COORDINATE, OTHER_URL));
+    }
+
+    /**
+     * A cache of size 0 is disabled.
+     */
+    @Test
+    public void testDisabled() throws Exception {
+        DownloadCache cache = new DownloadCache(testFolder.newFolder("cache"), 0);
+        File file = makeFile("a.zip", "some package");
+
+        assertFalse(cache.isEnabled());
+        assertNull(cache.put(COORDINATE, new DownloadState(URL, "\"etag\"", null, file.length()), file));
+        assertNull(cache.lookup(COORDINATE, URL));
+    }
+}
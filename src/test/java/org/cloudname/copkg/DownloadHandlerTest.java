@@ -0,0 +1,112 @@
+package org.cloudname.copkg;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.ning.http.client.FluentCaseInsensitiveStringsMap;
+import com.ning.http.client.HttpResponseBodyPart;
+import com.ning.http.client.HttpResponseHeaders;
+import com.ning.http.client.HttpResponseStatus;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for DownloadHandler.
+ */
+public class DownloadHandlerTest {
+    @Rule public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void testParseContentRange() throws Exception {
+        long[] range = DownloadHandler.parseContentRange("bytes 100-199/1000");
+        assertEquals(100L, range[0]);
+        assertEquals(199L, range[1]);
+        assertEquals(1000L, range[2]);
+
+        // Unsatisfiable range
+        range = DownloadHandler.parseContentRange("bytes */1000");
+        assertEquals(-1L, range[0]);
+        assertEquals(-1L, range[1]);
+        assertEquals(1000L, range[2]);
+
+        // Unknown total length
+        range = DownloadHandler.parseContentRange("bytes 0-99/*");
+        assertEquals(0L, range[0]);
+        assertEquals(-1L, range[2]);
+    }
+
+    @Test
+    public void testParseBogusContentRange() throws Exception {
+        assertNull(DownloadHandler.parseContentRange(null));
+        assertNull(DownloadHandler.parseContentRange("items 0-1/2"));
+        assertNull(DownloadHandler.parseContentRange("bytes 0-1"));
+        assertNull(DownloadHandler.parseContentRange("bytes a-b/c"));
+    }
+
+    /**
+     * A server may answer a resumed download with less than the rest
+     * of the file.  Getting all of that shorter range must not count
+     * as having the whole file.
+     */
+    @Test
+    public void testShortContentRange() throws Exception {
+        final File file = temp.newFile("download");
+        Files.write("0123", file, Charsets.UTF_8);
+
+        DownloadHandler handler = new DownloadHandler("http://example.com/p.zip", file, null, 4);
+        handler.onStatusReceived(status(206));
+        handler.onHeadersReceived(headers("Content-Range", "bytes 4-5/10"));
+        handler.onBodyPartReceived(bodyPart("45"));
+        handler.onCompleted();
+
+        assertFalse(handler.isComplete());
+        assertEquals(10L, handler.getExpectedLength());
+        assertEquals("012345", Files.toString(file, Charsets.UTF_8));
+
+        // The rest of the file completes it
+        handler = new DownloadHandler("http://example.com/p.zip", file, null, 6);
+        handler.onStatusReceived(status(206));
+        handler.onHeadersReceived(headers("Content-Range", "bytes 6-9/10"));
+        handler.onBodyPartReceived(bodyPart("6789"));
+        handler.onCompleted();
+
+        assertTrue(handler.isComplete());
+        assertEquals("0123456789", Files.toString(file, Charsets.UTF_8));
+    }
+
+    private static HttpResponseStatus status(final int code) {
+        return new HttpResponseStatus(null, null) {
+            @Override public int getStatusCode() { return code; }
+            @Override public String getStatusText() { return ""; }
+            @Override public String getProtocolName() { return "HTTP"; }
+            @Override public int getProtocolMajorVersion() { return 1; }
+            @Override public int getProtocolMinorVersion() { return 1; }
+            @Override public String getProtocolText() { return "HTTP/1.1"; }
+        };
+    }
+
+    private static HttpResponseHeaders headers(final String name, final String value) {
+        final FluentCaseInsensitiveStringsMap map = new FluentCaseInsensitiveStringsMap().add(name, value);
+        return new HttpResponseHeaders(null, null, null) {
+            @Override public FluentCaseInsensitiveStringsMap getHeaders() { return map; }
+        };
+    }
+
+    private static HttpResponseBodyPart bodyPart(final String text) {
+        final byte[] bytes = text.getBytes(Charsets.UTF_8);
+        return new HttpResponseBodyPart(null, null) {
+            @Override public byte[] getBodyPartBytes() { return bytes; }
+            @Override public int writeTo(OutputStream out) { return 0; }
+            @Override public ByteBuffer getBodyByteBuffer() { return ByteBuffer.wrap(bytes); }
+            @Override public boolean isLast() { return false; }
+            @Override public void markUnderlyingConnectionAsClosed() {}
+            @Override public boolean closeUnderlyingConnection() { return false; }
+        };
+    }
+}
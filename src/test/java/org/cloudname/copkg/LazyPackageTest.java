@@ -0,0 +1,71 @@
+package org.cloudname.copkg;
+
+import org.cloudname.copkg.util.Manifest;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Predicate;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the LazyPackage class.
+ */
+public class LazyPackageTest {
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    /**
+     * {@code *} stays within a directory and {@code **} does not.
+     * The scripts and the manifest are always eager.
+     */
+    @Test
+    public void testMatcher() throws Exception {
+        Predicate<String> eager = LazyPackage.eagerMatcher(Arrays.asList("lib/*.jar"));
+        assertTrue(eager.apply("lib/a.jar"));
+        assertFalse(eager.apply("lib/ext/b.jar"));
+        assertFalse(eager.apply("models/big.bin"));
+        assertTrue(eager.apply("script.d/start"));
+        assertTrue(eager.apply("script.d/hooks/pre"));
+        assertTrue(eager.apply(Manifest.NAME));
+
+        Predicate<String> models = LazyPackage.matcher(Collections.singletonList("models/**"));
+        assertTrue(models.apply("models/en/big.bin"));
+        assertFalse(models.apply("lib/a.jar"));
+    }
+
+    /**
+     * The archive is kept and the pending files recorded until none
+     * are left.
+     */
+    @Test
+    public void testKeepAndMaterialize() throws Exception {
+        File zip = testFolder.newFile("package.zip");
+        Files.write("not really a zip", zip, Charsets.UTF_8);
+        File archive = new File(testFolder.getRoot(), "lazy/com/example/1.0.zip");
+        File index = new File(testFolder.getRoot(), "lazy/com/example/1.0.pending");
+        LazyPackage lazy = new LazyPackage(archive, index);
+        assertTrue(lazy.readPending().isEmpty());
+
+        lazy.keep(zip, Arrays.asList("models/b", "models/a"));
+        assertTrue(zip.delete());
+        assertEquals("not really a zip", Files.toString(archive, Charsets.UTF_8));
+        assertEquals(Arrays.asList("models/a", "models/b"), Arrays.asList(lazy.readPending().toArray()));
+
+        lazy.writePending(Arrays.asList("models/b"));
+        assertEquals(1, lazy.readPending().size());
+        assertTrue(archive.exists());
+
+        lazy.writePending(Collections.<String>emptyList());
+        assertTrue(lazy.readPending().isEmpty());
+        assertFalse(archive.exists());
+        assertFalse(index.exists());
+    }
+}
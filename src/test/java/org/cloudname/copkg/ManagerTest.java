@@ -1,6 +1,16 @@
 package org.cloudname.copkg;
 
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.io.Files;
+
+import org.cloudname.copkg.util.ContentStore;
+
 import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 import org.junit.AfterClass;
@@ -57,6 +67,7 @@ public class ManagerTest {
         File downloadedFile = new File(config.downloadFilenameForCoordinate(coordinate));
         assertTrue("File did not exist", downloadedFile.exists());
         assertTrue("File had zero length", downloadedFile.length() != 0L);
+        m.close();
     }
 
     /**
@@ -71,6 +82,79 @@ public class ManagerTest {
 
         File downloadedFile = new File(config.downloadFilenameForCoordinate(coordinate));
         assertFalse("File existed", downloadedFile.exists());
+        m.close();
+    }
+
+    /**
+     * A partial download whose validator no longer matches must be
+     * replaced by the full file rather than appended to.
+     */
+    @Test
+    public void testDownloadReplacesStalePartialFile() throws Exception {
+        Manager m = new Manager(config);
+        PackageCoordinate coordinate = PackageCoordinate.parse("com.example:artifact:2.3.4");
+        File downloadedFile = new File(config.downloadFilenameForCoordinate(coordinate));
+        File stateFile = new File(config.downloadStateFilenameForCoordinate(coordinate));
+        File original = new File("src/test/resources/staticroot/"
+                                 + coordinate.getUrlPathFragment() + "/" + coordinate.getFilename());
+
+        downloadedFile.getParentFile().mkdirs();
+        Files.write("junk", downloadedFile, Charsets.UTF_8);
+        new DownloadState(coordinate.toUrl(config.getPackageBaseUrl()), "\"bogus\"", null, original.length())
+            .save(stateFile);
+
+        assertEquals(200, m.download(coordinate));
+        assertEquals(original.length(), downloadedFile.length());
+        assertFalse("State file was left behind", stateFile.exists());
+        m.close();
+    }
+
+    /**
+     * Download a file in several segments.  If the server does not
+     * support ranges we should still end up with the whole file.
+     */
+    @Test
+    public void testSegmentedDownload() throws Exception {
+        Configuration segmentedConfig = new Configuration(testFolder.newFolder("segmented").getAbsolutePath(),
+                                                          config.getPackageBaseUrl(), "foo", "bar", "baz");
+        segmentedConfig.setDownloadSegments(4);
+        segmentedConfig.setMinSegmentSize(16);
+
+        Manager m = new Manager(segmentedConfig);
+        PackageCoordinate coordinate = PackageCoordinate.parse("com.example:artifact:1.2.3");
+        File original = new File("src/test/resources/staticroot/"
+                                 + coordinate.getUrlPathFragment() + "/" + coordinate.getFilename());
+
+        assertEquals(200, m.download(coordinate));
+        File downloadedFile = new File(segmentedConfig.downloadFilenameForCoordinate(coordinate));
+        assertTrue(Files.equal(original, downloadedFile));
+        m.close();
+    }
+
+    /**
+     * Downloading a package again should revalidate the cached copy
+     * and reuse it, even if the download file is gone.
+     */
+    @Test
+    public void testCachedDownload() throws Exception {
+        Configuration cacheConfig = new Configuration(testFolder.newFolder("cached").getAbsolutePath(),
+                                                      config.getPackageBaseUrl(), "foo", "bar", "baz");
+        Manager m = new Manager(cacheConfig);
+        PackageCoordinate coordinate = PackageCoordinate.parse("com.example:artifact:1.2.3");
+        String url = coordinate.toUrl(cacheConfig.getPackageBaseUrl());
+        File original = new File("src/test/resources/staticroot/"
+                                 + coordinate.getUrlPathFragment() + "/" + coordinate.getFilename());
+        File downloadedFile = new File(cacheConfig.downloadFilenameForCoordinate(coordinate));
+
+        assertEquals(200, m.download(coordinate));
+        DownloadCache cache = new DownloadCache(new File(cacheConfig.getDownloadCacheDir()),
+                                                cacheConfig.getDownloadCacheSize());
+        assertNotNull(cache.lookup(coordinate, url));
+
+        assertTrue(downloadedFile.delete());
+        assertEquals(200, m.download(coordinate));
+        assertTrue(Files.equal(original, downloadedFile));
+        m.close();
     }
 
     @Test
@@ -86,9 +170,266 @@ public class ManagerTest {
         assertTrue(new File(installDir + File.separatorChar + "lib").exists());
         assertTrue(new File(installDir + File.separatorChar + "script.d").exists());
 
+        InstalledPackage installed = m.getInstalled(coordinate);
+        assertNotNull(installed);
+        assertTrue(installed.getFileCount() > 0);
+
         // Now uninstall the package
         m.uninstall(coordinate);
         assertFalse(new File(installDir).exists());
+        assertNull(m.getInstalled(coordinate));
+
+        // Closing waits for the reaper to delete the files
+        m.close();
+        assertEquals(0, m.getPendingReclaimBytes());
+        assertEquals(0, new File(installDir).getParentFile().list().length);
+    }
+
+    /**
+     * A durable install ends up the same as a regular one.
+     */
+    @Test
+    public void testDurableInstall() throws Exception {
+        File packageDir = testFolder.newFolder("durable");
+        Configuration durableConfig = new Configuration(packageDir.getAbsolutePath(), "http://localhost:" + port, "foo", "bar", "baz");
+        durableConfig.setDurableInstall(true);
+
+        PackageCoordinate coordinate = PackageCoordinate.parse("com.example:artifact:1.2.3");
+        Manager m = new Manager(durableConfig);
+        assertEquals(InstallResult.Status.INSTALLED, m.install(coordinate).getStatus());
+        assertTrue(new File(durableConfig.packageDirectoryForCoordinate(coordinate), "script.d").isDirectory());
+        assertNotNull(m.getInstalled(coordinate));
+        m.close();
+    }
+
+    /**
+     * A package whose central directory we cannot read, like that of
+     * a ZIP64 file, still gets into the index.
+     */
+    @Test
+    public void testInstallZip64() throws Exception {
+        File packageDir = testFolder.newFolder("zip64");
+        Configuration zip64Config = new Configuration(packageDir.getAbsolutePath(), "http://localhost:" + port, "foo", "bar", "baz");
+
+        PackageCoordinate coordinate = PackageCoordinate.parse("com.example:zip64:1.0");
+        Manager m = new Manager(zip64Config);
+        assertEquals(InstallResult.Status.INSTALLED, m.install(coordinate).getStatus());
+
+        InstalledPackage installed = m.getInstalled(coordinate);
+        assertNotNull(installed);
+        assertEquals(1, installed.getFileCount());
+        assertEquals(14, installed.getSize());
+        m.close();
+    }
+
+    /**
+     * The index entry of a lazy install counts the archive the files
+     * not yet extracted are kept in, and materializing them updates
+     * it.
+     */
+    @Test
+    public void testMaterializeUpdatesIndex() throws Exception {
+        File packageDir = testFolder.newFolder("lazy");
+        Configuration lazyConfig = new Configuration(packageDir.getAbsolutePath(), "http://localhost:" + port, "foo", "bar", "baz");
+        lazyConfig.setEagerPatterns(Arrays.asList("script.d/**"));
+
+        PackageCoordinate coordinate = PackageCoordinate.parse("com.example:zip64:1.0");
+        Manager m = new Manager(lazyConfig);
+        assertEquals(InstallResult.Status.INSTALLED, m.install(coordinate).getStatus());
+        File archive = new File(lazyConfig.lazyArchiveFilenameForCoordinate(coordinate));
+        assertEquals(archive.length(), m.getInstalled(coordinate).getSize());
+
+        assertEquals(Arrays.asList("lib/file.txt"), m.materialize(coordinate, "lib/**"));
+        assertFalse(archive.exists());
+        assertEquals(14, m.getInstalled(coordinate).getSize());
+        m.close();
     }
 
+    /**
+     * A missing or corrupt index is rebuilt from the package
+     * directory.
+     */
+    @Test
+    public void testRebuildIndex() throws Exception {
+        File packageDir = testFolder.newFolder("rebuild");
+        Configuration rebuildConfig = new Configuration(packageDir.getAbsolutePath(), "http://localhost:" + port, "foo", "bar", "baz");
+        File lib = new File(packageDir, "com/example/indexed/1.0/lib");
+        assertTrue(lib.mkdirs());
+        assertTrue(new File(packageDir, "com/example/indexed/1.0/script.d").mkdirs());
+        Files.write("data", new File(lib, "file"), Charsets.UTF_8);
+
+        Manager m = new Manager(rebuildConfig);
+        List<InstalledPackage> packages = m.list();
+        assertEquals(1, packages.size());
+        assertEquals("com.example:indexed:1.0", packages.get(0).getCoordinate().asString());
+        assertEquals(1, packages.get(0).getFileCount());
+        assertEquals(4, packages.get(0).getSize());
+
+        Files.write("garbage", new File(rebuildConfig.getIndexFilename()), Charsets.UTF_8);
+        assertEquals(packages.get(0).getContentHash(), m.list().get(0).getContentHash());
+        m.close();
+    }
+
+    /**
+     * Packages are evicted least recently used first, and running
+     * packages are left alone.
+     */
+    @Test
+    public void testEvict() throws Exception {
+        File packageDir = testFolder.newFolder("evict");
+        Configuration evictConfig = new Configuration(packageDir.getAbsolutePath(), "http://localhost:" + port, "foo", "bar", "baz");
+        long now = System.currentTimeMillis();
+        for (String version : Arrays.asList("1.0", "2.0", "3.0", "4.0")) {
+            File dir = new File(packageDir, "com/example/evict/" + version);
+            assertTrue(new File(dir, "script.d").mkdirs());
+            Files.write("0123456789", new File(dir, "script.d/start.py"), Charsets.UTF_8);
+            assertTrue(dir.setLastModified(now - 1000000 + (long) (Double.parseDouble(version) * 1000)));
+        }
+
+        // 1.0 is running, 2.0 was started recently
+        PackageUsage usage = new PackageUsage(new File(evictConfig.getUsageDir()));
+        usage.started(PackageCoordinate.parse("com.example:evict:1.0"), "/runtime/a");
+        usage.started(PackageCoordinate.parse("com.example:evict:2.0"), "/runtime/b");
+        usage.stopped(PackageCoordinate.parse("com.example:evict:2.0"), "/runtime/b");
+
+        Manager m = new Manager(evictConfig);
+        assertEquals(4, m.list().size());
+
+        // No budget, no eviction
+        assertTrue(m.evict(true).isEmpty());
+
+        evictConfig.setDiskBudget(20);
+        List<InstalledPackage> wouldEvict = m.evict(true);
+        assertEquals(2, wouldEvict.size());
+        assertEquals("com.example:evict:3.0", wouldEvict.get(0).getCoordinate().asString());
+        assertEquals("com.example:evict:4.0", wouldEvict.get(1).getCoordinate().asString());
+        assertEquals(4, m.list().size());
+
+        assertEquals(2, m.evict(false).size());
+        assertEquals(2, m.list().size());
+        assertTrue(new File(packageDir, "com/example/evict/1.0").exists());
+        assertTrue(new File(packageDir, "com/example/evict/2.0").exists());
+        assertFalse(new File(packageDir, "com/example/evict/3.0").exists());
+        m.close();
+    }
+
+    /**
+     * A blob an install has added to the content store but not yet
+     * linked to looks like garbage, so gc has to wait for installs
+     * using the store.
+     */
+    @Test
+    public void testGcWaitsForInstalls() throws Exception {
+        File packageDir = testFolder.newFolder("gc");
+        Configuration gcConfig = new Configuration(packageDir.getAbsolutePath(), "http://localhost:" + port, "foo", "bar", "baz");
+        final Manager m = new Manager(gcConfig);
+        ContentStore store = new ContentStore(new File(gcConfig.getContentStoreDir()));
+
+        // An install which has added a blob and not yet linked to it
+        PackageLock installLock = PackageLock.acquireShared(new File(gcConfig.getContentStoreLockFilename()));
+        String sha256 = Strings.repeat("ab", 32);
+        File blob = store.newTempFile();
+        Files.write("content", blob, Charsets.UTF_8);
+        store.add(blob, sha256, false, System.currentTimeMillis());
+
+        final AtomicLong freed = new AtomicLong(-1);
+        Thread gc = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    freed.set(m.gc());
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        gc.start();
+        gc.join(500);
+        assertTrue(gc.isAlive());
+
+        File installed = new File(packageDir, "installed");
+        assertTrue(store.link(sha256, false, installed));
+        installLock.close();
+        gc.join(5000);
+        assertFalse(gc.isAlive());
+
+        assertEquals(0L, freed.get());
+        assertTrue(store.link(sha256, false, new File(packageDir, "installed-again")));
+        m.close();
+    }
+
+    /**
+     * Installing a package evicts others once it is in place, going
+     * by the size of its index entry even when that had to be worked
+     * out from the installed files.
+     */
+    @Test
+    public void testEvictOnInstall() throws Exception {
+        File packageDir = testFolder.newFolder("evict-install");
+        Configuration evictConfig = new Configuration(packageDir.getAbsolutePath(), "http://localhost:" + port, "foo", "bar", "baz");
+        File old = new File(packageDir, "com/example/old/1.0");
+        assertTrue(new File(old, "script.d").mkdirs());
+        Files.write("0123456789", new File(old, "script.d/start.py"), Charsets.UTF_8);
+        evictConfig.setDiskBudget(20);
+
+        PackageCoordinate coordinate = PackageCoordinate.parse("com.example:zip64:1.0");
+        Manager m = new Manager(evictConfig);
+        assertEquals(1, m.list().size());
+        assertEquals(InstallResult.Status.INSTALLED, m.install(coordinate).getStatus());
+
+        assertFalse(old.exists());
+        List<InstalledPackage> packages = m.list();
+        assertEquals(1, packages.size());
+        assertEquals(coordinate.asString(), packages.get(0).getCoordinate().asString());
+        m.close();
+    }
+
+    /**
+     * Directories left behind by installs and uninstalls which died
+     * are deleted.
+     */
+    @Test
+    public void testReapStaleDirectories() throws Exception {
+        File artifactDir = new File(config.getPackageDir(), "com/example/stale");
+        File removeDir = new File(artifactDir, "1.0---remove");
+        File unpackDir = new File(artifactDir, "1.0---unpack-1234");
+        File installedDir = new File(artifactDir, "2.0");
+        for (File dir : Arrays.asList(removeDir, unpackDir, new File(installedDir, "script.d"))) {
+            assertTrue(new File(dir, "lib").mkdirs());
+            Files.write("data", new File(dir, "lib/file"), Charsets.UTF_8);
+        }
+
+        Manager m = new Manager(config);
+        m.reapStaleDirectories();
+        m.close();
+
+        assertFalse(removeDir.exists());
+        assertFalse(unpackDir.exists());
+        assertTrue(new File(installedDir, "script.d/lib/file").exists());
+    }
+
+    /**
+     * Install several packages in one go and make sure every
+     * distinct package gets a result, including the ones that fail.
+     */
+    @Test
+    public void testBatchInstall() throws Exception {
+        PackageCoordinate good = PackageCoordinate.parse("com.example:artifact:2.3.4");
+        PackageCoordinate bad = PackageCoordinate.parse("com.example:nonexist:2.3.4");
+        Manager m = new Manager(config);
+
+        List<InstallResult> results = m.install(Arrays.asList(good, bad, good));
+        assertEquals(2, results.size());
+        assertEquals(InstallResult.Status.INSTALLED, results.get(0).getStatus());
+        assertEquals(InstallResult.Status.DOWNLOAD_FAILED, results.get(1).getStatus());
+        assertTrue(new File(config.packageDirectoryForCoordinate(good)).exists());
+
+        // Installing again should be a no-op
+        results = m.install(Arrays.asList(good));
+        assertEquals(InstallResult.Status.ALREADY_INSTALLED, results.get(0).getStatus());
+
+        m.uninstall(good);
+        assertFalse(new File(config.packageDirectoryForCoordinate(good)).exists());
+        m.close();
+    }
 }
@@ -0,0 +1,122 @@
+package org.cloudname.copkg;
+
+import org.cloudname.copkg.util.ZipDirectory;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the PackageIndex class.
+ */
+public class PackageIndexTest {
+    private static final String HASH_A = "0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef";
+    private static final String HASH_B = "fedcba9876543210fedcba9876543210fedcba9876543210fedcba9876543210";
+
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    /**
+     * What we write is what we read, in coordinate order.
+     */
+    @Test
+    public void testWriteAndRead() throws Exception {
+        PackageIndex index = new PackageIndex(new File(testFolder.getRoot(), "index"));
+        assertNull(index.read());
+
+        index.write(Arrays.asList(
+            new InstalledPackage(PackageCoordinate.parse("com.example:b:2.0"), 2000L, 20L, 2, HASH_B),
+            new InstalledPackage(PackageCoordinate.parse("com.example:a:1.0"), 1000L, 10L, 1, HASH_A)));
+
+        List<InstalledPackage> packages = index.read();
+        assertEquals(2, packages.size());
+        InstalledPackage a = packages.get(0);
+        assertEquals("com.example:a:1.0", a.getCoordinate().asString());
+        assertEquals(1000L, a.getInstallTime());
+        assertEquals(10L, a.getSize());
+        assertEquals(1, a.getFileCount());
+        assertEquals(HASH_A, a.getContentHash());
+        assertEquals("com.example:b:2.0", packages.get(1).getCoordinate().asString());
+    }
+
+    /**
+     * A damaged index is reported rather than misread.
+     */
+    @Test
+    public void testCorrupt() throws Exception {
+        File file = new File(testFolder.getRoot(), "index");
+        PackageIndex index = new PackageIndex(file);
+        index.write(Arrays.asList(
+            new InstalledPackage(PackageCoordinate.parse("com.example:a:1.0"), 1000L, 10L, 1, HASH_A)));
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(20);
+            raf.write(raf.read() ^ 0xff);
+        }
+        try {
+            index.read();
+            fail("Expected IOException");
+        } catch (java.io.IOException e) {
+            assertTrue(e.getMessage().contains("Corrupt"));
+        }
+
+        Files.write(new byte[3], file);
+        try {
+            index.read();
+            fail("Expected IOException");
+        } catch (java.io.IOException e) {
+            assertTrue(e.getMessage().contains("Corrupt"));
+        }
+    }
+
+    /**
+     * The content hash worked out from the ZIP file when installing
+     * is the same as the one worked out from the files when
+     * rebuilding the index.
+     */
+    @Test
+    public void testSummarizeMatchesScan() throws Exception {
+        PackageCoordinate coordinate = PackageCoordinate.parse("com.example:a:1.0");
+        File dir = testFolder.newFolder("installed");
+        File zip = new File(testFolder.getRoot(), "a.zip");
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip))) {
+            out.putNextEntry(new ZipEntry("bin/"));
+            for (String name : Arrays.asList("bin/start", "lib/a.jar", "etc/config")) {
+                String contents = "contents of " + name;
+                out.putNextEntry(new ZipEntry(name));
+                out.write(contents.getBytes(Charsets.UTF_8));
+                File file = new File(dir, name);
+                file.getParentFile().mkdirs();
+                Files.write(contents, file, Charsets.UTF_8);
+            }
+        }
+
+        InstalledPackage fromZip;
+        try (FileChannel channel = new RandomAccessFile(zip, "r").getChannel()) {
+            fromZip = PackageIndex.summarize(coordinate, 0L, ZipDirectory.read(channel));
+        }
+        InstalledPackage fromDisk = PackageIndex.scan(coordinate, dir);
+
+        assertEquals(3, fromZip.getFileCount());
+        assertEquals(fromZip.getFileCount(), fromDisk.getFileCount());
+        assertEquals(fromZip.getSize(), fromDisk.getSize());
+        assertEquals(fromZip.getContentHash(), fromDisk.getContentHash());
+
+        // Changing a file changes the hash
+        Files.write("contents of lib/a.jaR", new File(dir, "lib/a.jar"), Charsets.UTF_8);
+        assertFalse(fromZip.getContentHash().equals(PackageIndex.scan(coordinate, dir).getContentHash()));
+    }
+}
@@ -0,0 +1,115 @@
+package org.cloudname.copkg;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the PackageLock class.
+ */
+public class PackageLockTest {
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    /**
+     * A second locker has to wait for the first to release the lock
+     * and is told that it had to wait.
+     */
+    @Test
+    public void testContended() throws Exception {
+        final File lockFile = new File(testFolder.getRoot(), "some/dir/package.lock");
+        final PackageLock first = PackageLock.acquire(lockFile);
+        assertFalse(first.isContended());
+        assertTrue(lockFile.exists());
+
+        final CountDownLatch locked = new CountDownLatch(1);
+        final AtomicBoolean contended = new AtomicBoolean();
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    PackageLock second = PackageLock.acquire(lockFile);
+                    contended.set(second.isContended());
+                    locked.countDown();
+                    second.close();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        t.start();
+
+        assertFalse(locked.await(500, TimeUnit.MILLISECONDS));
+        first.close();
+        assertTrue(locked.await(5, TimeUnit.SECONDS));
+        assertTrue(contended.get());
+        t.join();
+
+        // The lock file stays so later lockers lock the same file
+        assertTrue(lockFile.exists());
+        PackageLock third = PackageLock.acquire(lockFile);
+        assertFalse(third.isContended());
+        third.close();
+    }
+
+    /**
+     * Shared lockers hold the lock together and keep an exclusive
+     * locker out until the last of them releases it.
+     */
+    @Test
+    public void testShared() throws Exception {
+        final File lockFile = new File(testFolder.getRoot(), "store/.lock");
+        final PackageLock first = PackageLock.acquireShared(lockFile);
+        final PackageLock second = PackageLock.acquireShared(lockFile);
+        assertFalse(second.isContended());
+
+        final CountDownLatch locked = new CountDownLatch(1);
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    PackageLock exclusive = PackageLock.acquire(lockFile);
+                    locked.countDown();
+                    exclusive.close();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        t.start();
+
+        assertFalse(locked.await(500, TimeUnit.MILLISECONDS));
+        first.close();
+        assertFalse(locked.await(500, TimeUnit.MILLISECONDS));
+        second.close();
+        assertTrue(locked.await(5, TimeUnit.SECONDS));
+        t.join();
+
+        // An exclusive lock keeps shared lockers out
+        final PackageLock exclusive = PackageLock.acquire(lockFile);
+        final CountDownLatch sharedLocked = new CountDownLatch(1);
+        t = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    PackageLock shared = PackageLock.acquireShared(lockFile);
+                    sharedLocked.countDown();
+                    shared.close();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        t.start();
+        assertFalse(sharedLocked.await(500, TimeUnit.MILLISECONDS));
+        exclusive.close();
+        assertTrue(sharedLocked.await(5, TimeUnit.SECONDS));
+        t.join();
+    }
+}
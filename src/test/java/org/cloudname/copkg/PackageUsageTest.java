@@ -0,0 +1,45 @@
+package org.cloudname.copkg;
+
+import java.io.File;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the PackageUsage class.
+ */
+public class PackageUsageTest {
+    private static final PackageCoordinate COORDINATE = PackageCoordinate.parse("com.example:artifact:1.2.3");
+
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    /**
+     * A package runs from start to stop, in each runtime directory
+     * separately.
+     */
+    @Test
+    public void testStartStop() throws Exception {
+        PackageUsage usage = new PackageUsage(new File(testFolder.getRoot(), "usage"));
+        assertNull(usage.get(COORDINATE));
+
+        long before = System.currentTimeMillis();
+        usage.started(COORDINATE, "/runtime/a");
+        usage.started(COORDINATE, "/runtime/b");
+        PackageUsage.Entry entry = usage.get(COORDINATE);
+        assertTrue(entry.isRunning());
+        assertTrue(entry.getLastStart() >= before);
+        assertEquals(2, entry.getRunning().size());
+
+        usage.stopped(COORDINATE, "/runtime/a");
+        assertTrue(usage.get(COORDINATE).isRunning());
+        usage.stopped(COORDINATE, "/runtime/b");
+        entry = usage.get(COORDINATE);
+        assertFalse(entry.isRunning());
+
+        // Stopping does not change when it was last started
+        assertTrue(entry.getLastStart() >= before);
+    }
+}
@@ -0,0 +1,182 @@
+package org.cloudname.copkg;
+
+import org.cloudname.copkg.util.Manifest;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the PackageVerifier class.
+ */
+public class PackageVerifierTest {
+    private static final long TIME = 1262304000000L;
+
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    /**
+     * An untouched package checks out.  Changed, missing and extra
+     * files are all reported.
+     */
+    @Test
+    public void testVerify() throws Exception {
+        File dir = testFolder.newFolder("package");
+        Map<String, String> digests = new TreeMap<>();
+        for (int i = 0; i < 300; i++) {
+            String name = "dir" + (i % 3) + "/file" + i;
+            File file = new File(dir, name);
+            file.getParentFile().mkdirs();
+            Files.write("file " + i, file, Charsets.UTF_8);
+            digests.put(name, Manifest.digest(file));
+        }
+        OutputStream out = new FileOutputStream(new File(dir, Manifest.NAME));
+        try {
+            new Manifest(digests).write(out);
+        } finally {
+            out.close();
+        }
+
+        PackageVerifier verifier = new PackageVerifier(4);
+        PackageVerifier.Result result = verifier.verify(dir);
+        assertTrue(result.isOk());
+        assertEquals(300, result.getFileCount());
+
+        Files.write("changed", new File(dir, "dir1/file1"), Charsets.UTF_8);
+        assertTrue(new File(dir, "dir2/file2").delete());
+        Files.write("extra", new File(dir, "dir0/extra"), Charsets.UTF_8);
+
+        result = verifier.verify(dir);
+        assertFalse(result.isOk());
+        assertEquals(Arrays.asList("dir1/file1"), result.getMismatched());
+        assertEquals(Arrays.asList("dir2/file2"), result.getMissing());
+        assertEquals(Arrays.asList("dir0/extra"), result.getUnlisted());
+        assertEquals(299, result.getFileCount());
+    }
+
+    /**
+     * After an install only files whose stat has changed are hashed.
+     */
+    @Test
+    public void testIncremental() throws Exception {
+        File dir = testFolder.newFolder("package");
+        Map<String, String> digests = new TreeMap<>();
+        for (int i = 0; i < 10; i++) {
+            File file = new File(dir, "file" + i);
+            Files.write("file " + i, file, Charsets.UTF_8);
+            file.setLastModified(TIME);
+            digests.put(file.getName(), Manifest.digest(file));
+        }
+        OutputStream out = new FileOutputStream(new File(dir, Manifest.NAME));
+        try {
+            new Manifest(digests).write(out);
+        } finally {
+            out.close();
+        }
+
+        File statFile = new File(testFolder.getRoot(), "stat/package.stat");
+        PackageVerifier.record(dir, statFile);
+        assertEquals(10, StatCache.read(statFile).size());
+
+        PackageVerifier verifier = new PackageVerifier(2);
+        PackageVerifier.Result result = verifier.verify(dir, statFile, true);
+        assertTrue(result.isOk());
+        assertEquals(10, result.getFileCount());
+        assertEquals(0, result.getHashedCount());
+
+        // Changing a file changes its modification time
+        File changed = new File(dir, "file3");
+        Files.write("file X", changed, Charsets.UTF_8);
+        changed.setLastModified(TIME + 1000);
+        result = verifier.verify(dir, statFile, true);
+        assertEquals(Arrays.asList("file3"), result.getMismatched());
+        assertEquals(1, result.getHashedCount());
+
+        // Mismatches stay out of the cache, so they are found again
+        result = verifier.verify(dir, statFile, true);
+        assertEquals(Arrays.asList("file3"), result.getMismatched());
+
+        // A full verify hashes everything
+        assertEquals(10, verifier.verify(dir, statFile, false).getHashedCount());
+    }
+
+    /**
+     * Files modified right before the cache was written may have been
+     * modified again since without their modification time changing.
+     */
+    @Test
+    public void testRacyFiles() throws Exception {
+        File dir = testFolder.newFolder("package");
+        File file = new File(dir, "file");
+        Files.write("file", file, Charsets.UTF_8);
+        OutputStream out = new FileOutputStream(new File(dir, Manifest.NAME));
+        try {
+            new Manifest(Collections.singletonMap("file", Manifest.digest(file))).write(out);
+        } finally {
+            out.close();
+        }
+
+        File statFile = new File(testFolder.getRoot(), "package.stat");
+        PackageVerifier.record(dir, statFile);
+        assertEquals(1, new PackageVerifier(1).verify(dir, statFile, true).getHashedCount());
+    }
+
+    /**
+     * Files added to a package after it was installed, like those a
+     * lazy install materializes, can be added to its stat cache.
+     */
+    @Test
+    public void testRecordAdded() throws Exception {
+        File dir = testFolder.newFolder("package");
+        Map<String, String> digests = new TreeMap<>();
+        for (int i = 0; i < 4; i++) {
+            File file = new File(dir, "file" + i);
+            Files.write("file " + i, file, Charsets.UTF_8);
+            file.setLastModified(TIME);
+            digests.put(file.getName(), Manifest.digest(file));
+        }
+        OutputStream out = new FileOutputStream(new File(dir, Manifest.NAME));
+        try {
+            new Manifest(digests).write(out);
+        } finally {
+            out.close();
+        }
+
+        File statFile = new File(testFolder.getRoot(), "package.stat");
+        File added = new File(dir, "file3");
+        assertTrue(added.renameTo(new File(testFolder.getRoot(), "file3")));
+        PackageVerifier.record(dir, statFile);
+        assertEquals(3, StatCache.read(statFile).size());
+
+        assertTrue(new File(testFolder.getRoot(), "file3").renameTo(added));
+        PackageVerifier.record(dir, statFile, Arrays.asList("file3"));
+        assertEquals(4, StatCache.read(statFile).size());
+        assertEquals(0, new PackageVerifier(1).verify(dir, statFile, true).getHashedCount());
+
+        // A corrupt cache is thrown away rather than added to
+        Files.write("garbage", statFile, Charsets.UTF_8);
+        PackageVerifier.record(dir, statFile, Arrays.asList("file3"));
+        assertFalse(statFile.exists());
+    }
+
+    /**
+     * Packages without a manifest cannot be checked.
+     */
+    @Test (expected = FileNotFoundException.class)
+    public void testNoManifest() throws Exception {
+        new PackageVerifier(1).verify(testFolder.newFolder("package"));
+    }
+}
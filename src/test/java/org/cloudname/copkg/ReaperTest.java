@@ -0,0 +1,46 @@
+package org.cloudname.copkg;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import java.io.File;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the Reaper class.
+ */
+public class ReaperTest {
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    /**
+     * Queued trees are deleted, all of them, by the time the reaper
+     * is closed.
+     */
+    @Test
+    public void testReap() throws Exception {
+        File a = testFolder.newFolder("a");
+        File b = testFolder.newFolder("b");
+        for (int i = 0; i < 1000; i++) {
+            File dir = new File(a, "dir" + (i % 10) + "/sub" + (i % 3));
+            dir.mkdirs();
+            Files.write("file " + i, new File(dir, "file" + i), Charsets.UTF_8);
+        }
+        Files.write("single file", new File(b, "file"), Charsets.UTF_8);
+
+        Reaper reaper = new Reaper(4);
+        reaper.reap(a);
+        reaper.reap(b);
+        reaper.reap(new File(testFolder.getRoot(), "nonexistent"));
+        reaper.close();
+
+        assertFalse(a.exists());
+        assertFalse(b.exists());
+        assertEquals(0, reaper.getPendingBytes());
+        assertEquals(0, reaper.getPendingDirectories());
+    }
+}
@@ -0,0 +1,85 @@
+package org.cloudname.copkg;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the StatCache class.
+ */
+public class StatCacheTest {
+    private static final String HASH_A = "0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef";
+
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    /**
+     * What we write is what we read.
+     */
+    @Test
+    public void testWriteAndRead() throws Exception {
+        File file = new File(testFolder.getRoot(), "dir/package.stat");
+        assertNull(StatCache.read(file));
+
+        Map<String, StatCache.Entry> entries = new HashMap<>();
+        entries.put("bin/start", new StatCache.Entry(10L, 1000L, "(dev=1,ino=2)", HASH_A));
+        new StatCache(5000L, entries).write(file);
+
+        StatCache cache = StatCache.read(file);
+        assertEquals(5000L, cache.getTime());
+        assertEquals(1, cache.size());
+        StatCache.Entry entry = cache.get("bin/start");
+        assertEquals(10L, entry.getSize());
+        assertEquals(1000L, entry.getLastModified());
+        assertEquals("(dev=1,ino=2)", entry.getFileKey());
+        assertEquals(HASH_A, entry.getDigest());
+        assertNull(cache.get("bin/stop"));
+    }
+
+    /**
+     * Adding entries keeps the old ones, except those which were too
+     * new to trust when the cache was written.
+     */
+    @Test
+    public void testPlus() throws Exception {
+        Map<String, StatCache.Entry> entries = new HashMap<>();
+        entries.put("bin/start", new StatCache.Entry(10L, 1000L, "", HASH_A));
+        entries.put("bin/racy", new StatCache.Entry(10L, 4000L, "", HASH_A));
+        StatCache cache = new StatCache(5000L, entries);
+
+        StatCache plus = cache.plus(9000L, Collections.singletonMap("lib/new", new StatCache.Entry(20L, 3000L, "", HASH_A)));
+        assertEquals(9000L, plus.getTime());
+        assertEquals(2, plus.size());
+        assertNotNull(plus.get("bin/start"));
+        assertNotNull(plus.get("lib/new"));
+        assertNull(plus.get("bin/racy"));
+    }
+
+    /**
+     * A damaged cache is reported rather than misread.
+     */
+    @Test (expected = IOException.class)
+    public void testCorrupt() throws Exception {
+        File file = new File(testFolder.getRoot(), "package.stat");
+        Map<String, StatCache.Entry> entries = new HashMap<>();
+        entries.put("bin/start", new StatCache.Entry(10L, 1000L, "", HASH_A));
+        new StatCache(5000L, entries).write(file);
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(20);
+            raf.write(0xff);
+        } finally {
+            raf.close();
+        }
+        StatCache.read(file);
+    }
+}
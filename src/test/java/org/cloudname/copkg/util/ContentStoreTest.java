@@ -0,0 +1,56 @@
+package org.cloudname.copkg.util;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.nio.file.attribute.PosixFilePermission;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the ContentStore class.
+ */
+public class ContentStoreTest {
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    /**
+     * Add some content, link it into two places and make sure it is
+     * only collected once nothing links to it.
+     */
+    @Test
+    public void testAddLinkAndGc() throws Exception {
+        ContentStore store = new ContentStore(testFolder.newFolder("store"));
+        String content = "some content";
+        String sha256 = Hashing.sha256().hashString(content, Charsets.UTF_8).toString();
+
+        File a = new File(testFolder.getRoot(), "a");
+        File b = new File(testFolder.getRoot(), "b");
+        assertFalse(store.link(sha256, false, a));
+
+        File tmpFile = store.newTempFile();
+        Files.write(content, tmpFile, Charsets.UTF_8);
+        store.add(tmpFile, sha256, false, 1262304000000L);
+
+        assertTrue(store.link(sha256, false, a));
+        assertTrue(store.link(sha256, false, b));
+        assertEquals(content, Files.toString(a, Charsets.UTF_8));
+        assertEquals(1262304000000L, b.lastModified());
+        assertFalse(java.nio.file.Files.getPosixFilePermissions(a.toPath()).contains(PosixFilePermission.OWNER_WRITE));
+        assertTrue(java.nio.file.Files.isSameFile(a.toPath(), b.toPath()));
+
+        // Executable content is a separate blob
+        assertFalse(store.link(sha256, true, a));
+
+        assertTrue(a.delete());
+        assertEquals(0, store.gc());
+        assertTrue(b.delete());
+        assertEquals(content.length(), store.gc());
+        assertFalse(store.link(sha256, false, a));
+    }
+}
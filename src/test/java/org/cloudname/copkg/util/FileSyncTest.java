@@ -0,0 +1,49 @@
+package org.cloudname.copkg.util;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the FileSync class.  There is no telling from here
+ * whether anything reached the disk, so this only makes sure every
+ * kind of file can be flushed.
+ */
+public class FileSyncTest {
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    /**
+     * Flush a tree with files, empty files, nested directories and a
+     * dangling symbolic link, which must be left alone.
+     */
+    @Test
+    public void testSyncTree() throws Exception {
+        File root = testFolder.newFolder("tree");
+        for (int i = 0; i < 600; i++) {
+            File file = new File(root, "dir" + (i % 3) + "/sub/file" + i);
+            file.getParentFile().mkdirs();
+            Files.write((i % 10 == 0) ? "" : "file " + i, file, Charsets.UTF_8);
+        }
+        new File(root, "empty").mkdir();
+        Path link = new File(root, "link").toPath();
+        java.nio.file.Files.createSymbolicLink(link, new File(root, "nowhere").toPath());
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            FileSync.syncTree(root.toPath(), pool);
+        } finally {
+            pool.shutdown();
+        }
+
+        assertEquals("file 1", Files.toString(new File(root, "dir1/sub/file1"), Charsets.UTF_8));
+    }
+}
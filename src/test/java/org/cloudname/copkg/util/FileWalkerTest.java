@@ -0,0 +1,216 @@
+package org.cloudname.copkg.util;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for FileWalker.
+ */
+public class FileWalkerTest {
+    private static final int NUM_FILES = 1000;
+
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    private File root;
+    private long totalBytes;
+
+    @Before
+    public void setUp() throws Exception {
+        root = testFolder.newFolder("root");
+        totalBytes = 0;
+        for (int i = 0; i < NUM_FILES; i++) {
+            File dir = new File(root, "dir" + (i % 7) + "/sub" + (i % 3));
+            dir.mkdirs();
+            String contents = "file number " + i;
+            Files.write(contents, new File(dir, "file" + i), Charsets.UTF_8);
+            totalBytes += contents.length();
+        }
+        // A flat directory with more files than one task handles
+        File flat = new File(root, "flat");
+        flat.mkdirs();
+        for (int i = 0; i < NUM_FILES; i++) {
+            Files.write("x", new File(flat, "file" + i), Charsets.UTF_8);
+            totalBytes++;
+        }
+    }
+
+    /**
+     * Records the order of the callbacks.
+     */
+    private static class Recorder extends FileWalker {
+        final List<String> events = new CopyOnWriteArrayList<>();
+        final AtomicLong bytes = new AtomicLong();
+
+        @Override public boolean before(Path dir, BasicFileAttributes attrs) {
+            events.add("before " + dir);
+            return ! dir.getFileName().toString().equals("skip");
+        }
+
+        @Override public void visit(Path file, BasicFileAttributes attrs) {
+            events.add("visit " + file);
+            bytes.addAndGet(attrs.size());
+        }
+
+        @Override public void after(Path dir) {
+            events.add("after " + dir);
+        }
+
+        /**
+         * Everything below a directory must come between its before
+         * and after events.
+         */
+        void checkOrder() {
+            Set<String> seen = new HashSet<>();
+            for (int i = 0; i < events.size(); i++) {
+                String event = events.get(i);
+                assertTrue("Duplicate " + event, seen.add(event));
+                if (! event.startsWith("after ")) {
+                    continue;
+                }
+                String dir = event.substring("after ".length());
+                int before = events.indexOf("before " + dir);
+                assertTrue(before >= 0 && before < i);
+                for (int j = 0; j < events.size(); j++) {
+                    if (events.get(j).contains(dir + File.separator)) {
+                        assertTrue(events.get(j), j > before && j < i);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testWalk() throws Exception {
+        Recorder recorder = new Recorder();
+        recorder.walk(root.toPath());
+        recorder.checkOrder();
+        assertEquals(totalBytes, recorder.bytes.get());
+        // 2 * NUM_FILES files and 1 + 7 + 21 + 1 directories visited twice
+        assertEquals(2 * NUM_FILES + 2 * 30, recorder.events.size());
+    }
+
+    @Test
+    public void testParallelWalk() throws Exception {
+        Recorder recorder = new Recorder();
+        recorder.walk(root.toPath(), new ForkJoinPool(4));
+        recorder.checkOrder();
+        assertEquals(totalBytes, recorder.bytes.get());
+        assertEquals(2 * NUM_FILES + 2 * 30, recorder.events.size());
+    }
+
+    /**
+     * Returning false from before skips the directory, and symbolic
+     * links are not followed.
+     */
+    @Test
+    public void testSkipAndSymlinks() throws Exception {
+        File skip = new File(root, "skip");
+        skip.mkdirs();
+        Files.write("hidden", new File(skip, "file"), Charsets.UTF_8);
+        java.nio.file.Files.createSymbolicLink(new File(root, "link").toPath(), skip.toPath());
+
+        for (ForkJoinPool pool : new ForkJoinPool[] { null, new ForkJoinPool(2) }) {
+            Recorder recorder = new Recorder();
+            if (pool == null) {
+                recorder.walk(root.toPath());
+            } else {
+                recorder.walk(root.toPath(), pool);
+            }
+            assertTrue(recorder.events.contains("before " + skip.toPath()));
+            assertFalse(recorder.events.contains("after " + skip.toPath()));
+            assertFalse(recorder.events.contains("visit " + new File(skip, "file").toPath()));
+            assertTrue(recorder.events.contains("visit " + new File(root, "link").toPath()));
+        }
+    }
+
+    /**
+     * Exceptions thrown by callbacks in the parallel walk come out
+     * as they were thrown.
+     */
+    @Test
+    public void testParallelException() throws Exception {
+        try {
+            new FileWalker() {
+                @Override public void visit(Path file, BasicFileAttributes attrs) throws IOException {
+                    throw new IOException("failed " + file.getFileName());
+                }
+            }.walk(root.toPath(), new ForkJoinPool(4));
+            fail("Expected IOException");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().startsWith("failed file"));
+        }
+    }
+
+    /**
+     * A failure stops the parallel walk, and nothing more is visited
+     * once the failure has come out.
+     */
+    @Test
+    public void testParallelExceptionStopsWalk() throws Exception {
+        final AtomicLong visits = new AtomicLong();
+        try {
+            new FileWalker() {
+                @Override public void visit(Path file, BasicFileAttributes attrs) throws IOException {
+                    if (visits.incrementAndGet() == 100) {
+                        throw new IOException("failed");
+                    }
+                    try {
+                        Thread.sleep(1);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }.walk(root.toPath(), new ForkJoinPool(4));
+            fail("Expected IOException");
+        } catch (IOException e) {
+            assertEquals("failed", e.getMessage());
+        }
+
+        final long count = visits.get();
+        Thread.sleep(200);
+        assertEquals(count, visits.get());
+        assertTrue(count < NUM_FILES);
+    }
+
+    /**
+     * Walking a missing file fails unless failed is overridden.
+     */
+    @Test
+    public void testMissing() throws Exception {
+        final List<Path> failures = new CopyOnWriteArrayList<>();
+        FileWalker walker = new FileWalker() {
+            @Override public void failed(Path path, IOException e) {
+                failures.add(path);
+            }
+        };
+        Path missing = new File(root, "missing").toPath();
+        walker.walk(missing);
+        walker.walk(missing, new ForkJoinPool(2));
+        assertEquals(2, failures.size());
+
+        try {
+            new FileWalker().walk(missing, new ForkJoinPool(2));
+            fail("Expected IOException");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
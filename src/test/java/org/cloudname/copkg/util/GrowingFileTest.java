@@ -0,0 +1,95 @@
+package org.cloudname.copkg.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for GrowingFile.
+ */
+public class GrowingFileTest {
+    private static final int NUM_CHUNKS = 100;
+    private static final int CHUNK_SIZE = 1000;
+
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    /**
+     * The reader gets everything the writer writes, following the
+     * file as it grows.
+     */
+    @Test
+    public void testFollow() throws Exception {
+        final File file = new File(testFolder.getRoot(), "growing");
+        final GrowingFile growing = new GrowingFile(file);
+        final Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try (FileOutputStream out = new FileOutputStream(file)) {
+                    for (int i = 0; i < NUM_CHUNKS; i++) {
+                        byte[] chunk = new byte[CHUNK_SIZE];
+                        Arrays.fill(chunk, (byte) i);
+                        out.write(chunk);
+                        growing.advance((i + 1) * CHUNK_SIZE);
+                    }
+                    growing.close();
+                } catch (IOException e) {
+                    growing.fail(e);
+                }
+            }
+        };
+        writer.start();
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final InputStream in = growing.getInputStream();
+        final byte[] buffer = new byte[333];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        in.close();
+        writer.join();
+
+        final byte[] data = out.toByteArray();
+        assertEquals(NUM_CHUNKS * CHUNK_SIZE, data.length);
+        assertEquals((byte) (NUM_CHUNKS - 1), data[data.length - 1]);
+    }
+
+    /**
+     * A failing writer should make the reader throw once it has read
+     * what was written.
+     */
+    @Test (expected = IOException.class)
+    public void testFail() throws Exception {
+        final File file = new File(testFolder.getRoot(), "growing");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[] {1, 2, 3});
+        }
+        final GrowingFile growing = new GrowingFile(file);
+        growing.advance(3);
+        growing.fail(new RuntimeException("boom"));
+
+        final InputStream in = growing.getInputStream();
+        assertEquals(3, in.read(new byte[10]));
+        in.read(new byte[10]);
+    }
+
+    /**
+     * Nothing written means an empty stream, and the file need not
+     * exist.
+     */
+    @Test
+    public void testEmpty() throws Exception {
+        final GrowingFile growing = new GrowingFile(new File(testFolder.getRoot(), "missing"));
+        growing.close();
+        assertEquals(-1, growing.getInputStream().read());
+    }
+}
@@ -0,0 +1,99 @@
+package org.cloudname.copkg.util;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the Manifest class.
+ */
+public class ManifestTest {
+    private static final String HASH_A = "0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef";
+    private static final String HASH_B = "fedcba9876543210fedcba9876543210fedcba9876543210fedcba9876543210";
+
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    /**
+     * What we write is what we parse, and the format is that of
+     * sha256sum.
+     */
+    @Test
+    public void testWriteAndParse() throws Exception {
+        Map<String, String> digests = new TreeMap<>();
+        digests.put("bin/start", HASH_A);
+        digests.put("lib/name with spaces.jar", HASH_B);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new Manifest(digests).write(out);
+        assertEquals(HASH_A + "  bin/start\n" + HASH_B + "  lib/name with spaces.jar\n", out.toString("UTF-8"));
+
+        Manifest manifest = Manifest.parse(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(digests, manifest.getDigests());
+
+        // Binary mode lines and upper case digests are fine too
+        manifest = Manifest.parse(new ByteArrayInputStream((HASH_A.toUpperCase() + " *bin/start\n").getBytes("UTF-8")));
+        assertEquals(HASH_A, manifest.get("bin/start"));
+    }
+
+    /**
+     * Lines we do not understand are reported.
+     */
+    @Test (expected = IOException.class)
+    public void testBadLine() throws Exception {
+        Manifest.parse(new ByteArrayInputStream("not a digest  bin/start\n".getBytes("UTF-8")));
+    }
+
+    /**
+     * Files, mapped or read, hash the same as they do with Guava.
+     */
+    @Test
+    public void testDigest() throws Exception {
+        for (int size : new int[] { 0, 1000, 1000000 }) {
+            byte[] data = new byte[size];
+            for (int i = 0; i < size; i++) {
+                data[i] = (byte) (i * 31);
+            }
+            File file = new File(testFolder.getRoot(), "file" + size);
+            Files.write(data, file);
+            assertEquals(Hashing.sha256().hashBytes(data).toString(), Manifest.digest(file));
+        }
+    }
+
+    /**
+     * Checking names finds both missing and unlisted files, and
+     * ignores the manifest itself.
+     */
+    @Test
+    public void testCheckNames() throws Exception {
+        Manifest manifest = new Manifest(Collections.singletonMap("a", HASH_A));
+        manifest.checkNames(Arrays.asList("a", Manifest.NAME));
+
+        try {
+            manifest.checkNames(Arrays.asList("a", "b"));
+            fail("Expected unlisted file");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("[b]"));
+        }
+
+        try {
+            manifest.checkNames(Collections.<String>emptyList());
+            fail("Expected missing file");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("[a]"));
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package org.cloudname.copkg.util;
+
+import com.google.common.base.Charsets;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Unit test for OutputCapture.
+ */
+public class OutputCaptureTest {
+    /**
+     * Output which fits is kept as it is.
+     */
+    @Test
+    public void testFits() throws Exception {
+        OutputCapture capture = new OutputCapture(4, 4);
+        capture.write("abcdefgh".getBytes(Charsets.UTF_8));
+        assertEquals("abcdefgh", capture.getText());
+        assertEquals(8, capture.getByteCount());
+        assertEquals(0, capture.getOmittedCount());
+
+        assertEquals("", new OutputCapture(4, 4).getText());
+    }
+
+    /**
+     * The middle of output which does not fit is dropped, whatever
+     * size the writes are.
+     */
+    @Test
+    public void testTruncate() throws Exception {
+        OutputCapture capture = new OutputCapture(3, 4);
+        for (byte b : "abcdefghijklm".getBytes(Charsets.UTF_8)) {
+            capture.write(b);
+        }
+        assertEquals("abc\n[... 6 bytes omitted ...]\njklm", capture.getText());
+
+        capture = new OutputCapture(3, 4);
+        capture.write("abcdefgh".getBytes(Charsets.UTF_8));
+        capture.write("ijklm".getBytes(Charsets.UTF_8));
+        assertEquals("abc\n[... 6 bytes omitted ...]\njklm", capture.getText());
+        assertEquals(13, capture.getByteCount());
+
+        capture = new OutputCapture(0, 2);
+        capture.write("abc".getBytes(Charsets.UTF_8));
+        assertEquals("\n[... 1 bytes omitted ...]\nbc", capture.getText());
+    }
+
+    /**
+     * Listeners get every line, also those which are dropped.
+     */
+    @Test
+    public void testLines() throws Exception {
+        final List<String> lines = new ArrayList<>();
+        OutputCapture capture = new OutputCapture(2, 2).addLineListener(new OutputCapture.LineListener() {
+            @Override
+            public void onLine(String line) {
+                lines.add(line);
+            }
+        });
+        capture.write("one\r\ntw".getBytes(Charsets.UTF_8));
+        capture.write("o\n\nthree".getBytes(Charsets.UTF_8));
+        assertEquals(Arrays.asList("one", "two", ""), lines);
+        capture.close();
+        assertEquals(Arrays.asList("one", "two", "", "three"), lines);
+
+        // Long lines come in pieces
+        lines.clear();
+        capture = new OutputCapture(2, 2).addLineListener(new OutputCapture.LineListener() {
+            @Override
+            public void onLine(String line) {
+                lines.add(line);
+            }
+        });
+        byte[] data = new byte[OutputCapture.MAX_LINE_LENGTH * 2 + 1];
+        Arrays.fill(data, (byte) 'a');
+        capture.write(data);
+        capture.close();
+        assertEquals(3, lines.size());
+        assertEquals(OutputCapture.MAX_LINE_LENGTH, lines.get(0).length());
+        assertEquals(1, lines.get(2).length());
+    }
+}
@@ -0,0 +1,44 @@
+package org.cloudname.copkg.util;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import java.io.File;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Unit test for RotatingFileOutputStream.
+ */
+public class RotatingFileOutputStreamTest {
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    /**
+     * Files are rotated when full and the oldest are removed.
+     */
+    @Test
+    public void testRotate() throws Exception {
+        File file = new File(testFolder.getRoot(), "logs/out.log");
+        RotatingFileOutputStream out = new RotatingFileOutputStream(file, 4, 3);
+        for (String s : new String[] {"aa", "bb", "cc", "dd", "ee", "ff", "g"}) {
+            out.write(s.getBytes(Charsets.UTF_8));
+        }
+        out.close();
+
+        assertEquals(13, out.getByteCount());
+        assertEquals("g", Files.toString(file, Charsets.UTF_8));
+        assertEquals("eeff", Files.toString(new File(file.getPath() + ".1"), Charsets.UTF_8));
+        assertEquals("ccdd", Files.toString(new File(file.getPath() + ".2"), Charsets.UTF_8));
+        assertFalse(new File(file.getPath() + ".3").exists());
+
+        // Appends to what is there
+        out = new RotatingFileOutputStream(file, 4, 3);
+        out.write("hh".getBytes(Charsets.UTF_8));
+        out.close();
+        assertEquals("ghh", Files.toString(file, Charsets.UTF_8));
+        assertEquals(2, out.getByteCount());
+    }
+}
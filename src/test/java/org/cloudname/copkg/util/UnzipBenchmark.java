@@ -0,0 +1,124 @@
+package org.cloudname.copkg.util;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Random;
+
+/**
+ * End-to-end benchmark of {@link Unzip} on an archive of many small
+ * files and on an archive of a few large ones.  Not run with the
+ * tests.  Run it with the test classpath:
+ *
+ * <pre>
+ *   java -cp ... org.cloudname.copkg.util.UnzipBenchmark [iterations] [threads]
+ * </pre>
+ *
+ * Unpacking goes to the page cache, so the numbers are mostly about
+ * the CPU and system call cost of unpacking.  Put {@code
+ * java.io.tmpdir} on the disk you care about to see more.
+ */
+public class UnzipBenchmark {
+    private static final int SMALL_FILES = 20000;
+    private static final int SMALL_FILE_MAX_SIZE = 8 * 1024;
+    private static final int LARGE_FILES = 4;
+    private static final int LARGE_FILE_SIZE = 64 * 1024 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        final int iterations = (args.length > 0) ? Integer.parseInt(args[0]) : 5;
+        final int numThreads = (args.length > 1) ? Integer.parseInt(args[1]) : 1;
+
+        final File dir = Files.createTempDir();
+        try {
+            final File small = new File(dir, "small.zip");
+            final File large = new File(dir, "large.zip");
+            makeArchive(small, SMALL_FILES, SMALL_FILE_MAX_SIZE, true);
+            makeArchive(large, LARGE_FILES, LARGE_FILE_SIZE, false);
+
+            run("small files", small, new File(dir, "out"), iterations, numThreads);
+            run("large files", large, new File(dir, "out"), iterations, numThreads);
+        } finally {
+            delete(dir);
+        }
+    }
+
+    private static void run(String name, File zip, File out, int iterations, int numThreads) throws IOException {
+        // The first round warms up the JIT and the page cache
+        long best = Long.MAX_VALUE;
+        long bytes = 0;
+        for (int i = 0; i <= iterations; i++) {
+            delete(out);
+            final long start = System.nanoTime();
+            new Unzip(zip, out).setNumThreads(numThreads).unzip();
+            final long elapsed = System.nanoTime() - start;
+            if (i > 0) {
+                best = Math.min(best, elapsed);
+            }
+            bytes = size(out);
+        }
+        delete(out);
+
+        System.out.printf("%-12s : best of %d %8.1f ms, %8.1f MB/s%n",
+                          name,
+                          iterations,
+                          best / 1e6,
+                          (bytes / (1024.0 * 1024.0)) / (best / 1e9));
+    }
+
+    /**
+     * Make an archive of deflated files of text-like data, which
+     * compresses about as well as class files and configuration do.
+     */
+    private static void makeArchive(File zip, int numFiles, int maxSize, boolean randomSize) throws IOException {
+        final Random random = new Random(42);
+        final ZipArchiveOutputStream out = new ZipArchiveOutputStream(zip);
+        try {
+            final byte[] data = new byte[maxSize];
+            for (int i = 0; i < numFiles; i++) {
+                final int size = randomSize ? 1 + random.nextInt(maxSize) : maxSize;
+                for (int j = 0; j < size; j++) {
+                    data[j] = (byte) ('a' + random.nextInt(16));
+                }
+
+                final ZipArchiveEntry entry = new ZipArchiveEntry("dir" + (i % 64) + "/file" + i);
+                entry.setUnixMode(0100644);
+                out.putArchiveEntry(entry);
+                out.write(data, 0, size);
+                out.closeArchiveEntry();
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static long size(File dir) throws IOException {
+        final long[] size = new long[1];
+        new FileWalker() {
+            @Override public void visit(Path file, BasicFileAttributes attrs) {
+                size[0] += attrs.size();
+            }
+        }.walk(dir.toPath());
+        return size[0];
+    }
+
+    private static void delete(File dir) throws IOException {
+        if (! dir.exists()) {
+            return;
+        }
+        new FileWalker() {
+            @Override public void visit(Path file, BasicFileAttributes attrs) throws IOException {
+                java.nio.file.Files.delete(file);
+            }
+
+            @Override public void after(Path dir) throws IOException {
+                java.nio.file.Files.delete(dir);
+            }
+        }.walk(dir.toPath());
+    }
+}
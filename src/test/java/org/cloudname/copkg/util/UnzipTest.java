@@ -1,7 +1,18 @@
 package org.cloudname.copkg.util;
 
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+
+import com.google.common.base.Predicate;
+import com.google.common.io.Files;
+
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
 
 import org.junit.Test;
 import org.junit.Rule;
@@ -40,6 +51,264 @@ public class UnzipTest {
         ensureExists(destination, "ziptest/otherdir/otherfile.txt");
     }
 
+    /**
+     * Unpack a ZIP file with enough entries to use the parallel path
+     * and verify the contents, timestamps and executable bits.
+     */
+    @Test
+    public void testParallel() throws Exception {
+        final int numEntries = Unzip.PARALLEL_MIN_ENTRIES * 2;
+        final long time = 1262304000000L;
+        File zip = testFolder.newFile("parallel.zip");
+        ZipArchiveOutputStream out = new ZipArchiveOutputStream(zip);
+        for (int i = 0; i < numEntries; i++) {
+            ZipArchiveEntry entry = new ZipArchiveEntry("dir" + (i % 4) + "/file" + i + ".txt");
+            entry.setTime(time);
+            entry.setUnixMode((i % 2 == 0) ? 0100755 : 0100644);
+            out.putArchiveEntry(entry);
+            out.write(("file " + i).getBytes("UTF-8"));
+            out.closeArchiveEntry();
+        }
+        out.close();
+
+        File destination = testFolder.newFolder("parallel");
+        new Unzip(zip, destination).setNumThreads(4).unzip();
+
+        for (int i = 0; i < numEntries; i++) {
+            File f = new File(destination, "dir" + (i % 4) + "/file" + i + ".txt");
+            assertTrue(f.isFile());
+            assertEquals(("file " + i).length(), f.length());
+            assertEquals(time, f.lastModified());
+            assertEquals(i % 2 == 0, f.canExecute());
+        }
+    }
+
+    /**
+     * Stored entries are copied straight from the ZIP file.  Mix them
+     * with compressed entries and make sure both come out right.
+     */
+    @Test
+    public void testStoredEntries() throws Exception {
+        final long time = 1262304000000L;
+        File zip = testFolder.newFile("stored.zip");
+        ZipArchiveOutputStream out = new ZipArchiveOutputStream(zip);
+        for (int i = 0; i < 8; i++) {
+            byte[] data = new byte[1000 * i + 17];
+            for (int j = 0; j < data.length; j++) {
+                data[j] = (byte) (i + j);
+            }
+            CRC32 crc = new CRC32();
+            crc.update(data);
+
+            ZipArchiveEntry entry = new ZipArchiveEntry("stored/file" + i);
+            entry.setTime(time);
+            entry.setUnixMode((i % 2 == 0) ? 0100755 : 0100644);
+            if (i % 2 == 0) {
+                entry.setMethod(ZipArchiveEntry.STORED);
+                entry.setSize(data.length);
+                entry.setCrc(crc.getValue());
+            }
+            out.putArchiveEntry(entry);
+            out.write(data);
+            out.closeArchiveEntry();
+        }
+        out.close();
+
+        File destination = testFolder.newFolder("stored");
+        Unzip.unzip(zip, destination);
+
+        for (int i = 0; i < 8; i++) {
+            File f = new File(destination, "stored/file" + i);
+            byte[] data = Files.toByteArray(f);
+            assertEquals(1000 * i + 17, data.length);
+            for (int j = 0; j < data.length; j++) {
+                assertEquals((byte) (i + j), data[j]);
+            }
+            assertEquals(time, f.lastModified());
+            assertEquals(i % 2 == 0, f.canExecute());
+        }
+    }
+
+    /**
+     * Unpack the sample ZIP file twice by way of a content store.
+     * The files of the two copies should be one and the same.
+     */
+    @Test
+    public void testContentStore() throws Exception {
+        ContentStore store = new ContentStore(testFolder.newFolder("store"));
+        File first = testFolder.newFolder("first");
+        File second = testFolder.newFolder("second");
+
+        new Unzip(new File(TEST_ZIP_FILE), first).setContentStore(store).unzip();
+        new Unzip(new File(TEST_ZIP_FILE), second).setContentStore(store).unzip();
+
+        ensureDir(second, "ziptest/empty_dir");
+        File readme = new File(first, "ziptest/README.txt");
+        File otherReadme = new File(second, "ziptest/README.txt");
+        assertTrue(readme.isFile());
+        assertTrue(java.nio.file.Files.isSameFile(readme.toPath(), otherReadme.toPath()));
+
+        // Still in use by the second copy
+        assertTrue(readme.delete());
+        assertTrue(otherReadme.exists());
+        assertEquals(0, store.gc());
+    }
+
+    /**
+     * Unpack the sample ZIP file from a stream and verify that all
+     * paths are present in the destination directory.
+     */
+    @Test
+    public void testStream() throws Exception {
+        File destination = testFolder.newFolder("stream");
+        InputStream in = new FileInputStream(TEST_ZIP_FILE);
+        try {
+            Unzip.unzip(in, destination);
+        } finally {
+            in.close();
+        }
+        Unzip.applyUnixModes(new File(TEST_ZIP_FILE), destination);
+
+        ensureDir(destination, "ziptest");
+        ensureDir(destination, "ziptest/dir");
+        ensureDir(destination, "ziptest/dir/with_subdir");
+        ensureDir(destination, "ziptest/empty_dir");
+        ensureDir(destination, "ziptest/otherdir");
+
+        ensureExists(destination, "ziptest/README.txt");
+        ensureExists(destination, "ziptest/otherdir/otherfile.txt");
+    }
+
+    /**
+     * Add a manifest to the sample ZIP file and unpack it every way
+     * there is.  The files all match, so this should just work.
+     */
+    @Test
+    public void testManifest() throws Exception {
+        File zip = testFolder.newFile("manifest.zip");
+        Files.copy(new File(TEST_ZIP_FILE), zip);
+        Manifest manifest = Manifest.addTo(zip);
+        assertEquals(2, manifest.getDigests().size());
+
+        File plain = testFolder.newFolder("plain");
+        Unzip.unzip(zip, plain);
+        ensureExists(plain, Manifest.NAME);
+        ensureExists(plain, "ziptest/README.txt");
+        assertEquals(manifest.get("ziptest/README.txt"), Manifest.digest(new File(plain, "ziptest/README.txt")));
+
+        File stored = testFolder.newFolder("store");
+        new Unzip(zip, testFolder.newFolder("dedup")).setContentStore(new ContentStore(stored)).unzip();
+
+        InputStream in = new FileInputStream(zip);
+        try {
+            Unzip.unzip(in, testFolder.newFolder("streamed"));
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * A file which does not match the manifest fails the unzip,
+     * whether it is compressed or stored, and whether the ZIP file is
+     * read from disk or from a stream.
+     */
+    @Test
+    public void testManifestMismatch() throws Exception {
+        for (int method : new int[] { ZipArchiveEntry.DEFLATED, ZipArchiveEntry.STORED }) {
+            File zip = testFolder.newFile("mismatch" + method + ".zip");
+            ZipArchiveOutputStream out = new ZipArchiveOutputStream(zip);
+            writeEntry(out, Manifest.NAME, ZipArchiveEntry.DEFLATED,
+                       Manifest.hex(Manifest.newDigest().digest("good".getBytes("UTF-8"))) + "  file\n");
+            writeEntry(out, "file", method, "bad");
+            out.close();
+
+            try {
+                Unzip.unzip(zip, testFolder.newFolder("mismatch" + method));
+                fail("Expected checksum mismatch");
+            } catch (IOException e) {
+                assertTrue(e.getMessage().contains("mismatch"));
+            }
+
+            InputStream in = new FileInputStream(zip);
+            try {
+                Unzip.unzip(in, testFolder.newFolder("streamed" + method));
+                fail("Expected checksum mismatch");
+            } catch (IOException e) {
+                assertTrue(e.getMessage().contains("mismatch"));
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * Files missing from the package or not in the manifest fail the
+     * unzip before anything is extracted.
+     */
+    @Test
+    public void testManifestMissingFile() throws Exception {
+        File zip = testFolder.newFile("missing.zip");
+        ZipArchiveOutputStream out = new ZipArchiveOutputStream(zip);
+        writeEntry(out, Manifest.NAME, ZipArchiveEntry.DEFLATED,
+                   Manifest.hex(Manifest.newDigest().digest("a".getBytes("UTF-8"))) + "  a\n"
+                   + Manifest.hex(Manifest.newDigest().digest("b".getBytes("UTF-8"))) + "  b\n");
+        writeEntry(out, "a", ZipArchiveEntry.DEFLATED, "a");
+        out.close();
+
+        File destination = testFolder.newFolder("missing");
+        try {
+            Unzip.unzip(zip, destination);
+            fail("Expected missing file");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("[b]"));
+        }
+        assertFalse(new File(destination, "a").exists());
+    }
+
+    /**
+     * Only the files accepted by the filter are extracted, and the
+     * rest are reported as skipped.  The manifest still has to list
+     * them all.
+     */
+    @Test
+    public void testFilter() throws Exception {
+        File zip = testFolder.newFile("filter.zip");
+        ZipArchiveOutputStream out = new ZipArchiveOutputStream(zip);
+        writeEntry(out, "lib/a.jar", ZipArchiveEntry.DEFLATED, "a");
+        writeEntry(out, "models/big.bin", ZipArchiveEntry.STORED, "big");
+        writeEntry(out, "models/small.bin", ZipArchiveEntry.DEFLATED, "small");
+        out.close();
+        Manifest.addTo(zip);
+
+        File destination = testFolder.newFolder("filter");
+        Unzip unzip = new Unzip(zip, destination).setFilter(new Predicate<String>() {
+            @Override
+            public boolean apply(String name) {
+                return ! name.startsWith("models/");
+            }
+        });
+        unzip.unzip();
+
+        ensureExists(destination, "lib/a.jar");
+        ensureExists(destination, Manifest.NAME);
+        assertFalse(new File(destination, "models").exists());
+        assertEquals(Arrays.asList("models/big.bin", "models/small.bin"), unzip.getSkipped());
+    }
+
+    private static void writeEntry(ZipArchiveOutputStream out, String name, int method, String data) throws Exception {
+        byte[] bytes = data.getBytes("UTF-8");
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+
+        ZipArchiveEntry entry = new ZipArchiveEntry(name);
+        entry.setMethod(method);
+        entry.setSize(bytes.length);
+        entry.setCrc(crc.getValue());
+        out.putArchiveEntry(entry);
+        out.write(bytes);
+        out.closeArchiveEntry();
+    }
+
     /**
      * If we give the Unzipper a bogus path it should complain.
      */
@@ -0,0 +1,279 @@
+package org.cloudname.fire;
+
+import org.cloudname.copkg.Configuration;
+import org.cloudname.copkg.PackageCoordinate;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for JobRunner.
+ */
+public class JobRunnerTest {
+    private static final String COORDINATE = "com.example:artifact:1.0";
+
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    private Configuration config;
+
+    @Before
+    public void setUp() throws Exception {
+        config = new Configuration(testFolder.newFolder("packages").getAbsolutePath(),
+                                   "http://localhost/", "", "", testFolder.getRoot().getAbsolutePath());
+        File scriptDir = new File(config.packageDirectoryForCoordinate(PackageCoordinate.parse(COORDINATE)),
+                                  JobRunner.SCRIPT_DIR);
+        assertTrue(scriptDir.mkdirs());
+        File script = new File(scriptDir, JobRunner.START_SCRIPT);
+        Files.write("#!/bin/sh\n"
+                    + "if [ \"$3\" = sleep ]; then echo $$ > \"$2/pid\"; exec sleep 60; fi\n"
+                    + "if [ \"$3\" = orphan ]; then sleep 60 & echo $! > \"$2/child\"; exec sleep 60; fi\n"
+                    + "if [ \"$3\" = chatty ]; then seq 1 50000; fi\n"
+                    + "if [ \"$3\" = unterminated ]; then printf 'first\\nlast'; exit 0; fi\n"
+                    + "echo out\n"
+                    + "echo err >&2\n",
+                    script, Charsets.UTF_8);
+        assertTrue(script.setExecutable(true));
+    }
+
+    /**
+     * Many jobs run at once share a fixed number of output reader
+     * threads.
+     */
+    @Test
+    public void testSharedIoThreads() throws Exception {
+        config.setJobIoThreads(2);
+        final JobRunner runner = new JobRunner(config);
+        final Job job = new Job(testFolder.newFolder("runtime").getAbsolutePath(),
+                                COORDINATE,
+                                Collections.<String>emptyList());
+
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            final List<Future<Result>> futures = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                futures.add(executor.submit(new Callable<Result>() {
+                    @Override
+                    public Result call() {
+                        return runner.runJob(job, JobRunner.START_SCRIPT);
+                    }
+                }));
+            }
+
+            for (final Future<Result> future : futures) {
+                final Result result = future.get();
+                assertEquals(Result.Status.SUCCESS, result.getStatus());
+                assertEquals("out\n", result.getStdout());
+                assertEquals("err\n", result.getStderr());
+                assertTrue(runner.getIoThreadCount() <= 2);
+            }
+        } finally {
+            executor.shutdown();
+            runner.close();
+        }
+    }
+
+    /**
+     * Jobs started asynchronously from a single thread all complete.
+     */
+    @Test
+    public void testAsync() throws Exception {
+        final JobRunner runner = new JobRunner(config);
+        final Job job = new Job(testFolder.newFolder("runtime").getAbsolutePath(),
+                                COORDINATE,
+                                Collections.<String>emptyList());
+        try {
+            final List<ListenableFuture<Result>> futures = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                futures.add(runner.runJobAsync(job, JobRunner.START_SCRIPT));
+            }
+            for (final ListenableFuture<Result> future : futures) {
+                assertEquals("out\n", future.get().getStdout());
+            }
+
+            final Result missing = runner.runJobAsync(job, "nonexistent.py").get();
+            assertEquals(Result.Status.SCRIPT_NOT_FOUND, missing.getStatus());
+        } finally {
+            runner.close();
+        }
+    }
+
+    /**
+     * Cancelling a job kills the process.
+     */
+    @Test
+    public void testCancel() throws Exception {
+        final JobRunner runner = new JobRunner(config);
+        final File runtime = testFolder.newFolder("runtime");
+        final Job job = new Job(runtime.getAbsolutePath(), COORDINATE, Arrays.asList("sleep"));
+        try {
+            final ListenableFuture<Result> future = runner.runJobAsync(job, JobRunner.START_SCRIPT);
+            final File pidFile = new File(runtime, "pid");
+            for (int i = 0; i < 500 && pidFile.length() == 0; i++) {
+                Thread.sleep(10);
+            }
+            final File proc = new File("/proc/" + Files.toString(pidFile, Charsets.UTF_8).trim());
+            assertTrue(proc.exists());
+
+            assertTrue(future.cancel(true));
+            assertTrue(future.isCancelled());
+            for (int i = 0; i < 500 && proc.exists(); i++) {
+                Thread.sleep(10);
+            }
+            assertFalse(proc.exists());
+        } finally {
+            runner.close();
+        }
+    }
+
+    /**
+     * A job writing a lot of output is not killed.  The Result keeps
+     * the start and the end of it and the listener gets every line.
+     */
+    @Test
+    public void testLargeOutput() throws Exception {
+        final JobRunner runner = new JobRunner(config);
+        final Job job = new Job(testFolder.newFolder("runtime").getAbsolutePath(),
+                                COORDINATE,
+                                Arrays.asList("chatty"));
+        final AtomicInteger stdoutLines = new AtomicInteger();
+        final List<String> stderrLines = Collections.synchronizedList(new ArrayList<String>());
+        try {
+            final Result result = runner.runJobAsync(job, JobRunner.START_SCRIPT, new OutputListener() {
+                @Override
+                public void onLine(Job j, Stream stream, String line) {
+                    if (stream == Stream.STDOUT) {
+                        stdoutLines.incrementAndGet();
+                    } else {
+                        stderrLines.add(line);
+                    }
+                }
+            }).get();
+
+            assertEquals(Result.Status.SUCCESS, result.getStatus());
+            assertTrue(result.getStdout().startsWith("1\n2\n3\n"));
+            assertTrue(result.getStdout().contains(" bytes omitted ...]"));
+            assertTrue(result.getStdout().endsWith("49999\n50000\nout\n"));
+            assertTrue(result.getStdout().length() < JobRunner.OUTPUT_HEAD_BYTES + JobRunner.OUTPUT_TAIL_BYTES + 100);
+            assertEquals("err\n", result.getStderr());
+            assertEquals(50001, stdoutLines.get());
+            assertEquals(Arrays.asList("err"), stderrLines);
+        } finally {
+            runner.close();
+        }
+    }
+
+    /**
+     * With log files the output goes to rotated files in the runtime
+     * directory and the Result refers to them.
+     */
+    @Test
+    public void testLogFiles() throws Exception {
+        config.setJobLogSize(20);
+        config.setJobLogFiles(2);
+        final JobRunner runner = new JobRunner(config);
+        final File runtime = testFolder.newFolder("runtime");
+        final Job job = new Job(runtime.getAbsolutePath(), COORDINATE, Collections.<String>emptyList());
+        final File logDir = new File(runtime, JobRunner.LOG_DIR);
+        try {
+            Result result = null;
+            for (int i = 0; i < 6; i++) {
+                result = runner.runJob(job, JobRunner.START_SCRIPT);
+                assertEquals(Result.Status.SUCCESS, result.getStatus());
+            }
+
+            assertEquals("", result.getStdout());
+            assertEquals(new File(logDir, "start.py.stdout.log"), result.getStdoutFile());
+            assertEquals(new File(logDir, "start.py.stderr.log"), result.getStderrFile());
+            assertEquals(4, result.getStdoutBytes());
+            assertEquals(4, result.getStderrBytes());
+
+            // Five runs filled the first file, which was rotated
+            assertEquals("out\n", Files.toString(result.getStdoutFile(), Charsets.UTF_8));
+            assertEquals(20, new File(logDir, "start.py.stdout.log.1").length());
+            assertFalse(new File(logDir, "start.py.stdout.log.2").exists());
+        } finally {
+            runner.close();
+        }
+    }
+
+    /**
+     * A cancelled job whose script left a child holding its output
+     * does not keep other jobs from running, even with only enough
+     * reader threads for one job.
+     */
+    @Test
+    public void testStuckReaders() throws Exception {
+        config.setJobIoThreads(2);
+        final JobRunner runner = new JobRunner(config);
+        final File runtime = testFolder.newFolder("runtime");
+        final File childFile = new File(runtime, "child");
+        try {
+            final ListenableFuture<Result> stuck = runner.runJobAsync(
+                    new Job(runtime.getAbsolutePath(), COORDINATE, Arrays.asList("orphan")),
+                    JobRunner.START_SCRIPT);
+            for (int i = 0; i < 500 && childFile.length() == 0; i++) {
+                Thread.sleep(10);
+            }
+            assertTrue(stuck.cancel(true));
+
+            for (int i = 0; i < 3; i++) {
+                final Result result = runner.runJobAsync(
+                        new Job(runtime.getAbsolutePath(), COORDINATE, Collections.<String>emptyList()),
+                        JobRunner.START_SCRIPT).get(10, TimeUnit.SECONDS);
+                assertEquals(Result.Status.SUCCESS, result.getStatus());
+                assertEquals("out\n", result.getStdout());
+            }
+        } finally {
+            runner.close();
+            if (childFile.length() > 0) {
+                Runtime.getRuntime().exec(new String[] {"kill", Files.toString(childFile, Charsets.UTF_8).trim()}).waitFor();
+            }
+        }
+    }
+
+    /**
+     * The listener has every line, also a last one without a line
+     * terminator, by the time the job is done.
+     */
+    @Test
+    public void testLastLine() throws Exception {
+        final JobRunner runner = new JobRunner(config);
+        final Job job = new Job(testFolder.newFolder("runtime").getAbsolutePath(),
+                                COORDINATE,
+                                Arrays.asList("unterminated"));
+        final List<String> lines = Collections.synchronizedList(new ArrayList<String>());
+        try {
+            final Result result = runner.runJobAsync(job, JobRunner.START_SCRIPT, new OutputListener() {
+                @Override
+                public void onLine(Job j, Stream stream, String line) {
+                    lines.add(line);
+                }
+            }).get();
+            assertEquals(Result.Status.SUCCESS, result.getStatus());
+            assertEquals("first\nlast", result.getStdout());
+            assertEquals(Arrays.asList("first", "last"), lines);
+        } finally {
+            runner.close();
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package org.cloudname.fire;
+
+import org.cloudname.copkg.Configuration;
+import org.cloudname.copkg.PackageCoordinate;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for PlanRunner.
+ */
+public class PlanRunnerTest {
+    private static final String COORDINATE = "com.example:artifact:1.0";
+
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    private JobRunner runner;
+    private String runtimeDir;
+
+    @Before
+    public void setUp() throws Exception {
+        Configuration config = new Configuration(testFolder.newFolder("packages").getAbsolutePath(),
+                                                 "http://localhost/", "", "", testFolder.getRoot().getAbsolutePath());
+        File scriptDir = new File(config.packageDirectoryForCoordinate(PackageCoordinate.parse(COORDINATE)),
+                                  JobRunner.SCRIPT_DIR);
+        assertTrue(scriptDir.mkdirs());
+        File script = new File(scriptDir, JobRunner.START_SCRIPT);
+        Files.write("#!/bin/sh\n"
+                    + "if [ \"$3\" = fail ]; then exit 1; fi\n"
+                    + "if [ \"$3\" = sleep ]; then exec sleep 60; fi\n"
+                    + "echo started\n",
+                    script, Charsets.UTF_8);
+        assertTrue(script.setExecutable(true));
+
+        runner = new JobRunner(config);
+        runtimeDir = testFolder.newFolder("runtime").getAbsolutePath();
+    }
+
+    @After
+    public void tearDown() {
+        runner.close();
+    }
+
+    private Job job(String... params) {
+        return new Job(runtimeDir, COORDINATE, Arrays.asList(params));
+    }
+
+    /**
+     * Every job of every wave is run, and the plan survives a round
+     * trip through JSON.
+     */
+    @Test
+    public void testRun() throws Exception {
+        Plan plan = Plan.parse(new Plan(Arrays.asList(Arrays.asList(job(), job(), job()),
+                                                      Arrays.asList(job(), job())),
+                                        2, null, null).toJson());
+        assertEquals(2, plan.getMaxConcurrent());
+        assertEquals(Plan.DEFAULT_WAVE_TIMEOUT_SECONDS, plan.getWaveTimeoutSeconds());
+
+        List<List<Result>> results = new PlanRunner(runner).run(plan, JobRunner.START_SCRIPT, false);
+        assertEquals(2, results.size());
+        assertEquals(3, results.get(0).size());
+        assertEquals(2, results.get(1).size());
+        for (List<Result> wave : results) {
+            for (Result result : wave) {
+                assertEquals(Result.Status.SUCCESS, result.getStatus());
+                assertEquals("started\n", result.getStdout());
+            }
+        }
+    }
+
+    /**
+     * A failed job stops the plan unless it says to continue.  When
+     * running in reverse the last wave goes first.
+     */
+    @Test
+    public void testFailure() throws Exception {
+        List<List<Job>> waves = Arrays.asList(Arrays.asList(job()),
+                                              Arrays.asList(job("fail"), job()),
+                                              Arrays.asList(job()));
+
+        List<List<Result>> results = new PlanRunner(runner).run(new Plan(waves, null, null, null),
+                                                                JobRunner.START_SCRIPT,
+                                                                false);
+        assertEquals(Result.Status.SUCCESS, results.get(0).get(0).getStatus());
+        assertEquals(Result.Status.ERROR_CODE_RETURNED, results.get(1).get(0).getStatus());
+        assertEquals(Result.Status.SUCCESS, results.get(1).get(1).getStatus());
+        assertEquals(Result.Status.SKIPPED, results.get(2).get(0).getStatus());
+
+        results = new PlanRunner(runner).run(new Plan(waves, null, null, null), JobRunner.START_SCRIPT, true);
+        assertEquals(Result.Status.SUCCESS, results.get(2).get(0).getStatus());
+        assertEquals(Result.Status.SKIPPED, results.get(0).get(0).getStatus());
+
+        results = new PlanRunner(runner).run(new Plan(waves, null, null, true), JobRunner.START_SCRIPT, false);
+        assertEquals(Result.Status.SUCCESS, results.get(2).get(0).getStatus());
+    }
+
+    /**
+     * Jobs still running when the wave times out are killed, and jobs
+     * which never got a slot are skipped.
+     */
+    @Test
+    public void testWaveTimeout() throws Exception {
+        Plan plan = new Plan(Collections.singletonList(Arrays.asList(job("sleep"), job())), 1, 1, null);
+        long start = System.currentTimeMillis();
+        List<List<Result>> results = new PlanRunner(runner).run(plan, JobRunner.START_SCRIPT, false);
+        assertTrue(System.currentTimeMillis() - start < 10000);
+        assertEquals(Result.Status.OTHER, results.get(0).get(0).getStatus());
+        assertTrue(results.get(0).get(0).getMessage().contains("timed out"));
+        assertEquals(Result.Status.SKIPPED, results.get(0).get(1).getStatus());
+    }
+}